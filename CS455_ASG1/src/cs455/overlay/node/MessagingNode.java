@@ -7,25 +7,49 @@
 package cs455.overlay.node;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
-
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+import cs455.overlay.routing.NeighborConnections;
+import cs455.overlay.routing.NextHopTable;
 import cs455.overlay.routing.RoutingEntry;
 import cs455.overlay.transport.TCPClient;
-import cs455.overlay.transport.TCPConnectionThread;
+import cs455.overlay.transport.TCPConnection;
 import cs455.overlay.transport.TCPServer;
+import cs455.overlay.transport.TransportMode;
+import cs455.overlay.util.AllocationMeter;
+import cs455.overlay.util.BufferPool;
+import cs455.overlay.util.DestinationDistribution;
 import cs455.overlay.util.InteractiveCommandParser;
+import cs455.overlay.util.LatencyHistogram;
+import cs455.overlay.util.TraceLogger;
 import cs455.overlay.wireformats.Event;
 import cs455.overlay.wireformats.EventFactory;
+import cs455.overlay.wireformats.EventWriter;
+import cs455.overlay.wireformats.DataRecord;
 import cs455.overlay.wireformats.OverlayNodeSendsData;
+import cs455.overlay.wireformats.OverlayNodeSendsDataBatch;
 import cs455.overlay.wireformats.Protocol;
 import cs455.overlay.wireformats.RegistryReportsDeregistrationStatus;
 import cs455.overlay.wireformats.RegistryReportsRegistrationStatus;
 import cs455.overlay.wireformats.RegistryRequestsTaskInitiate;
+import cs455.overlay.wireformats.RegistryRequestsTrafficCounts;
+import cs455.overlay.wireformats.RegistrySendsManifestDelta;
 import cs455.overlay.wireformats.RegistrySendsNodeManifest;
 
 
@@ -33,27 +57,55 @@ public class MessagingNode extends TCPClient {
 
 	// Instance variables **************
 	private	EventFactory ef = EventFactory.getInstance();
-	private Map<Integer, TCPConnectionThread> clientConnections = new HashMap<Integer, TCPConnectionThread>();
+	// Messages to the Registry are marshalled into a per thread buffer, console and receive threads both send
+	private ThreadLocal<EventWriter> writer = new ThreadLocal<EventWriter>(){
+		protected EventWriter initialValue(){
+			return new EventWriter();
+		}
+	};
+	// Connections to this node's fingers, kept across manifests and tasks
+	private NeighborConnections neighbors;
 	// This is the TCPServerThread for this client
 	private ClientReceiver clientReceiver;
 	private String myIPAddress;
+	private TransportMode transportMode;
 	private int myID;
 	private int listenPort;
 	private List<RoutingEntry> routingTable;
 	private int[] nodeList;
-	private int sendTracker;
-	private long sendSummation;
+	// Overlay epoch of the last manifest (or delta) applied
+	private int overlayEpoch = -1;
+	// Merged in by the sender threads as they finish, striped so they never contend
+	private LongAdder sendTracker = new LongAdder();
+	private LongAdder sendSummation = new LongAdder();
+	private LongAdder sendBytes = new LongAdder();
+	// Threads generating packets for a task (cs455.senderThreads, defaults to one per core)
+	private static final int SENDER_THREADS = Integer.getInteger("cs455.senderThreads", Runtime.getRuntime().availableProcessors());
+	private ExecutorService senderPool;
+	private static final byte[] NO_DATA = new byte[0];
+	// Largest batch of data packets a sender packs into one frame (cs455.dataBatch.bytes, 0 to send each as its own frame)
+	private static final int DATA_BATCH_BYTES = Integer.getInteger("cs455.dataBatch.bytes", 16 * 1024);
+	// Longest a paced sender holds packets back to fill a batch (cs455.dataBatch.lingerMicros, defaults to 0)
+	private static final long DATA_BATCH_LINGER_NANOS = Long.getLong("cs455.dataBatch.lingerMicros", 0) * 1000;
+	// Stamp packets with their send time so sinks can measure latency (cs455.latency, defaults to true)
+	private static final boolean STAMP_PACKETS = !"false".equalsIgnoreCase(System.getProperty("cs455.latency"));
+	// Bytes allocated by this node's threads since the task started
+	private AllocationMeter allocationMeter = new AllocationMeter();
 
 	// Superclass constructor **************
-	public MessagingNode(String host, int port) {
-		super(host, port);
+	public MessagingNode(String host, int port, TransportMode transportMode) {
+		super(host, port, transportMode);
+		this.transportMode = transportMode;
 	}
 
 
 	public static void main (String args[]){
 
+		// Optional third argument picks the transport used between nodes (blocking, virtual or nio)
+		TransportMode mode = TransportMode.parse(args.length > 2 ? args[2] : null);
+
 		// Establish connection to the server...
-		MessagingNode messengerClient = new MessagingNode(args[0], Integer.parseInt(args[1]));
+		MessagingNode messengerClient = new MessagingNode(args[0], Integer.parseInt(args[1]), mode);
 
 		// Start client
 		messengerClient.startClient();		
@@ -82,11 +134,10 @@ public class MessagingNode extends TCPClient {
 			myIPAddress = getInetAddress().toString().split("/")[1];
 
 			// Build a new registration event
-			Event registerClient = ef.buildEvent(Protocol.OVERLAY_NODE_SENDS_REGISTRATION, 
-					myIPAddress.length()+";"+myIPAddress+";" + listenPort);
+			EventWriter registerClient = writer.get().overlayNodeSendsRegistration(myIPAddress, listenPort);
 
 			// Finally, send the message to the server
-			sendToServer(registerClient.getBytes());
+			sendToServer(registerClient.array(), registerClient.getLength());
 
 		} catch (IOException e1) {
 			System.out.println("Error connecting and sending data to Registry: ");
@@ -111,7 +162,8 @@ public class MessagingNode extends TCPClient {
 	 * @return void
 	 */
 	private void initilizeReceiver(int port){
-		clientReceiver = new ClientReceiver(port);
+		clientReceiver = new ClientReceiver(port, transportMode);
+		neighbors = new NeighborConnections(clientReceiver);
 		try {
 			clientReceiver.listen();
 			listenPort = clientReceiver.getPort();
@@ -148,6 +200,10 @@ public class MessagingNode extends TCPClient {
 			setupRoutingTable(event);
 			break;
 
+		case Protocol.REGISTRY_SENDS_MANIFEST_DELTA:
+			applyManifestDelta(event);
+			break;
+
 		case Protocol.REGISTRY_REQUESTS_TASK_INITIATE:
 			startTask(event);
 			break;
@@ -156,6 +212,10 @@ public class MessagingNode extends TCPClient {
 			getStats();
 			break;
 
+		case Protocol.REGISTRY_REQUESTS_TRAFFIC_COUNTS:
+			reportCounts(event);
+			break;
+
 		default:
 			System.out.println("Unrecognized event type received");
 
@@ -212,10 +272,81 @@ public class MessagingNode extends TCPClient {
 	private void setupRoutingTable(Event event){
 
 		RegistrySendsNodeManifest nodeManifest = (RegistrySendsNodeManifest) event;
+		// The Registry resends the current epoch's manifest to resync a node, possibly mid task
+		boolean newEpoch = nodeManifest.getEpoch() != overlayEpoch;
 		routingTable = nodeManifest.getRoutingEntries();
 		nodeList = nodeManifest.getAllNodes();
-		// if new routing table sent, initialize/re-initialize connections
-		clientConnections.clear();
+		overlayEpoch = nodeManifest.getEpoch();
+		// if new routing table sent, keep the connections it still uses, drop the rest and dial the new fingers
+		neighbors.setFingers(routingTable);
+		neighbors.connect();
+		// Relays switch now, closed connections may have been in the old table and neighbors can start sending before we do
+		clientReceiver.setRoutingTable(new NextHopTable(neighbors.getConnections(), nodeList));
+		// Counters only start over with a new overlay, a resync keeps the round's totals
+		if(newEpoch)
+			resetCounters();
+
+	}
+
+	// A node joined or left the running overlay
+	// Only the fingers that changed are closed or dialed, every other connection is left alone
+	// Called within class
+	private void applyManifestDelta(Event event){
+
+		RegistrySendsManifestDelta delta = (RegistrySendsManifestDelta) event;
+		if(routingTable == null || delta.getBaseEpoch() != overlayEpoch){
+			// Missed a change, the Registry answers with the whole manifest
+			System.out.println("Manifest for epoch " + delta.getBaseEpoch() + " received at epoch " + overlayEpoch + ", requesting full manifest");
+			EventWriter setupStatus = writer.get().nodeReportsOverlaySetupStatus(-1, "Manifest epoch mismatch");
+			try {
+				this.sendToServer(setupStatus.array(), setupStatus.getLength());
+			} catch (IOException e) {
+				System.out.println("Error sending setup status to Registry: ");
+				e.printStackTrace();
+			}
+			return;
+		}
+
+		List<RoutingEntry> fingers = new ArrayList<RoutingEntry>(routingTable);
+		for(int nodeID : delta.getRemovedFingers()){
+			for(int i = 0; i<fingers.size(); ++i){
+				if(fingers.get(i).getNodeID() == nodeID){
+					fingers.remove(i);
+					break;
+				}
+			}
+		}
+		fingers.addAll(delta.getAddedFingers());
+
+		int[] nodes = nodeList;
+		for(int nodeID : delta.getRemovedNodes()){
+			int i = Arrays.binarySearch(nodes, nodeID);
+			if(i >= 0){
+				int[] fewer = new int[nodes.length - 1];
+				System.arraycopy(nodes, 0, fewer, 0, i);
+				System.arraycopy(nodes, i + 1, fewer, i, fewer.length - i);
+				nodes = fewer;
+			}
+		}
+		for(int nodeID : delta.getAddedNodes()){
+			int i = Arrays.binarySearch(nodes, nodeID);
+			if(i < 0){
+				i = -i - 1;
+				int[] more = new int[nodes.length + 1];
+				System.arraycopy(nodes, 0, more, 0, i);
+				more[i] = nodeID;
+				System.arraycopy(nodes, i, more, i + 1, nodes.length - i);
+				nodes = more;
+			}
+		}
+
+		routingTable = fingers;
+		nodeList = nodes;
+		overlayEpoch = delta.getEpoch();
+		neighbors.setFingers(routingTable);
+		neighbors.connect();
+		// Relays follow the new fingers straight away, senders pick them up at the next task
+		clientReceiver.setRoutingTable(new NextHopTable(neighbors.getConnections(), nodeList));
 
 	}
 
@@ -230,33 +361,19 @@ public class MessagingNode extends TCPClient {
 		String statusMessage = "Setup successful";
 		int status = myID;
 
-		if(clientConnections == null || clientConnections.isEmpty()){
-			for(RoutingEntry node : routingTable){
-				Socket socket;
-				try {
-					socket = new Socket(node.getIpAddress(), node.getPortNum());
-					clientConnections.put(node.getNodeID(), new TCPConnectionThread(clientReceiver.getThreadGroup(), socket, clientReceiver));
-				} catch (UnknownHostException e) {
-					statusMessage = "Setup failed";
-					status = -1;
-					System.out.println("Error connecting to client, unknown host error occurred: ");
-					e.printStackTrace();
-				} catch (IOException e) {
-					statusMessage = "Setup failed";
-					status = -1;
-					System.out.println("Error connecting to client: ");
-					e.printStackTrace();
-				}
-
-			}
+		// Connections are kept from the last task, only fingers not connected (or since dropped) are dialed
+		if(neighbors.connect() != 0){
+			statusMessage = "Setup failed";
+			status = -1;
 		}
 
-		// Update the receiver with list of connections
-		clientReceiver.setRoutingTable(clientConnections);					
-		Event setupStatus = ef.buildEvent(Protocol.NODE_REPORTS_OVERLAY_SETUP_STATUS, status + ";" + statusMessage.length() + ";" + statusMessage);
+		// Work out every destination's next hop once, shared with the receiver for relaying
+		NextHopTable nextHops = new NextHopTable(neighbors.getConnections(), nodeList);
+		clientReceiver.setRoutingTable(nextHops);
+		EventWriter setupStatus = writer.get().nodeReportsOverlaySetupStatus(status, statusMessage);
 
 		try {
-			this.sendToServer(setupStatus.getBytes());
+			this.sendToServer(setupStatus.array(), setupStatus.getLength());
 		} catch (IOException e) {
 			System.out.println("Error sending setup status to Registry: ");
 			e.printStackTrace();
@@ -264,119 +381,331 @@ public class MessagingNode extends TCPClient {
 
 		// If status is -1 we had an error setting up connections, don't initiate task!
 		if(status != -1){
-			int payload;
-			int sink;
-			Random rand = new Random();
+			// Counters were reset after the last summary, not here, neighbors may already be sending to us
+			allocationMeter.reset();
 
 			/*
-			 * Setting hop to source initially, specs say not to, but makes 
-			 * it easier to track packet from source to sink...
-			 * hopLength, however, is the actually number of intermediate hops
-			 * from source to sink
+			 * Packets are generated on the sender threads, split as evenly as possible.
+			 * This thread goes back to reading the registry link, the last
+			 * sender to finish reports the task finished
+			 *
+			 * If the task is paced, packet n is due at start + n / rate seconds,
+			 * sender i takes packets i, i + senders, ... so between them
+			 * they keep the node's rate
 			 */
-			String hop = "(SRC: " + myID + ")";
-			int hopLength = 0;
+			DestinationDistribution sinks = DestinationDistribution.build(taskInitiate.getDistribution(), 
+					taskInitiate.getDistributionParameter(), myID, nodeList);
+			if(sinks.isEmpty()){
+				System.out.println("No other nodes in the overlay, nothing to send.");
+				numPackets = 0;
+			}
+			int senders = Math.max(1, Math.min(SENDER_THREADS, numPackets));
+			AtomicInteger sendersRunning = new AtomicInteger(senders);
+			SplittableRandom seed = new SplittableRandom();
+			Schedule schedule = taskInitiate.isPaced() ? new Schedule(taskInitiate.getPacketsPerSecond(), senders) : null;
+			for(int i = 0; i<senders; ++i){
+				int packets = numPackets / senders + (i < numPackets % senders ? 1 : 0);
+				getSenderPool().execute(new PacketSender(i, packets, taskInitiate.getPayloadBytes(), seed.split(), 
+						sinks, nextHops, schedule, sendersRunning));
+			}
+		}else{
+			System.out.println("Error setting up connections with clients, unable to start task.");
+		}
+
+	}
+
+	/**
+	 * When each packet of a paced task is due
+	 *
+	 * Times are fixed from the start of the task, a sender running late
+	 * sends the packets it owes straight away, it doesn't push the rest
+	 * back. Packets are stamped with when they were due, not when they
+	 * went, so time spent stuck behind a slow send counts as latency
+	 * (no coordinated omission)
+	 * @author sparkison
+	 *
+	 */
+	private static class Schedule {
+
+		// Instance variables **************
+		private long startNanos;
+		private long startMicros;
+		private double nanosPerPacket;
+		private int senders;
 
-			// Set/Reset the tracker variables
-			sendTracker = 0;
-			sendSummation = 0;
+		// Constructor **************
+		/**
+		 * @param packetsPerSecond for the whole node
+		 * @param senders threads sharing the packets
+		 */
+		public Schedule(int packetsPerSecond, int senders){
+			this.nanosPerPacket = 1e9 / packetsPerSecond;
+			this.senders = senders;
+			anchor();
+		}
+
+		/*
+		 * Due times are kept in nanoTime and stamped in wall clock micros, so the
+		 * two are read together. Anything that stalls between the reads (the first
+		 * read of the wall clock loads classes, or the thread is descheduled) would
+		 * stamp every packet late and hide that much latency, so the wall clock is
+		 * read between two nanoTimes and read again if they're far apart
+		 */
+		private void anchor(){
+			long before;
+			long after;
+			int tries = 0;
+			do{
+				before = System.nanoTime();
+				startMicros = LatencyHistogram.epochMicros();
+				after = System.nanoTime();
+			}while(after - before > 10000 && ++tries < 10);
+			startNanos = before + (after - before) / 2;
+		}
+
+		/**
+		 * @param sender which sender thread
+		 * @param i the sender's packet number
+		 * @return long nanoTime the packet is due
+		 */
+		public long dueNanos(int sender, int i){
+			return startNanos + (long) (((long) i * senders + sender) * nanosPerPacket);
+		}
+
+		/**
+		 * @param dueNanos from dueNanos
+		 * @return long epoch microseconds the packet is due
+		 */
+		public long dueMicros(long dueNanos){
+			return startMicros + (dueNanos - startNanos) / 1000;
+		}
 
-			//System.out.println("Getting ready to loop for " + numPackets + " packets");
+	}// ************** END Schedule sub-class **************
 
-			for(int i = 0; i<numPackets; ++i){
+	/**
+	 * One sender thread's share of a task
+	 * Has its own random and counters, counters are
+	 * only merged into the node's once it's done
+	 *
+	 * Packets are written straight into a staging buffer per neighbor, which
+	 * is handed to the connection whole once full (and at the end), so the
+	 * loop doesn't allocate, or touch the pool or the queue, per packet
+	 *
+	 * With batching on (cs455.dataBatch.bytes) each staging buffer is one
+	 * OverlayNodeSendsDataBatch frame of records, otherwise it's a run of
+	 * OverlayNodeSendsData frames
+	 *
+	 * Packet data is a window of a block of random bytes made once per
+	 * sender, starting at an offset taken from the payload, so packets
+	 * differ without generating fresh bytes for every one
+	 */
+	private class PacketSender implements Runnable {
 
-				// Get payload and select node to send to
-				payload = getPayload();
-				sink = selectRandomNode(rand);
-				
-				// Track the data for traffic summary
-				updateCounts(payload);
+		private static final int STAGING_BYTES = 16 * 1024;
+		// Data windows start somewhere in the first DATA_OFFSETS bytes of the block
+		private static final int DATA_OFFSETS = 4096;
 
-				Event data = ef.buildEvent(Protocol.OVERLAY_NODE_SENDS_DATA, sink + ";" + myID + ";" + payload + ";" + hopLength + ";" + hop);
+		// Instance variables **************
+		private BufferPool pool = BufferPool.getInstance();
+		private int numPackets;
+		private SplittableRandom rand;
+		private DestinationDistribution sinks;
+		private NextHopTable nextHops;
+		private ByteBuffer[] staged;
+		// Records in each neighbor's batch so far
+		private int[] stagedRecords;
+		// When the oldest staged packet was staged, for the linger
+		private long stagedSince;
+		private AtomicInteger sendersRunning;
+		private int sender;
+		// Null if the task isn't paced
+		private Schedule schedule;
+		private int payloadBytes;
+		private byte[] dataBlock;
+		private CRC32 crc = new CRC32();
+
+		// Constructor **************
+		public PacketSender(int sender, int numPackets, int payloadBytes, SplittableRandom rand, DestinationDistribution sinks, 
+				NextHopTable nextHops, Schedule schedule, AtomicInteger sendersRunning){
+			this.sender = sender;
+			this.payloadBytes = payloadBytes;
+			this.schedule = schedule;
+			this.numPackets = numPackets;
+			this.rand = rand;
+			this.sinks = sinks;
+			this.nextHops = nextHops;
+			this.staged = new ByteBuffer[nextHops.getNeighborCount()];
+			this.stagedRecords = new int[nextHops.getNeighborCount()];
+			this.sendersRunning = sendersRunning;
+		}
 
-				if(clientConnections.containsKey(sink)){
-					try {
-						clientConnections.get(sink).sendFromClientToClient(data.getBytes());
-					} catch (IOException e) {
-						System.out.println("Error sending payload to client: ");
-						e.printStackTrace();
+		public void run(){
+			long sent = 0;
+			long summation = 0;
+			boolean batching = DATA_BATCH_BYTES > 0;
+			int packetBytes = batching ? DataRecord.NEW_RECORD_BYTES + payloadBytes : OverlayNodeSendsData.NEW_FRAME_BYTES + payloadBytes;
+			// Packets too big for a batch get a buffer (and frame) of their own
+			int stagingBytes = batching ? Math.max(DATA_BATCH_BYTES, OverlayNodeSendsDataBatch.FRAME_HEADER_BYTES + packetBytes) 
+					: Math.max(STAGING_BYTES, packetBytes);
+			if(payloadBytes > 0){
+				dataBlock = new byte[payloadBytes + DATA_OFFSETS];
+				for(int b = 0; b<dataBlock.length; ++b){
+					dataBlock[b] = (byte) rand.nextInt();
+				}
+			}
+			try{
+				for(int i = 0; i<numPackets; ++i){
+
+					// Paced, wait until it's due, before touching the staging buffers (waiting may send them)
+					long sendTime = 0;
+					if(schedule != null){
+						sendTime = awaitTurn(i);
+					}else if(STAMP_PACKETS){
+						sendTime = LatencyHistogram.epochMicros();
 					}
-				}else{				
-					// Node not in list of connections, need to find nearest node
-					// Idea: take sink - nodeID, if negative, we passed the sink
-					// ignore it, else compare to min, if less set to min, continue
-					// After comparing all clientConnections end up with nearest node
-
-					int min = Integer.MAX_VALUE;
-					int compare;
-					int location = -1;
-
-					for (Integer key : clientConnections.keySet()) {
-						compare = sink - key;
-						if(compare < min && compare > 0){
-							min = compare;
-							location = key;
-						}
+
+					// Get payload (anywhere from Integer.MIN_VALUE to Integer.MAX_VALUE) and select node to send to
+					int payload = rand.nextInt();
+					int sink = sinks.next(rand);
+
+					int nextHop = nextHops.getNextHopIndex(sink);
+					if(nextHop == -1){
+						System.out.println("Error, node not in list of neighbors.");
+						continue;
 					}
 
-					// If location is still -1, the destination node is behind us (looped around in the list)
-					// Need to determine based on max(Math.abs(a,b))
-					// Is there a better way to do this in a single loop iteration???
-
-					if(location == -1){
-						int max = Integer.MIN_VALUE;
-						for (Integer key : clientConnections.keySet()) {
-							compare = Math.abs(sink - key);
-							if(compare > max){
-								max = compare;
-								location = key;
-							}
-						}
+					// Track the data for traffic summary, only packets that are staged to go out
+					sent++;
+					summation += payload;
+					ByteBuffer frames = staged[nextHop];
+					if(frames != null && frames.remaining() < packetBytes){
+						send(nextHop);
+						frames = null;
 					}
-					if(clientConnections.get(location) != null)
-						try {
-							clientConnections.get(location).sendFromClientToClient(data.getBytes());
-						} catch (IOException e) {
-							System.out.println("Error sending payload to client: ");
-							e.printStackTrace();
-						}
+					if(frames == null)
+						frames = stage(nextHop, stagingBytes, batching);
+
+					int dataOffset = payloadBytes > 0 ? payload & (DATA_OFFSETS - 1) : 0;
+					int checksum = OverlayNodeSendsData.checksum(crc, dataBlock, dataOffset, payloadBytes);
+					if(batching){
+						DataRecord.write(frames, sink, myID, payload, sendTime, 
+								payloadBytes > 0 ? dataBlock : NO_DATA, dataOffset, payloadBytes, checksum);
+						++stagedRecords[nextHop];
+					}else{
+						OverlayNodeSendsData.writeFrame(frames, sink, myID, payload, sendTime, 
+								payloadBytes > 0 ? dataBlock : NO_DATA, dataOffset, payloadBytes, checksum);
+					}
+				}
+				sendAll();
+			}finally{
+				updateCounts(sent, summation, sent * payloadBytes);
+				if(sendersRunning.decrementAndGet() == 0)
+					reportTaskFinished();
+			}
+		}
+
+		// New staging buffer for a neighbor, started as a batch frame if batching
+		private ByteBuffer stage(int neighbor, int stagingBytes, boolean batching){
+			ByteBuffer frames = pool.acquire(stagingBytes);
+			if(batching)
+				OverlayNodeSendsDataBatch.startFrame(frames);
+			stagedRecords[neighbor] = 0;
+			if(isEmpty())
+				stagedSince = System.nanoTime();
+			staged[neighbor] = frames;
+			return frames;
+		}
+
+		private boolean isEmpty(){
+			for(int n = 0; n<staged.length; ++n){
+				if(staged[n] != null)
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Wait until packet i is due
+		 * Staged packets are sent once they've waited the linger
+		 * (cs455.dataBatch.lingerMicros), or before waiting if there's
+		 * no linger, so packets only sit in the staging buffers while the
+		 * sender is behind schedule or filling a batch
+		 * @param i
+		 * @return long epoch microseconds the packet was due, 0 if not stamping
+		 */
+		private long awaitTurn(int i){
+			long due = schedule.dueNanos(sender, i);
+			long now;
+			while(due - (now = System.nanoTime()) > 0){
+				if(isEmpty()){
+					LockSupport.parkNanos(due - now);
+				}else{
+					long flushAt = stagedSince + DATA_BATCH_LINGER_NANOS;
+					if(flushAt - now <= 0)
+						sendAll();
 					else
-						System.out.println("Error, node not in list of neighbors.");
+						LockSupport.parkNanos(Math.min(due, flushAt) - now);
 				}
 			}
+			return STAMP_PACKETS ? schedule.dueMicros(due) : 0;
+		}
+
+		private void sendAll(){
+			for(int n = 0; n<staged.length; ++n){
+				if(staged[n] != null)
+					send(n);
+			}
+		}
 
-			// If here, task finished, notify Registry
-			Event finishStatus = ef.buildEvent(Protocol.OVERLAY_NODE_REPORTS_TASK_FINISHED, myIPAddress + ";" + listenPort + ";" + myID);
+		// Hand a neighbor's staged frames to its connection, the connection owns them after this
+		private void send(int neighbor){
+			ByteBuffer frames = staged[neighbor];
+			staged[neighbor] = null;
+			if(DATA_BATCH_BYTES > 0)
+				OverlayNodeSendsDataBatch.finishFrame(frames, 0, stagedRecords[neighbor]);
+			frames.flip();
 			try {
-				this.sendToServer(finishStatus.getBytes());
+				nextHops.getNeighbor(neighbor).sendFramesFromClientToClient(frames);
 			} catch (IOException e) {
-				System.out.println("Error sending task complete status to Registry: ");
+				System.out.println("Error sending payload to client: ");
 				e.printStackTrace();
 			}
-		}else{
-			System.out.println("Error setting up connections with clients, unable to start task.");
 		}
 
+	}// ************** END PacketSender sub-class **************
+
+	// Helpers for above
+	// Merge a sender's counters in
+	private void updateCounts(long sent, long summation, long bytes){
+		sendSummation.add(summation);
+		sendTracker.add(sent);
+		sendBytes.add(bytes);
 	}
 
-	// Helpers for above, called by startTask method
-	private int selectRandomNode(Random rand){
-		int r = rand.nextInt(nodeList.length);
-		while(nodeList[r] == myID){
-			r = rand.nextInt(nodeList.length);
+	// Sender threads are only started the first time a task runs
+	private synchronized ExecutorService getSenderPool(){
+		if(senderPool == null){
+			senderPool = Executors.newFixedThreadPool(SENDER_THREADS, new ThreadFactory(){
+				private int count = 0;
+				public Thread newThread(Runnable task){
+					Thread thread = new Thread(task, "Sender " + (++count));
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 		}
-		return nodeList[r];
-	}
-	// Get a random payload between 
-	// Integer.MAX_VALUE and Integer.MIN_VALUE
-	private int getPayload(){
-		Random rand = new Random();		
-		return rand.nextInt();
+		return senderPool;
 	}
-	// Update counters, ensuring concurrency
-	private synchronized void updateCounts(long payload){
-		sendSummation += payload;
-		sendTracker++;
+
+	// Called by the last sender thread to finish
+	private void reportTaskFinished(){
+		EventWriter finishStatus = writer.get().overlayNodeReportsTaskFinished(myIPAddress, listenPort, myID);
+		try {
+			this.sendToServer(finishStatus.array(), finishStatus.getLength());
+		} catch (IOException e) {
+			System.out.println("Error sending task complete status to Registry: ");
+			e.printStackTrace();
+		}
 	}
 
 	/*
@@ -387,10 +716,9 @@ public class MessagingNode extends TCPClient {
 	// Called by CommandParser, need to be public
 	public void sendDeregistration(){
 		int listenPort = clientReceiver.getPort();
-		String message = myIPAddress.length() + ";" + myIPAddress + ";" + listenPort + ";" + myID;
-		Event e = ef.buildEvent(Protocol.OVERLAY_NODE_SENDS_DEREGISTRATION, message);
+		EventWriter e = writer.get().overlayNodeSendsDeregistration(myIPAddress, listenPort, myID);
 		try {
-			this.sendToServer(e.getBytes());
+			this.sendToServer(e.array(), e.getLength());
 		} catch (IOException e1) {
 			System.out.println("Error sending deregistration to Registry: ");
 			e1.printStackTrace();
@@ -432,16 +760,49 @@ public class MessagingNode extends TCPClient {
 	 */
 	private void getStats(){
 
-		Event reportSummary = ef.buildEvent(Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY, myID 
-				+ ";" + sendTracker + ";" + clientReceiver.getRelayTracker() + ";" + sendSummation 
-				+ ";" + clientReceiver.getReceiveTraker() + ";" + clientReceiver.getReceiveSummation());
+		EventWriter reportSummary = writer.get().overlayNodeReportsTrafficSummary(myID, 
+				sendTracker.sum(), clientReceiver.getRelayTracker(), sendSummation.sum(), 
+				clientReceiver.getReceiveTraker(), clientReceiver.getReceiveSummation(), 
+				sendBytes.sum(), clientReceiver.getRelayBytes(), clientReceiver.getReceiveBytes(), 
+				clientReceiver.getCorruptTracker(), clientReceiver.getLatencyByHops());
 		try {
-			this.sendToServer(reportSummary.getBytes());
+			this.sendToServer(reportSummary.array(), reportSummary.getLength());
 		} catch (IOException e) {
 			System.out.println("Error sending report summary to Registry: ");
 			e.printStackTrace();
 		}
+		// Round is over once reported, start the next one from zero
+		resetCounters();
+
+	}
+
+	/**
+	 * Answer the Registry's poll for packets in flight
+	 * Just the counts, so it can tell when every packet sent has been received
+	 * @param event
+	 */
+	private void reportCounts(Event event){
+
+		RegistryRequestsTrafficCounts countsRequest = (RegistryRequestsTrafficCounts) event;
+		EventWriter reportCounts = writer.get().overlayNodeReportsTrafficCounts(myID, countsRequest.getRound(), 
+				sendTracker.sum(), clientReceiver.getRelayTracker(), clientReceiver.getReceiveTraker());
+		try {
+			this.sendToServer(reportCounts.array(), reportCounts.getLength());
+		} catch (IOException e) {
+			System.out.println("Error sending traffic counts to Registry: ");
+			e.printStackTrace();
+		}
+
+	}
 
+	/**
+	 * Set/Reset the tracker variables, sent and received
+	 */
+	private void resetCounters(){
+		sendTracker.reset();
+		sendSummation.reset();
+		sendBytes.reset();
+		clientReceiver.resetCounters();
 	}
 
 	/**
@@ -451,11 +812,16 @@ public class MessagingNode extends TCPClient {
 
 		System.out.println();
 		System.out.println("Counters and diagnostics for node (" + myID + ")");
-		System.out.println("Total packets sent: " + sendTracker);
+		System.out.println("Total packets sent: " + sendTracker.sum());
 		System.out.println("Total packets relayed: " + clientReceiver.getRelayTracker());
-		System.out.println("Sum of packet data sent: " + sendSummation);
+		System.out.println("Sum of packet data sent: " + sendSummation.sum());
 		System.out.println("Total packets received: " + clientReceiver.getReceiveTraker());
 		System.out.println("Sum of packets received: " + clientReceiver.getReceiveSummation());
+		System.out.println("Data bytes sent/relayed/received: " + sendBytes.sum() + "/" + clientReceiver.getRelayBytes() 
+				+ "/" + clientReceiver.getReceiveBytes());
+		System.out.println("Packets received with corrupt data: " + clientReceiver.getCorruptTracker());
+		long packetsHandled = sendTracker.sum() + clientReceiver.getRelayTracker() + clientReceiver.getReceiveTraker();
+		System.out.println("Bytes allocated per packet handled: " + allocationMeter.getBytesAllocatedPer(packetsHandled));
 		System.out.println();
 
 	}
@@ -503,115 +869,246 @@ public class MessagingNode extends TCPClient {
 	private class ClientReceiver extends TCPServer {
 
 		// Instance variables **************
-		private int myID;
-		private int receiveTraker;
-		private long receiveSummation;
-		private int relayTracker;
-		private Map<Integer, TCPConnectionThread> clientConnections;
-
-		public ClientReceiver(int port) {
-			super(port, "MessagingClient threads");
+		/*
+		 * Receive threads run in parallel (one per connection, or one per selector),
+		 * so the counters are striped LongAdders rather than guarded by the server
+		 * Only summed when reported, and only reset between rounds
+		 */
+		private volatile int myID;
+		// Which delivered packets get their hop trace printed (cs455.trace: off, sample:N or full)
+		private TraceLogger traceLogger = new TraceLogger(System.getProperty("cs455.trace"));
+		private LongAdder receiveTraker = new LongAdder();
+		private LongAdder receiveSummation = new LongAdder();
+		private LongAdder relayTracker = new LongAdder();
+		private LongAdder receiveBytes = new LongAdder();
+		private LongAdder relayBytes = new LongAdder();
+		private LongAdder corruptTracker = new LongAdder();
+		// Each receive thread checks data with its own CRC32
+		private ThreadLocal<CRC32> crc = new ThreadLocal<CRC32>(){
+			protected CRC32 initialValue(){
+				return new CRC32();
+			}
+		};
+		// Reads data frames in place, without decoding them
+		private ThreadLocal<OverlayNodeSendsData.View> packetView = new ThreadLocal<OverlayNodeSendsData.View>(){
+			protected OverlayNodeSendsData.View initialValue(){
+				return new OverlayNodeSendsData.View();
+			}
+		};
+		// And splits batches into its own per neighbor batches
+		private ThreadLocal<RelayBatches> relayBatches = new ThreadLocal<RelayBatches>(){
+			protected RelayBatches initialValue(){
+				return new RelayBatches();
+			}
+		};
+		private volatile NextHopTable nextHops;
+		// Latency of delivered packets, one histogram per hop count, created as hop counts turn up
+		private static final int MAX_TRACKED_HOPS = 64;
+		private AtomicReferenceArray<LatencyHistogram> latencyByHops = new AtomicReferenceArray<LatencyHistogram>(MAX_TRACKED_HOPS + 1);
+
+		public ClientReceiver(int port, TransportMode mode) {
+			super(port, "MessagingClient threads", mode);
 		}
 
-		protected void clientDisconnected(TCPConnectionThread client) {
-			// Client disconnected
+		protected void clientDisconnected(TCPConnection client) {
+			// Client disconnected, dialed again at the next manifest or task if it's a neighbor
 			//System.out.println("Client disconnected");
+			neighbors.connectionLost(client);
 		}
 
-		protected void clientException(TCPConnectionThread client, Throwable exception) {
+		protected void clientException(TCPConnection client, Throwable exception) {
 			// Client had connection exception
 			//System.out.println("Client lost connection");
+			neighbors.connectionLost(client);
 		}
 
+		/**
+		 * Relay fast path
+		 * Data packets passing through are forwarded straight from the received
+		 * frame: the destination is peeked, the hop count and trace are patched
+		 * in place and the same buffer goes out to the next hop. Only packets
+		 * for this node are decoded (into an OverlayNodeSendsData, in onEvent)
+		 */
 		@Override
-		public void onEvent(Event event, TCPConnectionThread client) {
-			OverlayNodeSendsData ovnData;
+		protected boolean onFrame(ByteBuffer frame, TCPConnection client) {
+			int type = ef.getType(frame);
+			if(type == Protocol.OVERLAY_NODE_SENDS_DATA_BATCH){
+				relayBatch(frame);
+				return true;
+			}
+			if(type != Protocol.OVERLAY_NODE_SENDS_DATA)
+				return false;
+			OverlayNodeSendsData.View packet = packetView.get();
+			packet.wrap(frame);
+			int sink = packet.getDestinationID();
+			if(sink == myID){
+				// Only decoded (in onEvent) if its trace is going to be logged
+				if(traceLogger.sample())
+					return false;
+				updateReceived(packet.getPayLoad(), packet.getDataLength(), packet.isDataIntact(crc.get()));
+				updateLatency(packet.getSendTime(), packet.getHopTraceLength());
+				BufferPool.getInstance().release(frame);
+				return true;
+			}
 
+			// Data stays where it is in the frame, only the hop trace is touched
+			int dataBytes = packet.getDataLength();
+			frame = OverlayNodeSendsData.relay(frame, myID);
+			// Table is null until this node's own task has set up its connections
+			NextHopTable table = nextHops;
+			TCPConnection nextHop = table != null ? table.getNextHop(sink) : null;
+			if(nextHop == null){
+				System.out.println("Error, node not in list of neighbors.");
+				BufferPool.getInstance().release(frame);
+				return true;
+			}
 			try {
-				ovnData = new OverlayNodeSendsData(event.getBytes());
-
-				if(ovnData.getDestinationID() == myID){
-					
-					updateReceived(ovnData.getPayLoad());
-					ovnData.updateHopTrace(myID);
-
-					// Debugging
-					System.out.println("Received payload for node (" + myID + ")!!");
-					System.out.println("Trace: num hops = " + ovnData.getHopTraceLength() + ", trace route = " + ovnData.getHopTrace());
-					System.out.println();
-				}else{
-					forwardPacket(ovnData);
-				}
-
+				nextHop.sendFrameFromClientToClient(frame);
+				// Only counted once it's on its way, dropped packets aren't relayed
+				updateRelayed(1, dataBytes);
 			} catch (IOException e) {
-				System.out.println("Error getting data: ");
+				System.out.println("Error relaying data: ");
 				e.printStackTrace();
 			}
+			return true;
 		}
 
-		private void forwardPacket(OverlayNodeSendsData ovnData) throws IOException{
-
-			updateRelayed();
-			int sink = ovnData.getDestinationID();
-
-			// Update the dissemination for this packet
-			ovnData.updateHopLength();
-			ovnData.updateHopTrace(myID);
-
-			if(clientConnections.containsKey(sink)){
-				clientConnections.get(sink).sendFromClientToClient(ovnData.getBytes());
-			}else{				
-				// Node not in list of connections, need to find nearest node
-				// Idea: take sink - nodeID, if negative, we passed the sink
-				// ignore it, else compare to min, if less set to min, continue
-				// After comparing all clientConnections end up with nearest node
-
-				int min = Integer.MAX_VALUE;
-				int compare;
-				int location = -1;
-
-				for (Integer key : clientConnections.keySet()) {
-					compare = sink - key;
-					if(compare < min && compare > 0){
-						min = compare;
-						location = key;
-					}
-				}
+		/**
+		 * Batch fast path
+		 * Records for this node are counted where they sit in the frame, the
+		 * rest are copied (with this node added to their trace) into one new
+		 * batch per next hop, and the batches sent once the frame's been read
+		 * Only records being traced are decoded, into just their hops
+		 * @param frame owned by this method, released once read
+		 */
+		private void relayBatch(ByteBuffer frame){
+			BufferPool pool = BufferPool.getInstance();
+			Iterator<DataRecord> records;
+			try {
+				records = ef.getBatchRecords(frame);
+			} catch (IOException e) {
+				System.out.println("Error reading data batch: ");
+				e.printStackTrace();
+				pool.release(frame);
+				return;
+			}
 
-				// If location is still -1, the destination node is behind us (looped around in the list)
-				// Need to determine based on max(Math.abs(a,b))
-				// Is there a better way to do this in a single loop iteration???
-
-				if(location == -1){
-					int max = Integer.MIN_VALUE;
-					for (Integer key : clientConnections.keySet()) {
-						compare = Math.abs(sink - key);
-						if(compare > max){
-							max = compare;
-							location = key;
+			NextHopTable table = nextHops;
+			RelayBatches batches = relayBatches.get();
+			batches.ensureCapacity(table != null ? table.getNeighborCount() : 0);
+			// Every record could go to the same neighbor, each gaining a hop (records are at least 32 bytes)
+			int mostBytes = OverlayNodeSendsDataBatch.FRAME_HEADER_BYTES + frame.remaining() + frame.remaining() / 8;
+
+			while(records.hasNext()){
+				DataRecord record = records.next();
+				int sink = record.getDestinationID();
+				if(sink == myID){
+					updateReceived(record.getPayLoad(), record.getDataLength(), record.verifyData(crc.get()));
+					updateLatency(record.getSendTime(), record.getHopCount());
+					if(traceLogger.sample()){
+						int[] trace = new int[record.getHopCount() + 1];
+						for(int i = 0; i<record.getHopCount(); ++i){
+							trace[i] = record.getHop(i);
 						}
+						trace[trace.length - 1] = myID;
+						traceLogger.logDelivery(myID, record.getSourceID(), record.getHopCount(), trace);
 					}
+					continue;
 				}
-				if(clientConnections.get(location) != null)
-					clientConnections.get(location).sendFromClientToClient(ovnData.getBytes());
-				else
+
+				int nextHop = table != null ? table.getNextHopIndex(sink) : -1;
+				if(nextHop == -1){
 					System.out.println("Error, node not in list of neighbors.");
+					continue;
+				}
+				ByteBuffer batch = batches.frames[nextHop];
+				if(batch == null){
+					batch = batches.frames[nextHop] = pool.acquire(mostBytes);
+					OverlayNodeSendsDataBatch.startFrame(batch);
+					batches.records[nextHop] = 0;
+					batches.dataBytes[nextHop] = 0;
+				}
+				record.relayTo(batch, myID);
+				++batches.records[nextHop];
+				batches.dataBytes[nextHop] += record.getDataLength();
+			}
+			pool.release(frame);
+
+			for(int n = 0; n<batches.frames.length; ++n){
+				ByteBuffer batch = batches.frames[n];
+				if(batch == null)
+					continue;
+				batches.frames[n] = null;
+				OverlayNodeSendsDataBatch.finishFrame(batch, 0, batches.records[n]);
+				batch.flip();
+				try {
+					table.getNeighbor(n).sendFramesFromClientToClient(batch);
+					// Only counted once they're on their way, dropped records aren't relayed
+					updateRelayed(batches.records[n], batches.dataBytes[n]);
+				} catch (IOException e) {
+					System.out.println("Error relaying data: ");
+					e.printStackTrace();
+				}
 			}
 		}
 
-		private synchronized void updateRelayed(){
-			relayTracker++;
+		@Override
+		public void onEvent(Event event, TCPConnection client) {
+			// Anything not for this node was relayed by onFrame, and
+			// anything for it that isn't being traced was counted there
+			OverlayNodeSendsData ovnData = (OverlayNodeSendsData) event;
+
+			updateReceived(ovnData.getPayLoad(), ovnData.getData().length, ovnData.isDataIntact());
+			updateLatency(ovnData.getSendTime(), ovnData.getHopTraceLength());
+			ovnData.updateHopTrace(myID);
+
+			// Debugging, printed on the trace logger's thread
+			traceLogger.logDelivery(myID, ovnData.getSourceID(), ovnData.getHopTraceLength(), ovnData.getHops());
+		}
+
+		private void updateRelayed(int packets, long dataBytes){
+			relayTracker.add(packets);
+			relayBytes.add(dataBytes);
 		}
 		
-		private synchronized void updateReceived(int payload){
-			receiveSummation += payload;
-			receiveTraker++;
+		private void updateReceived(int payload, int dataBytes, boolean intact){
+			receiveSummation.add(payload);
+			receiveTraker.increment();
+			receiveBytes.add(dataBytes);
+			if(!intact)
+				corruptTracker.increment();
 		}
 		
+		/**
+		 * Record a delivered packet's one way latency under its hop count
+		 * Packets beyond MAX_TRACKED_HOPS share the last histogram
+		 * @param sendTime epoch microseconds, 0 if the source didn't stamp it
+		 * @param hops times the packet was relayed
+		 */
+		private void updateLatency(long sendTime, int hops){
+			if(sendTime == 0)
+				return;
+			int slot = Math.min(Math.max(hops, 0), MAX_TRACKED_HOPS);
+			LatencyHistogram histogram = latencyByHops.get(slot);
+			if(histogram == null){
+				latencyByHops.compareAndSet(slot, null, new LatencyHistogram());
+				histogram = latencyByHops.get(slot);
+			}
+			histogram.record(LatencyHistogram.epochMicros() - sendTime);
+		}
+
 		private void resetCounters(){
-			this.receiveTraker = 0;
-			this.receiveSummation = 0;
-			this.relayTracker = 0;
+			this.receiveTraker.reset();
+			this.receiveSummation.reset();
+			this.relayTracker.reset();
+			this.receiveBytes.reset();
+			this.relayBytes.reset();
+			this.corruptTracker.reset();
+			for(int i = 0; i<latencyByHops.length(); ++i){
+				LatencyHistogram histogram = latencyByHops.get(i);
+				if(histogram != null)
+					histogram.reset();
+			}
 		}
 		
 		/**
@@ -622,29 +1119,80 @@ public class MessagingNode extends TCPClient {
 			myID = id;
 		}
 
-		public void setRoutingTable(Map<Integer, TCPConnectionThread> clientConnections){
-			this.clientConnections = clientConnections;
-			// Set/Reset counters each time a routing table is passed
-			resetCounters();
+		public void setRoutingTable(NextHopTable nextHops){
+			this.nextHops = nextHops;
 		}
 
 		/**
 		 * GETTERS
 		 */
 
-		public int getRelayTracker(){
-			return relayTracker;
+		public long getRelayTracker(){
+			return relayTracker.sum();
 		}
 
-		public int getReceiveTraker(){
-			return receiveTraker;
+		public long getReceiveTraker(){
+			return receiveTraker.sum();
 		}
 
 		public long getReceiveSummation(){
-			return receiveSummation;
+			return receiveSummation.sum();
+		}
+
+		public long getReceiveBytes(){
+			return receiveBytes.sum();
+		}
+
+		public long getRelayBytes(){
+			return relayBytes.sum();
+		}
+
+		public long getCorruptTracker(){
+			return corruptTracker.sum();
+		}
+
+		/**
+		 * Copy of the latency recorded so far, keyed by hop count
+		 * Copied so the report isn't changed by packets still arriving
+		 * @return SortedMap
+		 */
+		public SortedMap<Integer, LatencyHistogram> getLatencyByHops(){
+			SortedMap<Integer, LatencyHistogram> latency = new TreeMap<Integer, LatencyHistogram>();
+			for(int i = 0; i<latencyByHops.length(); ++i){
+				LatencyHistogram histogram = latencyByHops.get(i);
+				if(histogram != null && histogram.getCount() > 0){
+					LatencyHistogram copy = new LatencyHistogram();
+					copy.add(histogram);
+					latency.put(i, copy);
+				}
+			}
+			return latency;
 		}
 
 
 	}// ************** END ClientReceiver sub-class **************
 
+	/**
+	 * A receive thread's outgoing batches while it splits up a
+	 * received one, one per neighbor, kept so relaying doesn't allocate
+	 * @author sparkison
+	 *
+	 */
+	private static class RelayBatches {
+
+		// Instance variables **************
+		private ByteBuffer[] frames = new ByteBuffer[0];
+		private int[] records = new int[0];
+		private long[] dataBytes = new long[0];
+
+		private void ensureCapacity(int neighbors){
+			if(frames.length != neighbors){
+				frames = new ByteBuffer[neighbors];
+				records = new int[neighbors];
+				dataBytes = new long[neighbors];
+			}
+		}
+
+	}// ************** END RelayBatches sub-class **************
+
 }// ************** END MessagingNode class **************
@@ -7,23 +7,43 @@
 package cs455.overlay.node;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
-
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import cs455.overlay.routing.FingerDelta;
 import cs455.overlay.routing.RoutingEntry;
 import cs455.overlay.routing.RoutingTable;
-import cs455.overlay.transport.TCPConnectionThread;
+import cs455.overlay.transport.TCPConnection;
 import cs455.overlay.transport.TCPServer;
+import cs455.overlay.transport.TransportMode;
+import cs455.overlay.util.BufferPool;
+import cs455.overlay.util.DestinationDistribution;
 import cs455.overlay.util.InteractiveCommandParser;
+import cs455.overlay.util.LatencyHistogram;
 import cs455.overlay.util.StatisticsCollectorAndDisplay;
 import cs455.overlay.wireformats.Event;
-import cs455.overlay.wireformats.EventFactory;
+import cs455.overlay.wireformats.EventWriter;
 import cs455.overlay.wireformats.NodeReportsOverlaySetupStatus;
 import cs455.overlay.wireformats.OverlayNodeReportsTaskFinished;
+import cs455.overlay.wireformats.OverlayNodeReportsTrafficCounts;
+import cs455.overlay.wireformats.OverlayNodeReportsTrafficSummary;
 import cs455.overlay.wireformats.OverlayNodeSendsDeregistration;
 import cs455.overlay.wireformats.OverlayNodeSendsRegistration;
 import cs455.overlay.wireformats.Protocol;
@@ -33,15 +53,87 @@ public class Registry extends TCPServer{
 
 	// Instance variables **************
 	private StatisticsCollectorAndDisplay statistics = new StatisticsCollectorAndDisplay();
-	private EventFactory ef = EventFactory.getInstance();
+	// Each connection thread and the console marshal into their own buffer
+	private ThreadLocal<EventWriter> writer = new ThreadLocal<EventWriter>(){
+		protected EventWriter initialValue(){
+			return new EventWriter();
+		}
+	};
+	// Count reports come in every poll, they're read in place (see onFrame)
+	private ThreadLocal<OverlayNodeReportsTrafficCounts.View> countsView = new ThreadLocal<OverlayNodeReportsTrafficCounts.View>(){
+		protected OverlayNodeReportsTrafficCounts.View initialValue(){
+			return new OverlayNodeReportsTrafficCounts.View();
+		}
+	};
 	/*
 	 * Map to hold registered nodes. Object[0] is the OverlayRegisrty, Object[1] is the TCPConnection
 	 * (could have used TCPConnectionCache, but already implemented this...)
+	 * 
+	 * Events from different nodes are handled in parallel, so the shared
+	 * collections are either concurrent or locked on themselves
+	 */
+	private Map<Integer, Object[]> registeredNodes = new ConcurrentHashMap<Integer, Object[]>();
+	/*
+	 * Nodes the current task was started on, fixed when it starts (and replaced,
+	 * never changed, when one of them leaves). Each step of the round waits for
+	 * one reply from each of these by node ID, not for however many nodes are
+	 * registered right now, as nodes can join or leave mid task
+	 */
+	private volatile Set<Integer> taskNodes = Collections.emptySet();
+	private Set<Integer> nodesCompleted = new HashSet<Integer>();
+	private boolean allCompleted = true;
+	private Map<Integer, Event> nodesSummary = new LinkedHashMap<Integer, Event>();
+	private boolean allSummarized = true;
+	private volatile RoutingTable routingTable;
+	// Guards changes to the overlay, so every node gets its manifests and deltas in epoch order
+	private Object overlayLock = new Object();
+	// Bumped by each setup-overlay, and each node joining or leaving after it
+	private int overlayEpoch = 0;
+	// Nodes sent their whole manifest again this epoch, after reporting a failed setup
+	private Set<Integer> resynced = new HashSet<Integer>();
+	private static final int[] NO_NODES = new int[0];
+
+	/*
+	 * Termination detection. Once every node reports task finished, the registry
+	 * polls each node's counts until everything sent has been received,
+	 * backing off between polls, then requests the summaries
 	 */
-	private Map<Integer, Object[]> registeredNodes = new HashMap<Integer, Object[]>();
-	private List<Event> nodesCompleted = new ArrayList<Event>();
-	private List<Event> nodesSummary = new ArrayList<Event>();
-	private RoutingTable routingTable;
+	private static final long FIRST_POLL_DELAY_MILLIS = 1;
+	private static final long MAX_POLL_DELAY_MILLIS = 100;
+	// Give up waiting if nothing moves for this long (a packet was lost)
+	private static final long STALL_MILLIS = Long.getLong("cs455.termination.stallMillis", 10000);
+	private ScheduledExecutorService countsPoller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+		public Thread newThread(Runnable task){
+			Thread thread = new Thread(task, "Registry counts poller");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private Object countsLock = new Object();
+	private ScheduledFuture<?> nextPoll;
+	private int countsRound = 0;
+	private Set<Integer> countsReported = new HashSet<Integer>();
+	// Whether this round's counts have been added up, so it's only done once
+	private boolean countsChecked = true;
+	private long totalSent, totalRelayed, totalReceived;
+	private long lastProgress;
+	private long pollDelay;
+	private long stalledSince;
+
+	/*
+	 * Load sweep, started by start-rate with a max rate. Each round runs
+	 * at the next rate once the last round's summaries are in, and the
+	 * overlay wide latency of each is kept for the table at the end
+	 */
+	private Object sweepLock = new Object();
+	private int sweepRate, sweepMaxRate, sweepStep, sweepSeconds;
+	private SortedMap<Integer, LatencyHistogram> sweepResults;
+	// How nodes pick sinks in the next task, see DestinationDistribution
+	private volatile int distribution = DestinationDistribution.UNIFORM;
+	private volatile double distributionParameter = 0;
+	// Bytes of data in each packet, set with payload-size
+	private volatile int payloadBytes = 0;
+	public static final int MAX_PAYLOAD_BYTES = 1 << 20;
 
 	// Set routing table size (default is 3 if not specified)
 	private int NR = 3;
@@ -50,14 +142,16 @@ public class Registry extends TCPServer{
 	static final int MAX = 127;
 
 	// Superclass constructor **************
-	public Registry(int port) {
-		super(port, "Registry threads");
+	public Registry(int port, TransportMode mode) {
+		super(port, "Registry threads", mode);
 	}
 
 
 	public static void main (String args[]){
 
-		Registry registry = new Registry(Integer.parseInt(args[0]));
+		// Optional second argument picks the transport (blocking, virtual or nio)
+		TransportMode mode = TransportMode.parse(args.length > 1 ? args[1] : null);
+		Registry registry = new Registry(Integer.parseInt(args[0]), mode);
 
 		try {
 
@@ -82,12 +176,12 @@ public class Registry extends TCPServer{
 	/********************************************
 	 * Override method
 	 * Used to handle events from Clients
-	 * Added extra parameter (TCPConnectionThread)
+	 * Added extra parameter (TCPConnection)
 	 * to make response messages easier to deal with
 	 * 
 	 * @return void
 	 ********************************************/
-	public void onEvent(Event event, TCPConnectionThread client){
+	public void onEvent(Event event, TCPConnection client){
 
 		switch (event.getType()){
 
@@ -100,7 +194,7 @@ public class Registry extends TCPServer{
 			break;
 
 		case Protocol.NODE_REPORTS_OVERLAY_SETUP_STATUS:
-			getSetupStatus(event);
+			getSetupStatus(event, client);
 			break;
 
 		case Protocol.OVERLAY_NODE_REPORTS_TASK_FINISHED:
@@ -118,6 +212,28 @@ public class Registry extends TCPServer{
 
 	}// END onEvent **************
 
+	/**
+	 * Count reports are read straight out of the frame, every
+	 * node answers every poll and only the counts are needed
+	 * Everything else is decoded and passed to onEvent
+	 */
+	@Override
+	protected boolean onFrame(ByteBuffer frame, TCPConnection client){
+		if(frame.remaining() < 4 || frame.getInt(frame.position()) != Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_COUNTS)
+			return false;
+		OverlayNodeReportsTrafficCounts.View counts = countsView.get();
+		counts.wrap(frame);
+		try{
+			nodeReportsCounts(counts);
+		}catch(IndexOutOfBoundsException e){
+			System.out.println("Error reading traffic counts: ");
+			e.printStackTrace();
+		}finally{
+			BufferPool.getInstance().release(frame);
+		}
+		return true;
+	}
+
 
 	/******************************************
 	 *************** Event Types **************
@@ -129,34 +245,106 @@ public class Registry extends TCPServer{
 	
 	private void nodeReportsFinish(Event event){
 		OverlayNodeReportsTaskFinished taskFinish = (OverlayNodeReportsTaskFinished) event;
-		nodesCompleted.add(taskFinish);
-		if(nodesCompleted.size() == registeredNodes.size()){
-			System.out.print("all nodes reported task complete waiting 5 seconds to request summary...");
-			// All nodes have reported task finish
-			try {
-				/*
-				 * Sleep for 5 seconds to allow threads time to finish up
-				 * since it's possible clients have finished sending, but there
-				 * may still be threads outstanding sending messages...
-				 */
-				Thread.sleep(5000);
-			} catch (InterruptedException e1) {
-				e1.printStackTrace();
+		synchronized(nodesCompleted){
+			// Only nodes the task was started on, a repeat is the same node
+			if(taskNodes.contains(taskFinish.getNodeID()))
+				nodesCompleted.add(taskFinish.getNodeID());
+		}
+		checkAllCompleted();
+	}
+
+	private void checkAllCompleted(){
+		synchronized(nodesCompleted){
+			if(allCompleted || taskNodes.isEmpty() || !nodesCompleted.containsAll(taskNodes))
+				return;
+			allCompleted = true;
+		}
+		System.out.print("all nodes reported task complete waiting for packets in flight...");
+		// All nodes have reported task finish, start polling their counts
+		synchronized(countsLock){
+			lastProgress = -1;
+			pollDelay = FIRST_POLL_DELAY_MILLIS;
+			stalledSince = System.currentTimeMillis();
+		}
+		requestCounts();
+	}
+
+	private void nodeReportsCounts(OverlayNodeReportsTrafficCounts.View counts){
+		synchronized(countsLock){
+			// Answer to an earlier poll (or an earlier task), or a repeat, ignore it
+			if(counts.getRound() != countsRound || !taskNodes.contains(counts.getNodeID()) 
+					|| !countsReported.add(counts.getNodeID()))
+				return;
+			totalSent += counts.getNumPacketsSent();
+			totalRelayed += counts.getNumPacketsRelayed();
+			totalReceived += counts.getNumPacketsReceived();
+		}
+		checkCounts();
+	}
+
+	private void checkCounts(){
+		boolean done = false;
+		synchronized(countsLock){
+			Set<Integer> nodes = taskNodes;
+			if(countsChecked || nodes.isEmpty() || !countsReported.containsAll(nodes))
+				return;
+			countsChecked = true;
+
+			/*
+			 * Every node finished sending before the polls started, so sent is final.
+			 * Received only goes up, so once the totals balance nothing is left in flight
+			 */
+			long now = System.currentTimeMillis();
+			long progress = totalRelayed + totalReceived;
+			if(totalSent == totalReceived){
+				done = true;
+			}else if(progress != lastProgress){
+				lastProgress = progress;
+				stalledSince = now;
+			}else if(now - stalledSince >= STALL_MILLIS){
+				System.out.print((totalSent - totalReceived) + " packets never arrived...");
+				done = true;
+			}
+
+			if(!done){
+				nextPoll = countsPoller.schedule(new Runnable(){
+					public void run(){
+						requestCounts();
+					}
+				}, pollDelay, TimeUnit.MILLISECONDS);
+				pollDelay = Math.min(pollDelay * 2, MAX_POLL_DELAY_MILLIS);
 			}
+		}
+		if(done){
 			System.out.print("requesting data summary from each node.");
 			requestSummary();
 		}
 	}
 
 	private void nodeReportsSummary(Event event){
-		nodesSummary.add(event);
-		if(nodesSummary.size() == registeredNodes.size()){
-			// All nodes have reported task finish
-			statistics.sendNodeData(nodesSummary);
+		int nodeID = ((OverlayNodeReportsTrafficSummary) event).getNodeID();
+		synchronized(nodesSummary){
+			if(taskNodes.contains(nodeID))
+				nodesSummary.put(nodeID, event);
+		}
+		checkAllSummarized();
+	}
+
+	private void checkAllSummarized(){
+		List<Event> summaries;
+		synchronized(nodesSummary){
+			Set<Integer> nodes = taskNodes;
+			if(allSummarized || nodes.isEmpty() || !nodesSummary.keySet().containsAll(nodes))
+				return;
+			allSummarized = true;
+			summaries = new ArrayList<Event>(nodesSummary.values());
 		}
+		// All nodes have reported task finish
+		statistics.sendNodeData(summaries);
+		continueSweep();
 	}
 
-	private void getSetupStatus(Event event){
+	private void getSetupStatus(Event event, TCPConnection client){
 
 		NodeReportsOverlaySetupStatus nodeSetupStatus = (NodeReportsOverlaySetupStatus) event;
 		int status = nodeSetupStatus.getStatus();
@@ -165,31 +353,42 @@ public class Registry extends TCPServer{
 			// Setup successful, status = nodeID
 		}else{
 			// Setup failed
-			// Routing table is now void, need to rebuild
-			resetRoutingTable();
+			int nodeID = client.getThreadID();
+			synchronized(overlayLock){
+				if(routingTable != null && routingTable.contains(nodeID) && resynced.add(nodeID)){
+					// Node may just be out of step with the overlay, send it the whole manifest again (once an epoch)
+					// Same epoch, so the node only reinstalls its routing, its counters for the round are kept
+					System.out.println("Node " + nodeID + " reported: " + nodeSetupStatus.getInformation() + ", resending manifest");
+					sendManifest(nodeID, client);
+				}else{
+					// Routing table is now void, need to rebuild
+					resetRoutingTable();
+				}
+			}
 		}
 	}
 
-	private void deRegisterNode(Event event, TCPConnectionThread client){
+	private void deRegisterNode(Event event, TCPConnection client){
 		int status = -1;
 		OverlayNodeSendsDeregistration deregister = (OverlayNodeSendsDeregistration) event;
 		if(registeredNodes.remove(deregister.getNodeID()) != null){
 			status = 1;
 		}
-		Event deregisterStatus = ef.buildEvent(Protocol.REGISTRY_REPORTS_DEREGISTRATION_STATUS, "" + status);
+		byte[] deregisterStatus = writer.get().registryReportsDeregistrationStatus(status).toByteArray();
 		//System.out.println("Node " + deregister.getNodeID() + " deregistered with status " + status);
 		try {
 			// Send deRegistration status back to client
-			client.sendFromRegistryToClient(deregisterStatus.getBytes());
-			// Routing table is now void, need to rebuild
-			resetRoutingTable();
+			client.sendFromRegistryToClient(deregisterStatus);
+			// Only the nodes that pointed at it need to change
+			removeFromOverlay(deregister.getNodeID());
+			leaveTask(deregister.getNodeID());
 		} catch (IOException e1) {
 			System.out.println("Error sending deregistration status to client: ");
 			e1.printStackTrace();
 		}
 	}
 
-	private void registerNode(Event event, TCPConnectionThread client){
+	private void registerNode(Event event, TCPConnection client){
 
 		/*
 		 * Register Client node
@@ -222,7 +421,10 @@ public class Registry extends TCPServer{
 		if(clientNode.getipAddress().equals(compare)){
 			// Then make sure Node not already in list of registered clients
 			if(!registeredNodes.containsValue(messageNode)){
-				registeredNodes.put(nodeID, messageNode);
+				// Another node may have been handed the same ID in the meantime, pick again
+				while(registeredNodes.putIfAbsent(nodeID, messageNode) != null){
+					nodeID = getNodeID();
+				}
 				status = nodeID;
 				// Set the message
 				message = "Registration request successful. The number of messaging nodes currently constituting the overlay is (" + registeredNodes.size() + ")";
@@ -235,11 +437,14 @@ public class Registry extends TCPServer{
 		}
 
 		// Registration status event
-		Event registrationStatus = ef.buildEvent(Protocol.REGISTRY_REPORTS_REGISTRATION_STATUS, status + ";" + message.length() + ";" + message);
+		byte[] registrationStatus = writer.get().registryReportsRegistrationStatus(status, message).toByteArray();
 
 		try {
 			client.setThreadID(nodeID);
-			client.sendFromRegistryToClient(registrationStatus.getBytes());
+			client.sendFromRegistryToClient(registrationStatus);
+			// Joining an overlay that's already setup
+			if(status != -1)
+				addToOverlay(nodeID, client, clientNode.getPortNum());
 		} catch (IOException exc) {
 			System.out.println("Error sending data to client: ");
 			exc.printStackTrace();
@@ -259,10 +464,18 @@ public class Registry extends TCPServer{
 
 	// Called by getSetupStatus method once all nodes report task finish
 	private void requestSummary(){
-		Event requestSummary = ef.buildEvent(Protocol.REGISTRY_REQUESTS_TRAFFIC_SUMMARY, "");
-		for (Integer key : registeredNodes.keySet()) {
+		synchronized(nodesSummary){
+			nodesSummary.clear();
+			allSummarized = false;
+		}
+		// Marshalled once, the same bytes go to every node
+		byte[] requestSummary = writer.get().registryRequestsTrafficSummary().toByteArray();
+		for (Integer key : taskNodes) {
+			Object[] node = registeredNodes.get(key);
+			if(node == null)
+				continue;
 			try {
-				( (TCPConnectionThread) registeredNodes.get(key)[1] ).sendFromRegistryToClient(requestSummary.getBytes());
+				( (TCPConnection) node[1] ).sendFromRegistryToClient(requestSummary);
 			} catch (IOException e) {
 				System.out.println("Error sending requesting traffic summary to clients: ");
 				e.printStackTrace();
@@ -270,30 +483,188 @@ public class Registry extends TCPServer{
 		}
 	}
 
+	// Called once all nodes report task finish, and again until the counts balance
+	private void requestCounts(){
+		int round;
+		synchronized(countsLock){
+			round = ++countsRound;
+			countsReported.clear();
+			countsChecked = false;
+			totalSent = totalRelayed = totalReceived = 0;
+		}
+		byte[] requestCounts = writer.get().registryRequestsTrafficCounts(round).toByteArray();
+		for (Integer key : taskNodes) {
+			Object[] node = registeredNodes.get(key);
+			if(node == null)
+				continue;
+			try {
+				( (TCPConnection) node[1] ).sendFromRegistryToClient(requestCounts);
+			} catch (IOException e) {
+				System.out.println("Error sending requesting traffic counts to clients: ");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Set how nodes pick sinks from the next task on
+	 * Called by command parser, needs to be public
+	 * @param distribution one of the DestinationDistribution constants
+	 * @param parameter
+	 */
+	public void setDistribution(int distribution, double parameter){
+		this.distribution = distribution;
+		this.distributionParameter = parameter;
+	}
+
+	/**
+	 * Set how many bytes of data each packet carries from the next task on
+	 * Called by command parser, needs to be public
+	 * @param payloadBytes 0 to MAX_PAYLOAD_BYTES
+	 */
+	public void setPayloadBytes(int payloadBytes){
+		this.payloadBytes = payloadBytes;
+		System.out.println("Packets will carry " + payloadBytes + " bytes of data");
+	}
+
 	// Called by command parser, needs to be public
 	public void requestTaskInitiate(int numMessages){
+		// A plain start ends any sweep that was running
+		synchronized(sweepLock){
+			sweepResults = null;
+		}
+		requestTaskInitiate(numMessages, 0);
+	}
+
+	/**
+	 * Run a task at a fixed offered load, or a series of them
+	 * Called by command parser, needs to be public
+	 * @param packetsPerSecond each node sends this many packets a second
+	 * @param seconds how long each rate runs for
+	 * @param maxPacketsPerSecond sweep up to this rate, or the same as packetsPerSecond for one round
+	 * @param step how much to raise the rate each round
+	 */
+	public void requestRateSweep(int packetsPerSecond, int seconds, int maxPacketsPerSecond, int step){
+		// Checked before any sweep state is set, a rejected sweep leaves none behind for the next task
+		if(!isOverlaySetup())
+			return;
+		int topRate = Math.max(packetsPerSecond, maxPacketsPerSecond);
+		if((long) topRate * seconds > Integer.MAX_VALUE){
+			System.out.println(topRate + " packets/sec for " + seconds + " seconds is too many packets for one task");
+			return;
+		}
+		synchronized(sweepLock){
+			sweepRate = packetsPerSecond;
+			sweepMaxRate = maxPacketsPerSecond;
+			sweepStep = Math.max(1, step);
+			sweepSeconds = seconds;
+			sweepResults = new TreeMap<Integer, LatencyHistogram>();
+		}
+		startSweepRound(packetsPerSecond, seconds);
+	}
 
+	// Every rate was checked when the sweep started, the overlay may have gone since
+	private void startSweepRound(int packetsPerSecond, int seconds){
+		if(!requestTaskInitiate(packetsPerSecond * seconds, packetsPerSecond)){
+			synchronized(sweepLock){
+				sweepResults = null;
+			}
+		}
+	}
+
+	/**
+	 * Called once a round's summaries are in, record the round and start
+	 * the next rate if a sweep is running, print the sweep once it's done
+	 */
+	private void continueSweep(){
+		int nextRate;
+		SortedMap<Integer, LatencyHistogram> results;
+		synchronized(sweepLock){
+			if(sweepResults == null)
+				return;
+			sweepResults.put(sweepRate, statistics.getLatency());
+			nextRate = sweepRate + sweepStep;
+			if(nextRate <= sweepMaxRate){
+				sweepRate = nextRate;
+				results = null;
+			}else{
+				results = sweepResults;
+				sweepResults = null;
+			}
+		}
+		if(results != null){
+			// Only worth a table if more than one rate was run
+			if(results.size() > 1)
+				statistics.printSweep(results);
+		}else{
+			startSweepRound(nextRate, sweepSeconds);
+		}
+	}
+
+	// Says so if it isn't
+	private boolean isOverlaySetup(){
 		if(routingTable == null || routingTable.isEmpty()){
 			System.out.println("The overlay has not yet been setup, please use \"setup-overlay [number-of-messages]\" command first to setup the overlay");
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Tell every node to start sending
+	 * @param numMessages per node
+	 * @param packetsPerSecond per node, 0 to send as fast as possible
+	 * @return boolean false if the overlay isn't set up
+	 */
+	private boolean requestTaskInitiate(int numMessages, int packetsPerSecond){
+
+		if(!isOverlaySetup()){
+			return false;
 		}else{
 			
-			// Reset completed and summary for new round
-			nodesCompleted.clear();
-			nodesSummary.clear();
+			// Reset completed and summary for new round, and fix which nodes it waits on
+			synchronized(nodesCompleted){
+				nodesCompleted.clear();
+				allCompleted = false;
+				taskNodes = Collections.unmodifiableSet(new HashSet<Integer>(registeredNodes.keySet()));
+			}
+			synchronized(nodesSummary){
+				nodesSummary.clear();
+				allSummarized = true;
+			}
+			// Stop polling for the last task, if it's still going
+			synchronized(countsLock){
+				if(nextPoll != null)
+					nextPoll.cancel(false);
+				++countsRound;
+				countsReported.clear();
+				countsChecked = true;
+			}
 			
-			System.out.print("Starting task with " + numMessages + " packets...");
-
-			Event intiateTask = ef.buildEvent(Protocol.REGISTRY_REQUESTS_TASK_INITIATE, "" + numMessages);
-
-			for (Integer key : registeredNodes.keySet()) {
+			int distribution = this.distribution;
+			double distributionParameter = this.distributionParameter;
+			String destinations = distribution != DestinationDistribution.UNIFORM 
+					? " (" + DestinationDistribution.describe(distribution, distributionParameter) + ")" : "";
+			if(packetsPerSecond > 0)
+				System.out.print("Starting task with " + numMessages + " packets at " + packetsPerSecond + " packets/sec" + destinations + "...");
+			else
+				System.out.print("Starting task with " + numMessages + " packets" + destinations + "...");
+
+			byte[] intiateTask = writer.get().registryRequestsTaskInitiate(numMessages, packetsPerSecond, 
+					distribution, distributionParameter, payloadBytes).toByteArray();
+
+			for (Integer key : taskNodes) {
+				Object[] node = registeredNodes.get(key);
+				if(node == null)
+					continue;
 				try {
-					( (TCPConnectionThread) registeredNodes.get(key)[1] ).sendFromRegistryToClient(intiateTask.getBytes());
+					( (TCPConnection) node[1] ).sendFromRegistryToClient(intiateTask);
 				} catch (IOException e) {
 					System.out.println("Error sending task initate message to clients: ");
 					e.printStackTrace();
 				}
 			}
-					
+			return true;
 		}
 
 	}
@@ -302,44 +673,137 @@ public class Registry extends TCPServer{
 	public void sendNodeManifest(){
 
 		if(registeredNodes.size() > 1){
-			// A list to hold each entry as a RoutingEntry
-			List<RoutingEntry> entries = new ArrayList<RoutingEntry>();
+			synchronized(overlayLock){
+				setupOverlay();
+			}
+		}else{
+			System.out.println("Unable to setup overlay, you have " + registeredNodes.size() + " node(s) registerted, need a minimum of two.");
+		}
 
-			// Get each registered node and build a routing entry
-			for (Entry<Integer, Object[]> entry : registeredNodes.entrySet()) {
+	}
 
-				OverlayNodeSendsRegistration val = (OverlayNodeSendsRegistration) entry.getValue()[0];
-				int nodeID = entry.getKey();
-				entries.add(new RoutingEntry(nodeID, val.getipAddressLength(), val.getipAddress(), val.getPortNum()));
+	// Build the routing table and send each node its manifest, under overlayLock
+	private void setupOverlay(){
 
-			}
+		long setupStart = System.nanoTime();
+		// A list to hold each entry as a RoutingEntry
+		List<RoutingEntry> entries = new ArrayList<RoutingEntry>();
 
-			// Build the routing table using the RoutingEntry list 
-			// created above
-			routingTable = new RoutingTable(NR, entries);
+		// Get each registered node and build a routing entry
+		for (Entry<Integer, Object[]> entry : registeredNodes.entrySet()) {
 
+			OverlayNodeSendsRegistration val = (OverlayNodeSendsRegistration) entry.getValue()[0];
+			TCPConnection client = (TCPConnection) entry.getValue()[1];
+			int nodeID = entry.getKey();
+			// Registration checked the IP sent matches the socket's, so its raw address goes in the manifests
+			entries.add(new RoutingEntry(nodeID, client.getInetAddress(), val.getPortNum()));
 
-			//System.out.println("The nodes list is: " + rt.getNodesList());
+		}
 
-			for (Integer key : registeredNodes.keySet()) {
-				String message =  NR + ";" + routingTable.getNodesList() + ";" + routingTable.getNodesTable(key) + ";" + registeredNodes.size();
-				Event e = ef.buildEvent(Protocol.REGISTRY_SENDS_NODE_MANIFEST, message);
-				TCPConnectionThread client = (TCPConnectionThread)registeredNodes.get(key)[1];
-				try {
-					// System.out.println("Sending manifest to node: " + client.toString());
-					client.sendFromRegistryToClient(e.getBytes());
-				} catch (IOException e1) {
-					System.out.println("Error sending manifest to client " + key + ": ");
-					e1.printStackTrace();
-				}
+		// Build the routing table using the RoutingEntry list 
+		// created above
+		routingTable = new RoutingTable(NR, entries);
+		++overlayEpoch;
+		resynced.clear();
+
+		int[] nodeIDs = routingTable.getNodeIDs();
+		for (int key : nodeIDs) {
+			Object[] node = registeredNodes.get(key);
+			// Gone already, it'll be taken out of the overlay next
+			if(node != null)
+				sendManifest(key, (TCPConnection) node[1]);
+		}
+		
+		System.out.println("Overlay setup complete with NR " + NR + ", epoch " + overlayEpoch + ", " + nodeIDs.length 
+				+ " manifests sent in " + (System.nanoTime() - setupStart) / 1000 + "us");
+
+	}
+
+	// A node's whole manifest, at the current epoch, under overlayLock
+	private void sendManifest(int nodeID, TCPConnection client){
+		EventWriter manifest = writer.get().registrySendsNodeManifest(overlayEpoch, NR, routingTable.getNodeIDs(), 
+				routingTable.getFingers(nodeID));
+		try {
+			// System.out.println("Sending manifest to node: " + client.toString());
+			client.sendFromRegistryToClient(manifest.toByteArray());
+		} catch (IOException e1) {
+			System.out.println("Error sending manifest to client " + nodeID + ": ");
+			e1.printStackTrace();
+		}
+	}
+
+	/**
+	 * Add a newly registered node to the running overlay, if there is one
+	 * It gets a whole manifest, everyone else a delta, only its
+	 * predecessor's fingers change
+	 * @param nodeID
+	 * @param client
+	 * @param portNum
+	 */
+	private void addToOverlay(int nodeID, TCPConnection client, int portNum){
+		synchronized(overlayLock){
+			// No overlay yet, or setup-overlay already picked it up
+			if(routingTable == null || routingTable.contains(nodeID))
+				return;
+			Map<Integer, FingerDelta> changes = routingTable.add(new RoutingEntry(nodeID, client.getInetAddress(), portNum));
+			++overlayEpoch;
+			resynced.clear();
+			sendManifest(nodeID, client);
+			sendManifestDeltas(NO_NODES, new int[]{nodeID}, changes);
+			System.out.println("Node " + nodeID + " joined the overlay, epoch " + overlayEpoch + ", " 
+					+ changes.size() + " routing table(s) changed");
+		}
+	}
+
+	/**
+	 * Take a node out of the running overlay, if it's in it
+	 * Every node gets a delta, only those whose fingers pointed at it
+	 * (O(log N) of them) have any connections to change
+	 * @param nodeID
+	 */
+	private void removeFromOverlay(int nodeID){
+		synchronized(overlayLock){
+			if(routingTable == null || !routingTable.contains(nodeID))
+				return;
+			if(routingTable.getNodeIDs().length <= 2){
+				// Not enough nodes left for an overlay, need to rebuild
+				resetRoutingTable();
+				return;
 			}
-			
-			System.out.println("Overlay setup complete with NR " + NR);
-			
-		}else{
-			System.out.println("Unable to setup overlay, you have " + registeredNodes.size() + " node(s) registerted, need a minimum of two.");
+			Map<Integer, FingerDelta> changes = routingTable.remove(nodeID);
+			++overlayEpoch;
+			resynced.clear();
+			sendManifestDeltas(new int[]{nodeID}, NO_NODES, changes);
+			System.out.println("Node " + nodeID + " left the overlay, epoch " + overlayEpoch + ", " 
+					+ changes.size() + " routing table(s) changed");
 		}
+	}
 
+	// Send the current epoch's delta to every node in the overlay but the ones just added, under overlayLock
+	private void sendManifestDeltas(int[] removedNodes, int[] addedNodes, Map<Integer, FingerDelta> changes){
+		// Most nodes' fingers don't change, marshalled once, the same bytes go to each of them
+		byte[] unchanged = writer.get().registrySendsManifestDelta(overlayEpoch, removedNodes, addedNodes, 
+				NO_NODES, new ArrayList<RoutingEntry>()).toByteArray();
+		for (int key : routingTable.getNodeIDs()) {
+			if(Arrays.binarySearch(addedNodes, key) >= 0)
+				continue;
+			Object[] node = registeredNodes.get(key);
+			// Gone already, it'll be taken out of the overlay next
+			if(node == null)
+				continue;
+			FingerDelta delta = changes.get(key);
+			try {
+				if(delta == null){
+					( (TCPConnection) node[1] ).sendFromRegistryToClient(unchanged);
+				}else{
+					( (TCPConnection) node[1] ).sendFromRegistryToClient(writer.get().registrySendsManifestDelta(overlayEpoch, 
+							removedNodes, addedNodes, delta.getRemoved(), delta.getAdded()).toByteArray());
+				}
+			} catch (IOException e1) {
+				System.out.println("Error sending manifest delta to client " + key + ": ");
+				e1.printStackTrace();
+			}
+		}
 	}
 
 	/******************************************
@@ -404,32 +868,56 @@ public class Registry extends TCPServer{
 	 * Called by the command parser
 	 */
 	public void listRoutingTables(){
-		if(routingTable != null){
-			System.out.println(routingTable.getRoutingTables());
-		}else{
-			System.out.println("Routing table not yet setup. Please issue the \"setup-overlay [num-routing-table-entries]\" command first.");
+		synchronized(overlayLock){
+			if(routingTable != null){
+				System.out.println("Overlay epoch " + overlayEpoch);
+				System.out.println(routingTable.getRoutingTables());
+			}else{
+				System.out.println("Routing table not yet setup. Please issue the \"setup-overlay [num-routing-table-entries]\" command first.");
+			}
 		}
 	}
 	
+	/**
+	 * Stop waiting on a node that left part way through a round
+	 * Whichever step the round is at may have only been waiting on it.
+	 * Its counts are gone with it, so the totals may no longer balance
+	 * @param nodeID
+	 */
+	private void leaveTask(int nodeID){
+		synchronized(nodesCompleted){
+			if(!taskNodes.contains(nodeID))
+				return;
+			Set<Integer> remaining = new HashSet<Integer>(taskNodes);
+			remaining.remove(nodeID);
+			taskNodes = Collections.unmodifiableSet(remaining);
+		}
+		checkAllCompleted();
+		checkCounts();
+		checkAllSummarized();
+	}
+
 	// Clear the routing table
+	// Dropped rather than cleared so a reader on another thread never sees it half empty
 	private void resetRoutingTable(){
-		if(routingTable != null)
-			routingTable.clear();
+		routingTable = null;
 	}
 
 	// Hook methods for debugging connection issues
-	protected void clientDisconnected(TCPConnectionThread client) {
+	protected void clientDisconnected(TCPConnection client) {
 		// Client disconnected, remove them from list of registered nodes
 		registeredNodes.remove(client.getThreadID());
-		// Routing table is now void, need to rebuild
-		resetRoutingTable();
+		// Only the nodes that pointed at it need to change
+		removeFromOverlay(client.getThreadID());
+		leaveTask(client.getThreadID());
 	}
 
-	protected void clientException(TCPConnectionThread client, Throwable exception) {
+	protected void clientException(TCPConnection client, Throwable exception) {
 		// Client had connection exception, remove them from list of registered nodes
 		registeredNodes.remove(client.getThreadID());
-		// Routing table is now void, need to rebuild
-		resetRoutingTable();
+		// Only the nodes that pointed at it need to change
+		removeFromOverlay(client.getThreadID());
+		leaveTask(client.getThreadID());
 	}
 
 } // ************** END Registry class **************
@@ -0,0 +1,51 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.routing;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes to one node's routing entries (fingers) when a node
+ * joins or leaves a running overlay, see RoutingTable.add and remove
+ * @author sparkison
+ *
+ */
+
+public class FingerDelta {
+
+	// Instance variables **************
+	private List<Integer> removed = new ArrayList<Integer>();
+	private List<RoutingEntry> added = new ArrayList<RoutingEntry>();
+
+	/**
+	 * @return node IDs of the fingers to drop
+	 */
+	public int[] getRemoved(){
+		int[] ids = new int[removed.size()];
+		for(int i = 0; i<ids.length; ++i){
+			ids[i] = removed.get(i);
+		}
+		return ids;
+	}
+
+	/**
+	 * @return the fingers to add
+	 */
+	public List<RoutingEntry> getAdded(){
+		return added;
+	}
+
+	void remove(int nodeID){
+		removed.add(nodeID);
+	}
+
+	void add(RoutingEntry entry){
+		added.add(entry);
+	}
+
+}// ************** END FingerDelta class **************
@@ -0,0 +1,129 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.routing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cs455.overlay.transport.TCPConnection;
+import cs455.overlay.transport.TCPServer;
+
+/**
+ * A node's connections to its fingers, kept from one manifest (and
+ * one task) to the next
+ * Connections are keyed by the neighbor's listening address (ip:port),
+ * not its node ID, so a new manifest only closes connections none of
+ * its fingers use, and only dials fingers that aren't already connected.
+ * Repeated setup/start cycles reuse the same sockets (and threads)
+ * @author sparkison
+ *
+ */
+
+public class NeighborConnections {
+
+	// Instance variables **************
+	private TCPServer server;
+	// Live connections by neighbor address, dropped as soon as one is lost
+	private Map<String, TCPConnection> connections = new ConcurrentHashMap<String, TCPConnection>();
+	private List<RoutingEntry> fingers = new ArrayList<RoutingEntry>();
+
+	// Constructor **************
+	/**
+	 * @param server dials the connections, and is told when they drop
+	 */
+	public NeighborConnections(TCPServer server){
+		this.server = server;
+	}
+
+	/**
+	 * Switch to a new set of fingers, from a manifest or a delta
+	 * Connections no finger uses any more are closed, the rest are
+	 * left as they are, new fingers are dialed by connect()
+	 * @param fingers
+	 */
+	public synchronized void setFingers(List<RoutingEntry> fingers){
+		this.fingers = new ArrayList<RoutingEntry>(fingers);
+
+		Set<String> wanted = new HashSet<String>();
+		for(RoutingEntry finger : fingers){
+			wanted.add(addressOf(finger));
+		}
+		List<TCPConnection> stale = new ArrayList<TCPConnection>();
+		for(Map.Entry<String, TCPConnection> connection : connections.entrySet()){
+			if(!wanted.contains(connection.getKey()))
+				stale.add(connection.getValue());
+		}
+		connections.keySet().retainAll(wanted);
+
+		// Out of the map first, closing calls back into connectionLost
+		for(TCPConnection connection : stale){
+			try {
+				connection.close();
+			} catch (IOException e) {
+				System.out.println("Error closing connection to former neighbor: ");
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Dial every finger that isn't connected yet
+	 * @return int number of fingers still without a connection
+	 */
+	public synchronized int connect(){
+		int missing = 0;
+		for(RoutingEntry finger : fingers){
+			String address = addressOf(finger);
+			if(connections.containsKey(address))
+				continue;
+			try {
+				connections.put(address, server.connect(finger.getIpAddress(), finger.getPortNum()));
+			} catch (IOException e) {
+				++missing;
+				System.out.println("Error connecting to client: ");
+				e.printStackTrace();
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Forget a connection that dropped, so the next connect() dials it again
+	 * Called from the server's disconnect and exception hooks, for any
+	 * connection, those that aren't a neighbor's are ignored
+	 * Doesn't lock, the hooks run on the transport's threads
+	 * @param connection
+	 */
+	public void connectionLost(TCPConnection connection){
+		connections.values().remove(connection);
+	}
+
+	/**
+	 * Each connected finger's node ID to its connection, for NextHopTable
+	 * @return Map, a copy
+	 */
+	public synchronized Map<Integer, TCPConnection> getConnections(){
+		Map<Integer, TCPConnection> byNodeID = new HashMap<Integer, TCPConnection>();
+		for(RoutingEntry finger : fingers){
+			TCPConnection connection = connections.get(addressOf(finger));
+			if(connection != null)
+				byNodeID.put(finger.getNodeID(), connection);
+		}
+		return byNodeID;
+	}
+
+	private static String addressOf(RoutingEntry entry){
+		return entry.getIpAddress() + ":" + entry.getPortNum();
+	}
+
+}// ************** END NeighborConnections class **************
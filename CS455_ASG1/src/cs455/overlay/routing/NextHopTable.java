@@ -0,0 +1,123 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.routing;
+
+import java.util.Map;
+
+import cs455.overlay.transport.TCPConnection;
+
+/**
+ * Where to send a packet for each destination, worked out once
+ * when the neighbor connections are set up, rather than per packet
+ * Slots are indexed by destination ID, so a lookup is one array load
+ *
+ * Immutable once built, a new table is built for a new manifest
+ * @author sparkison
+ *
+ */
+
+public class NextHopTable {
+
+	// Instance variables **************
+	// Index into neighbors for each destination, -1 if there's nowhere to send it
+	private int[] nextHop;
+	private int[] neighborIDs;
+	private TCPConnection[] neighbors;
+
+	// Constructor **************
+	/**
+	 * @param connections neighbor ID to its connection
+	 * @param allNodes every node ID in the overlay
+	 */
+	public NextHopTable(Map<Integer, TCPConnection> connections, int[] allNodes){
+		neighborIDs = new int[connections.size()];
+		neighbors = new TCPConnection[connections.size()];
+		int n = 0;
+		for(Map.Entry<Integer, TCPConnection> entry : connections.entrySet()){
+			neighborIDs[n] = entry.getKey();
+			neighbors[n] = entry.getValue();
+			++n;
+		}
+
+		int maxID = 0;
+		for(int id : allNodes){
+			maxID = Math.max(maxID, id);
+		}
+		for(int id : neighborIDs){
+			maxID = Math.max(maxID, id);
+		}
+
+		// Every slot up to the highest ID, not just the node IDs, so any destination is one load
+		nextHop = new int[maxID + 1];
+		for(int sink = 0; sink<nextHop.length; ++sink){
+			nextHop[sink] = select(sink);
+		}
+	}
+
+	/**
+	 * Neighbor to pass a packet for sink on to
+	 * @param sink
+	 * @return TCPConnection, or null if there are no neighbors
+	 */
+	public TCPConnection getNextHop(int sink){
+		int index = getNextHopIndex(sink);
+		return index != -1 ? neighbors[index] : null;
+	}
+
+	/**
+	 * Same as getNextHop, but which neighbor (0 to getNeighborCount()-1)
+	 * For callers keeping something per neighbor, like a buffer
+	 * @param sink
+	 * @return int, or -1 if there are no neighbors
+	 */
+	public int getNextHopIndex(int sink){
+		if(sink >= 0 && sink < nextHop.length)
+			return nextHop[sink];
+		// Outside the overlay's ID range, work it out the slow way
+		return select(sink);
+	}
+
+	public int getNeighborCount(){
+		return neighbors.length;
+	}
+
+	public TCPConnection getNeighbor(int index){
+		return neighbors[index];
+	}
+
+	/**
+	 * Pick the neighbor for sink
+	 * Sink itself if it's a neighbor, otherwise the closest neighbor
+	 * before it, if all neighbors are past it (looped around) the one
+	 * furthest away
+	 * @param sink
+	 * @return int index into neighbors, -1 if there are none
+	 */
+	private int select(int sink){
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		int before = -1;
+		int furthest = -1;
+		for(int i = 0; i<neighborIDs.length; ++i){
+			int compare = sink - neighborIDs[i];
+			if(compare == 0)
+				return i;
+			if(compare > 0 && compare < min){
+				min = compare;
+				before = i;
+			}
+			if(Math.abs(compare) > max){
+				max = Math.abs(compare);
+				furthest = i;
+			}
+		}
+		if(before != -1)
+			return before;
+		return furthest;
+	}
+
+}// ************** END NextHopTable class **************
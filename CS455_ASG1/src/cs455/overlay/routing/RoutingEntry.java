@@ -6,18 +6,30 @@
 
 package cs455.overlay.routing;
 
+import java.net.InetAddress;
+
 public class RoutingEntry implements Comparable<RoutingEntry>{
 
 		private int nodeID;
 		private int ipLength;
 		private String ipAddress;
 		private int portNum;
+		// Raw address, 4 bytes for IPv4 or 16 for IPv6, as the manifest carries it
+		private byte[] address;
 		
-		public RoutingEntry(int nodeID, int ipLength, String ipAddress, int portNum){
+		/**
+		 * Entries are only made from an address that's already resolved,
+		 * the Registry's from the node's socket, so nothing is looked up later
+		 * @param nodeID
+		 * @param address
+		 * @param portNum
+		 */
+		public RoutingEntry(int nodeID, InetAddress address, int portNum){
 			this.nodeID = nodeID;
-			this.ipLength = ipLength;
-			this.ipAddress = ipAddress;
+			this.ipAddress = address.getHostAddress();
+			this.ipLength = ipAddress.length();
 			this.portNum = portNum;
+			this.address = address.getAddress();
 		}
 
 		/**
@@ -48,6 +60,13 @@ public class RoutingEntry implements Comparable<RoutingEntry>{
 			return portNum;
 		}
 
+		/**
+		 * @return the raw address, 4 or 16 bytes
+		 */
+		public byte[] getAddress() {
+			return address;
+		}
+
 		/* (non-Javadoc)
 		 * @see java.lang.Object#toString()
 		 */
@@ -8,7 +8,9 @@ package cs455.overlay.routing;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import cs455.overlay.transport.TCPConnectionThread;
 
@@ -17,6 +19,9 @@ public class RoutingTable {
 	// Instance variables **************
 	private int nrSize;
 	private List<RoutingEntry> entries;
+	private int[] nodeIDs;
+	// Each node's routing entries, worked out at setup, then repaired as nodes join and leave
+	private Map<Integer, List<RoutingEntry>> fingers = new HashMap<Integer, List<RoutingEntry>>();
 
 	// Constructor **************
 	public RoutingTable(int nrSize, List<RoutingEntry> entries){
@@ -25,88 +30,136 @@ public class RoutingTable {
 
 		// Sort the list
 		Collections.sort(entries);
+
+		if(entries.size() >= 2){
+			for(int i = 0; i<entries.size(); ++i){
+				fingers.put(entries.get(i).getNodeID(), computeFingers(i));
+			}
+		}
 	}
 
 	/**
-	 * Used to get and format the hop list return String
-	 * This is the format needed for the 
-	 * RegistrySendsNodeManifest class 
-	 * @param client
+	 * The routing entries (fingers) for one node, for its
+	 * RegistrySendsNodeManifest: at setup, the nodes 1, 2, 4 ... 2^(NR-1)
+	 * places after it in node ID order, skipping itself
 	 * @param nodeID
-	 * @return String
+	 * @return List, empty if the node isn't in the table
 	 */
-	public String getNodesTable(int nodeID){
-		
-		String hopList = "";
+	public List<RoutingEntry> getFingers(int nodeID){
 
-		int nodeLocation = -1;
+		List<RoutingEntry> myHopList = fingers.get(nodeID);
 
-		for(int j = 0; j<entries.size(); ++j){
-			if(entries.get(j).getNodeID() == nodeID){
-				nodeLocation = j;
-				break;
+		if(myHopList == null){
+			if(entries.size() < 2){
+				System.out.println("You only have one node in the routing entries table. You must add a minimum of two nodes.");
+			}else{
+				// We didn't find the node in the list
+				System.out.println("The node id ("+ nodeID +") doesn't match any node in the routing table. Please ensure correct id entered.");
 			}
+			return new ArrayList<RoutingEntry>();
 		}
 
-		List<RoutingEntry> myHopList = new ArrayList<RoutingEntry>();
-
-		if(nodeLocation == -1){
-			// We didn't find the node in the list
-			System.out.println("The node id ("+ nodeID +") doesn't match any node in the routing table. Please ensure correct id entered.");
-		}else if(entries.size() < 2){
-			System.out.println("You only have one node in the routing entries table. You must add a minimum of two nodes.");
-		}else{
-			// We've found the node at nodeLocation
-			// Loop NR times to get routing table
-			for(int i = 0; i<nrSize; ++i){
-				// Get our "hop", making sure not to go out of bounds
-				int hop = ((int)Math.pow(2,i) + nodeLocation) % entries.size();
-				if(entries.get(hop).getNodeID() == nodeID){
-					// Need to advance one more, can't add self
-					entries.get((hop + 1) % entries.size());
-				}else{
-					myHopList.add(entries.get(hop));
-				}
-			}
-		}
+		return myHopList;
 
-		// Get the list in a formatted String
-		for(int i = 0; i<myHopList.size(); ++i){
-			hopList += myHopList.get(i).getNodeID() + "|";
-			hopList += myHopList.get(i).getIpLength() + "|";
-			hopList += myHopList.get(i).getIpAddress() + "|";
-			// If last entry, make sure we don't add an extra delimiter
-			if(i != myHopList.size()-1){
-				hopList += myHopList.get(i).getPortNum() + "|";
-			}else{
-				hopList += myHopList.get(i).getPortNum();
-			}
-		}
+	}
 
-		return hopList;
+	/**
+	 * Take a node out of a running overlay
+	 * Only the nodes that had it as a finger are touched, each gets the
+	 * node after it (its successor) in its place, so every node still
+	 * has its own successor and packets always make progress
+	 * @param nodeID
+	 * @return the changes for each node whose fingers changed, empty if nodeID isn't in the table
+	 */
+	public Map<Integer, FingerDelta> remove(int nodeID){
+		Map<Integer, FingerDelta> changes = new HashMap<Integer, FingerDelta>();
+		int location = indexOf(nodeID);
+		if(location < 0)
+			return changes;
 
+		entries.remove(location);
+		fingers.remove(nodeID);
+		nodeIDs = null;
+		RoutingEntry successor = entries.isEmpty() ? null : entries.get(location % entries.size());
+
+		for(Map.Entry<Integer, List<RoutingEntry>> node : fingers.entrySet()){
+			List<RoutingEntry> nodeFingers = node.getValue();
+			if(indexOf(nodeFingers, nodeID) < 0)
+				continue;
+			FingerDelta delta = new FingerDelta();
+			nodeFingers.remove(indexOf(nodeFingers, nodeID));
+			delta.remove(nodeID);
+			if(successor != null && successor.getNodeID() != node.getKey() && indexOf(nodeFingers, successor.getNodeID()) < 0){
+				nodeFingers.add(successor);
+				delta.add(successor);
+			}
+			changes.put(node.getKey(), delta);
+		}
+		return changes;
 	}
 
 	/**
-	 * Used to format the nodes return String
-	 * This is the format needed for the 
-	 * RegistrySendsNodeManifest class
-	 * @return String
+	 * Add a node to a running overlay
+	 * It gets the usual fingers, and takes over as its predecessor's
+	 * successor, no other node is touched
+	 * @param entry
+	 * @return the changes for each node whose fingers changed (not the new node's,
+	 * it needs a whole manifest), empty if it's already in the table
 	 */
-	public String getNodesList(){
+	public Map<Integer, FingerDelta> add(RoutingEntry entry){
+		Map<Integer, FingerDelta> changes = new HashMap<Integer, FingerDelta>();
+		int location = Collections.binarySearch(entries, entry);
+		if(location >= 0)
+			return changes;
 
-		String nodes = "";
+		location = -location - 1;
+		entries.add(location, entry);
+		nodeIDs = null;
+		if(entries.size() < 2)
+			return changes;
 
-		for(int j = 0; j<entries.size(); ++j){
-			// If last entry, make sure we don't add an extra delimiter
-			if(j != entries.size()-1){
-				nodes += entries.get(j).getNodeID() + "|";
-			}else{
-				nodes += entries.get(j).getNodeID();
+		fingers.put(entry.getNodeID(), computeFingers(location));
+
+		RoutingEntry predecessor = entries.get((location - 1 + entries.size()) % entries.size());
+		RoutingEntry oldSuccessor = entries.get((location + 1) % entries.size());
+		List<RoutingEntry> predecessorFingers = fingers.get(predecessor.getNodeID());
+		if(predecessor != entry && predecessorFingers != null){
+			FingerDelta delta = new FingerDelta();
+			int old = indexOf(predecessorFingers, oldSuccessor.getNodeID());
+			// The new node covers the old successor, its first finger
+			if(old >= 0 && oldSuccessor != predecessor){
+				predecessorFingers.remove(old);
+				delta.remove(oldSuccessor.getNodeID());
 			}
+			predecessorFingers.add(entry);
+			delta.add(entry);
+			changes.put(predecessor.getNodeID(), delta);
 		}
+		return changes;
+	}
 
-		return nodes;
+	/**
+	 * @param nodeID
+	 * @return boolean whether the node is in the table
+	 */
+	public boolean contains(int nodeID){
+		return indexOf(nodeID) >= 0;
+	}
+
+	/**
+	 * Every node's ID, in order
+	 * Worked out once, every manifest carries the same list
+	 * @return int[]
+	 */
+	public int[] getNodeIDs(){
+		if(nodeIDs == null){
+			int[] ids = new int[entries.size()];
+			for(int j = 0; j<ids.length; ++j){
+				ids[j] = entries.get(j).getNodeID();
+			}
+			nodeIDs = ids;
+		}
+		return nodeIDs;
 	}
 
 	/**
@@ -117,20 +170,14 @@ public class RoutingTable {
 
 		String hopList = "";
 
-		int nodeLocation;
 		int nodeID;
-		List<RoutingEntry> myHopList = new ArrayList<RoutingEntry>();
+		List<RoutingEntry> myHopList;
 		String leftAlignFormat = "| %-11s | %-17s | %-5d |%n";
-		
-		// O(n^2) operation!! Should look into optimizing....
-		
+
 		for(int i = 0; i<entries.size(); ++i){
 
-			nodeLocation = i;
 			nodeID = entries.get(i).getNodeID();
-
-			// Reset the list for each iteration
-			myHopList.clear();
+			myHopList = getFingers(nodeID);
 			
 			hopList += String.format("+-----------------------------------------+%n");
 			hopList += String.format("| NODE %4d's ROUTING TABLE               |%n", nodeID);			
@@ -138,18 +185,6 @@ public class RoutingTable {
 			hopList += String.format("| NODE ID     | IP ADDRESS        | PORT  |%n");
 			hopList += String.format("+-------------+-------------------+-------+%n");
 
-			// Loop NR times to get routing table
-			for(int k = 0; k<nrSize; ++k){
-				// Get our "hop", making sure not to go out of bounds
-				int hop = ((int)Math.pow(2,k) + nodeLocation) % entries.size();
-				if(entries.get(hop).getNodeID() == nodeID){
-					// Need to advance one more, can't add self
-					entries.get((hop + 1) % entries.size());
-				}else{
-					myHopList.add(entries.get(hop));
-				}
-			}
-
 			// Get the list in a formatted String
 			for(int l = 0; l<myHopList.size(); ++l){
 				hopList += String.format(leftAlignFormat,  myHopList.get(l).getNodeID(), myHopList.get(l).getIpAddress(), myHopList.get(l).getPortNum());
@@ -169,10 +204,58 @@ public class RoutingTable {
 	public void clear(){
 		nrSize = 0;
 		entries.clear();
+		fingers.clear();
+		nodeIDs = null;
 	}
 	
 	public boolean isEmpty(){
 		return entries.isEmpty();
 	}
 
+	/**
+	 * Fingers for the node at location: the nodes 1, 2, 4 ... 2^(NR-1)
+	 * places after it, skipping itself, and any it already has
+	 * @param location
+	 * @return List
+	 */
+	private List<RoutingEntry> computeFingers(int location){
+		List<RoutingEntry> myHopList = new ArrayList<RoutingEntry>(nrSize);
+		int nodeID = entries.get(location).getNodeID();
+		// Loop NR times to get routing table
+		for(int i = 0; i<nrSize; ++i){
+			// Get our "hop", making sure not to go out of bounds
+			int hop = ((int)Math.pow(2,i) + location) % entries.size();
+			// Can't add self, in a small overlay the hops can also come round again
+			if(entries.get(hop).getNodeID() != nodeID && indexOf(myHopList, entries.get(hop).getNodeID()) < 0){
+				myHopList.add(entries.get(hop));
+			}
+		}
+		return myHopList;
+	}
+
+	// Entries are sorted by node ID
+	private int indexOf(int nodeID){
+		int low = 0;
+		int high = entries.size() - 1;
+		while(low <= high){
+			int mid = (low + high) >>> 1;
+			int midID = entries.get(mid).getNodeID();
+			if(midID < nodeID)
+				low = mid + 1;
+			else if(midID > nodeID)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	private static int indexOf(List<RoutingEntry> list, int nodeID){
+		for(int i = 0; i<list.size(); ++i){
+			if(list.get(i).getNodeID() == nodeID)
+				return i;
+		}
+		return -1;
+	}
+
 }// ************** END RoutingTable class **************
\ No newline at end of file
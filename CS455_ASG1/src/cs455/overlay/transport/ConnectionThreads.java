@@ -0,0 +1,80 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.transport;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads the blocking transport runs on
+ * In VIRTUAL mode these are virtual threads, so thousands of
+ * blocked readers don't each hold a platform thread
+ *
+ * Virtual threads are looked up reflectively so the code still
+ * builds and runs on older JDKs, where VIRTUAL falls back to
+ * platform threads
+ * @author sparkison
+ *
+ */
+
+final class ConnectionThreads {
+
+	// Thread.ofVirtual() and Thread.Builder.name(String)/unstarted(Runnable), null if not available
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_UNSTARTED;
+	private static volatile boolean warned = false;
+
+	static {
+		Method ofVirtual = null, name = null, unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_UNSTARTED = unstarted;
+	}
+
+	// Exists only to defeat instantiation
+	private ConnectionThreads(){}
+
+	static boolean virtualThreadsSupported(){
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Create an unstarted thread for the given mode
+	 * Virtual threads can't belong to a ThreadGroup, group is only used for platform threads
+	 * @param mode
+	 * @param group
+	 * @param name
+	 * @param task
+	 * @return Thread
+	 */
+	static Thread newThread(TransportMode mode, ThreadGroup group, String name, Runnable task){
+		if(mode == TransportMode.VIRTUAL){
+			if(virtualThreadsSupported()){
+				try {
+					Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+					return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+				} catch (Exception e) {
+					System.out.println("Error creating virtual thread, using a platform thread: ");
+					e.printStackTrace();
+				}
+			}else if(!warned){
+				warned = true;
+				System.out.println("Virtual threads need Java 21 or newer, using platform threads.");
+			}
+		}
+		return new Thread(group, task, name);
+	}
+
+}// ************** END ConnectionThreads class **************
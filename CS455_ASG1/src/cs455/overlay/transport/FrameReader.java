@@ -0,0 +1,116 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import cs455.overlay.util.BufferPool;
+
+/**
+ * Reads length-prefixed frames off a socket stream
+ * Pulls as much as the socket has into one reusable buffer,
+ * so small frames cost a single read() between them instead of
+ * one read per byte of the length header
+ *
+ * Not thread safe, only the connection's reader thread uses it
+ * @author sparkison
+ *
+ */
+
+final class FrameReader {
+
+	static final int BUFFER_SIZE = 64 * 1024;
+	// Received frames keep their length header in front of the body, and a
+	// little spare room behind it, so a relay can grow and resend them in place
+	static final int HEADER_BYTES = 4;
+	static final int RELAY_TAILROOM = 16;
+	// Well past the biggest real frame (a packet with a 1MB payload), anything longer is garbage
+	static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+
+	// Instance variables **************
+	private BufferPool pool = BufferPool.getInstance();
+	private InputStream in;
+	private byte[] buffer = new byte[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+
+	// Constructor **************
+	FrameReader(InputStream in){
+		this.in = in;
+	}
+
+	/**
+	 * Block until a whole frame has arrived
+	 * Frame is copied into a pooled buffer, caller releases it back to
+	 * the BufferPool once done with it
+	 * The length header is still in the buffer, just before its position
+	 * @return ByteBuffer the frame, positioned past the length header
+	 * @throws IOException
+	 */
+	ByteBuffer readFrame() throws IOException{
+		fill(4);
+		int dataLength = ((buffer[position] & 0xff) << 24) | ((buffer[position+1] & 0xff) << 16)
+				| ((buffer[position+2] & 0xff) << 8) | (buffer[position+3] & 0xff);
+		position += 4;
+		if(dataLength < 0 || dataLength > MAX_FRAME_BYTES)
+			throw new IOException("Invalid frame length: " + dataLength);
+
+		int frameLength = HEADER_BYTES + dataLength;
+		ByteBuffer frame = pool.acquire(frameLength + RELAY_TAILROOM);
+		frame.putInt(dataLength);
+		frame.limit(frameLength);
+		byte[] data = frame.array();
+		int chunk = Math.min(dataLength, limit - position);
+		System.arraycopy(buffer, position, data, HEADER_BYTES, chunk);
+		position += chunk;
+		int copied = HEADER_BYTES + chunk;
+
+		while(copied < frameLength){
+			int remaining = frameLength - copied;
+			if(remaining >= buffer.length){
+				// Too big to stage, read straight into the frame
+				int read = in.read(data, copied, remaining);
+				if(read < 0)
+					throw new EOFException();
+				copied += read;
+			}else{
+				fill(remaining);
+				System.arraycopy(buffer, position, data, copied, remaining);
+				position += remaining;
+				copied += remaining;
+			}
+		}
+		return frame;
+	}
+
+	/**
+	 * Make sure at least needed bytes are buffered
+	 * Reads as much as the stream has, not just what was asked for
+	 * @param needed
+	 * @throws IOException
+	 */
+	private void fill(int needed) throws IOException{
+		if(limit - position >= needed)
+			return;
+		// Slide what's left to the front to make room
+		if(position > 0){
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		while(limit < needed){
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if(read < 0)
+				throw new EOFException();
+			limit += read;
+		}
+	}
+
+}// ************** END FrameReader class **************
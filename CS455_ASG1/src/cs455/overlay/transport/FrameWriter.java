@@ -0,0 +1,79 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes length-prefixed frames to a socket stream
+ * The length header and the body are copied into one reusable
+ * buffer and handed to the socket in a single write()
+ *
+ * Not thread safe, callers hold the connection's send lock
+ * @author sparkison
+ *
+ */
+
+final class FrameWriter {
+
+	// Instance variables **************
+	private OutputStream out;
+	private byte[] buffer = new byte[FrameReader.BUFFER_SIZE];
+
+	// Constructor **************
+	FrameWriter(OutputStream out){
+		this.out = out;
+	}
+
+	/**
+	 * Send one frame
+	 * @param data
+	 * @throws IOException
+	 */
+	void writeFrame(byte[] data) throws IOException{
+		writeFrame(data, data.length);
+	}
+
+	/**
+	 * Send the first dataLength bytes of data as one frame
+	 * @param data
+	 * @param dataLength
+	 * @throws IOException
+	 */
+	void writeFrame(byte[] data, int dataLength) throws IOException{
+		int frameLength = 4 + dataLength;
+		if(frameLength > buffer.length)
+			buffer = new byte[Math.max(frameLength, buffer.length * 2)];
+
+		buffer[0] = (byte) (dataLength >>> 24);
+		buffer[1] = (byte) (dataLength >>> 16);
+		buffer[2] = (byte) (dataLength >>> 8);
+		buffer[3] = (byte) dataLength;
+		System.arraycopy(data, 0, buffer, 4, dataLength);
+
+		out.write(buffer, 0, frameLength);
+		out.flush();
+	}
+
+	/**
+	 * Send bytes that are already framed, like a batch of
+	 * coalesced frames from an OutboundQueue
+	 * @param frames
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	void writeFramed(byte[] frames, int offset, int length) throws IOException{
+		out.write(frames, offset, length);
+	}
+
+	void flush() throws IOException{
+		out.flush();
+	}
+
+}// ************** END FrameWriter class **************
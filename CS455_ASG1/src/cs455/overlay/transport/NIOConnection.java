@@ -0,0 +1,360 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.transport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import cs455.overlay.util.BufferPool;
+
+/**
+ * Non-blocking connection driven by a NIOEventLoop
+ * Frames are the same as the blocking transport, an int length followed
+ * by the marshalled Event
+ *
+ * Sends can come from any thread, they are queued and the owning loop
+ * does the actual writing, coalescing queued frames into one write
+ * @author sparkison
+ *
+ */
+
+public class NIOConnection implements TCPConnection {
+
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	// Instance variables **************
+	private BufferPool pool = BufferPool.getInstance();
+	private SocketChannel channel;
+	private NIOEventLoop loop;
+	private TCPServer server;
+	private SelectionKey key;
+	private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private OutboundQueue outbound = new OutboundQueue();
+	// Frames are coalesced into this before hitting the socket
+	private ByteBuffer batch = ByteBuffer.allocateDirect(OutboundQueue.MAX_BATCH_BYTES);
+	// Whatever is part way out the door (the batch, or a frame too big for it)
+	private ByteBuffer writing;
+	private AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	// Reads stopped while a queue this connection's frames go to is over its high water mark, loop thread only
+	private boolean readPaused = false;
+	private volatile boolean closed = false;
+	private int threadID;
+
+	private Runnable flushTask = new Runnable(){
+		public void run(){
+			try {
+				flush();
+			} catch (IOException e) {
+				failed(e);
+			}
+		}
+	};
+
+	// Constructor **************
+	NIOConnection(SocketChannel channel, NIOEventLoop loop, TCPServer server){
+		this.channel = channel;
+		this.loop = loop;
+		this.server = server;
+	}
+
+	/**
+	 * Sends data to this client
+	 * Used by the Registry
+	 * @param data
+	 * @throws IOException
+	 * @return void
+	 */
+	final public void sendFromRegistryToClient(byte[] data) throws IOException{
+		send(data);
+	}
+
+	/**
+	 * Sends data to this client
+	 * Used by the Client servers
+	 * Only queues the frame, the loop thread writes it
+	 * @param data
+	 * @throws IOException
+	 * @return void
+	 */
+	final public void sendFromClientToClient(byte[] data) throws IOException{
+		send(data);
+	}
+
+	/**
+	 * Forward a frame this process received, without re-marshalling it
+	 * Only queues the frame, the loop thread writes it
+	 * @param frame
+	 * @throws IOException
+	 * @return void
+	 */
+	final public void sendFrameFromClientToClient(ByteBuffer frame) throws IOException{
+		if (closed){
+			pool.release(frame);
+			throw new SocketException("socket does not exist");
+		}
+		send(outbound.reframe(frame));
+	}
+
+	/**
+	 * Send frames already packed into a pooled buffer, see TCPConnection
+	 * Only queues the frames, the loop thread writes them
+	 * @param frames
+	 * @throws IOException
+	 * @return void
+	 */
+	final public void sendFramesFromClientToClient(ByteBuffer frames) throws IOException{
+		if (closed){
+			pool.release(frames);
+			throw new SocketException("socket does not exist");
+		}
+		send(frames);
+	}
+
+	private void send(byte[] data) throws IOException{
+		if (closed)
+			throw new SocketException("socket does not exist");
+		send(outbound.frame(data));
+	}
+
+	private void send(ByteBuffer frame) throws IOException{
+		outbound.add(frame);
+		scheduleFlush();
+		outbound.awaitCapacity();
+	}
+
+	/**
+	 * Only the loop thread touches the channel, so hand off the write
+	 * unless we're already on it
+	 */
+	private void scheduleFlush() throws IOException{
+		if(flushScheduled.compareAndSet(false, true)){
+			if(loop.inEventLoop())
+				flush();
+			else
+				loop.execute(flushTask);
+		}
+	}
+
+	/**
+	 * Write out as much of the queue as the socket will take
+	 * Called on the loop thread only
+	 * @throws IOException
+	 */
+	final void flush() throws IOException{
+		if(closed)
+			return;
+		while(true){
+			if(writing == null){
+				batch.clear();
+				ByteBuffer oversized = outbound.fill(batch);
+				batch.flip();
+				if(oversized != null){
+					writing = oversized;
+				}else if(batch.hasRemaining()){
+					writing = batch;
+				}else{
+					// Queue drained
+					setInterest(false);
+					flushScheduled.set(false);
+					// Someone may have queued between the last fill and clearing the flag
+					if(outbound.isEmpty() || !flushScheduled.compareAndSet(false, true))
+						return;
+					continue;
+				}
+			}
+			channel.write(writing);
+			if(writing.hasRemaining()){
+				// Socket buffer full, wait for the selector to tell us we can write
+				setInterest(true);
+				return;
+			}
+			if(writing != batch)
+				pool.release(writing);
+			writing = null;
+		}
+	}
+
+	/**
+	 * Pull whatever is available off the socket and
+	 * pass each complete frame to the server
+	 * Called on the loop thread only
+	 * @throws IOException
+	 */
+	final void handleRead() throws IOException{
+		if(channel.read(readBuffer) < 0)
+			throw new EOFException("Connection closed by peer");
+
+		readBuffer.flip();
+		int needed = 0;
+		while(readBuffer.remaining() >= 4){
+			int dataLength = readBuffer.getInt(readBuffer.position());
+			if(dataLength < 0 || dataLength > FrameReader.MAX_FRAME_BYTES)
+				throw new IOException("Invalid frame length: " + dataLength);
+			if(readBuffer.remaining() < 4 + dataLength){
+				needed = 4 + dataLength;
+				break;
+			}
+
+			// Copy the frame, header included, into a pooled buffer the server releases
+			// once handled. Same layout as FrameReader, positioned past the header
+			ByteBuffer data = pool.acquire(4 + dataLength + FrameReader.RELAY_TAILROOM);
+			int limit = readBuffer.limit();
+			readBuffer.limit(readBuffer.position() + 4 + dataLength);
+			data.put(readBuffer);
+			readBuffer.limit(limit);
+			data.flip();
+			data.position(FrameReader.HEADER_BYTES);
+			server.messageFromClient(data, this);
+			if(closed)
+				return;
+		}
+		readBuffer.compact();
+
+		// Frame bigger than our buffer, grow it so the rest of the frame fits
+		if(needed > readBuffer.capacity()){
+			ByteBuffer bigger = ByteBuffer.allocate(needed);
+			readBuffer.flip();
+			bigger.put(readBuffer);
+			readBuffer = bigger;
+		}
+	}
+
+	final void handleWrite() throws IOException{
+		flush();
+	}
+
+	/**
+	 * Stop reading, see NIOEventLoop.pauseReading
+	 * Called on the loop thread only
+	 * @return boolean false if already paused (or closed)
+	 */
+	final boolean pauseReading(){
+		if(readPaused || closed)
+			return false;
+		readPaused = true;
+		setInterest(writing != null);
+		return true;
+	}
+
+	/**
+	 * Start reading again
+	 * Called on the loop thread only
+	 */
+	final void resumeReading(){
+		if(!readPaused || closed)
+			return;
+		readPaused = false;
+		setInterest(writing != null);
+	}
+
+	// Read unless paused, write while something is part way out
+	private void setInterest(boolean write){
+		// Not registered yet, setKey sets the interest once it is
+		if(key == null)
+			return;
+		key.interestOps((readPaused ? 0 : SelectionKey.OP_READ) | (write ? SelectionKey.OP_WRITE : 0));
+	}
+
+	/**
+	 * Called by the loop once registered with the selector
+	 */
+	final void connected(){
+		server.addConnection(this);
+		server.clientConnected(this);
+	}
+
+	/**
+	 * Called by the loop if reading or writing throws
+	 * @param exception
+	 */
+	final void failed(IOException exception){
+		if(!closed){
+			closeAll();
+			// Hook for TCPServer to let the Registry know we had a problem
+			server.clientException(this, exception);
+		}
+	}
+
+	/**
+	 * Called by the loop once registered with the selector
+	 * Sends made on the loop thread before then were flushed straight away,
+	 * if one didn't all go out it still needs write interest
+	 * @param key
+	 */
+	final void setKey(SelectionKey key){
+		this.key = key;
+		setInterest(writing != null);
+	}
+
+	/**
+	 * Close this socket
+	 * @throws IOException
+	 */
+	final public void close() throws IOException{
+		try{
+			closeAll();
+		}finally{
+			// Hook for TCPServer to let the Registry know we've disconnected
+			server.clientDisconnected(this);
+		}
+	}
+
+	public void setThreadID(int id){
+		threadID = id;
+	}
+
+	public int getThreadID(){
+		return threadID;
+	}
+
+	/**
+	 * Get the InetAddress of this socket
+	 * @return
+	 */
+	final public InetAddress getInetAddress(){
+		if(!closed)
+			return channel.socket().getInetAddress();
+		else
+			return null;
+	}
+
+	public String toString(){
+		if(!closed){
+			Socket socket = channel.socket();
+			return socket.getInetAddress().getHostName() + " ("
+					+ socket.getInetAddress().getHostAddress() + ") "
+					+ socket.getPort();
+		}else{
+			return null;
+		}
+	}
+
+	/**
+	 * Close it down!
+	 */
+	private void closeAll(){
+		closed = true;
+		if(key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.out.println("Error closing channel: ");
+			e.printStackTrace();
+		}
+		outbound.close();
+		server.removeConnection(this);
+	}
+
+}// ************** END NIOConnection class **************
@@ -0,0 +1,181 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.transport;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A single selector thread
+ * Owns the reads and writes for every NIOConnection registered with it,
+ * so each connection is only ever touched by one loop
+ * @author sparkison
+ *
+ */
+
+public class NIOEventLoop extends Thread {
+
+	// Instance variables **************
+	private Selector selector;
+	// Work handed to us by other threads (new channels, pending writes)
+	private Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean iAmRunning = true;
+	// Connection whose frames are being handled, the one to stop reading if they're relayed into a full queue
+	private NIOConnection reading;
+
+	// Constructor **************
+	public NIOEventLoop(String name) throws IOException {
+		super(name);
+		setDaemon(true);
+		selector = Selector.open();
+	}
+
+	/**
+	 * Register a connected channel with this loop
+	 * Can be called from any thread
+	 * @param channel
+	 * @param server
+	 * @return NIOConnection
+	 * @throws IOException
+	 */
+	final public NIOConnection register(SocketChannel channel, TCPServer server) throws IOException{
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		final NIOConnection connection = new NIOConnection(channel, this, server);
+		execute(new Runnable(){
+			public void run(){
+				try {
+					connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+					connection.connected();
+				} catch (ClosedChannelException e) {
+					connection.failed(e);
+				}
+			}
+		});
+		return connection;
+	}
+
+	/**
+	 * Run the task on this loop's thread
+	 * @param task
+	 */
+	final void execute(Runnable task){
+		pendingTasks.add(task);
+		if(Thread.currentThread() != this)
+			selector.wakeup();
+	}
+
+	final boolean inEventLoop(){
+		return Thread.currentThread() == this;
+	}
+
+	/**
+	 * Stop reading the connection being handled until the full queue
+	 * drains, the frames already read are still handled
+	 * Called on this loop's thread, from OutboundQueue.awaitCapacity
+	 * @param full
+	 */
+	final void pauseReading(OutboundQueue full){
+		final NIOConnection connection = reading;
+		if(connection == null || !connection.pauseReading())
+			return;
+		full.whenDrained(new Runnable(){
+			public void run(){
+				if(inEventLoop()){
+					connection.resumeReading();
+				}else{
+					execute(new Runnable(){
+						public void run(){
+							connection.resumeReading();
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stop the loop and close the selector
+	 */
+	final public void shutdown(){
+		iAmRunning = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Don't call directly, started by NIOEventLoopGroup
+	 */
+	final public void run(){
+		try{
+			while(iAmRunning){
+				// Tasks queued from this thread don't wake the selector, don't block on them
+				if(pendingTasks.isEmpty())
+					selector.select();
+				else
+					selector.selectNow();
+				runPendingTasks();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while(keys.hasNext()){
+					SelectionKey key = keys.next();
+					keys.remove();
+					NIOConnection connection = (NIOConnection) key.attachment();
+					try{
+						if(key.isReadable()){
+							reading = connection;
+							try{
+								connection.handleRead();
+							}finally{
+								reading = null;
+							}
+						}
+						if(key.isValid() && key.isWritable())
+							connection.handleWrite();
+					}catch(CancelledKeyException e){
+						// Connection closed out from under us, nothing left to do
+					}catch(IOException e){
+						connection.failed(e);
+					}catch(RuntimeException e){
+						// A frame the server couldn't handle, only this connection goes, the loop carries on
+						System.out.println("Error handling frame from " + connection + ": ");
+						e.printStackTrace();
+						connection.failed(new IOException("Error handling frame", e));
+					}
+				}
+			}
+		}catch(IOException e){
+			System.out.println("Error in selector loop " + getName() + ": ");
+			e.printStackTrace();
+		}finally{
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void runPendingTasks(){
+		Runnable task;
+		while((task = pendingTasks.poll()) != null){
+			try{
+				task.run();
+			}catch(RuntimeException e){
+				System.out.println("Error running task in selector loop " + getName() + ": ");
+				e.printStackTrace();
+			}
+		}
+	}
+
+}// ************** END NIOEventLoop class **************
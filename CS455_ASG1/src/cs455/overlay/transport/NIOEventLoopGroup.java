@@ -0,0 +1,59 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.transport;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of selector threads shared by one TCPServer
+ * New connections are handed out round robin
+ * Number of loops can be set with -Dcs455.nio.loops=N,
+ * defaults to the number of cores
+ * @author sparkison
+ *
+ */
+
+public class NIOEventLoopGroup {
+
+	// Instance variables **************
+	private NIOEventLoop[] loops;
+	private AtomicInteger next = new AtomicInteger();
+
+	// Constructor **************
+	public NIOEventLoopGroup(String name) throws IOException{
+		int numLoops = Integer.getInteger("cs455.nio.loops", Runtime.getRuntime().availableProcessors());
+		loops = new NIOEventLoop[Math.max(1, numLoops)];
+		for(int i = 0; i<loops.length; ++i){
+			loops[i] = new NIOEventLoop(name + " selector-" + i);
+			loops[i].start();
+		}
+	}
+
+	/**
+	 * Hand a connected channel to the next loop
+	 * @param channel
+	 * @param server
+	 * @return NIOConnection
+	 * @throws IOException
+	 */
+	final public NIOConnection register(SocketChannel channel, TCPServer server) throws IOException{
+		int index = (next.getAndIncrement() & Integer.MAX_VALUE) % loops.length;
+		return loops[index].register(channel, server);
+	}
+
+	/**
+	 * Stop all the loops
+	 */
+	final public void shutdown(){
+		for(NIOEventLoop loop : loops){
+			loop.shutdown();
+		}
+	}
+
+}// ************** END NIOEventLoopGroup class **************
@@ -0,0 +1,259 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cs455.overlay.util.BufferPool;
+
+/**
+ * Frames waiting to go out on one connection
+ * Any number of threads add, exactly one writer drains, copying as many
+ * frames as fit into its batch buffer so they leave in a single write
+ *
+ * Tunables (system properties):
+ * cs455.batch.bytes			largest coalesced write, default 64KB
+ * cs455.batch.lingerMicros		how long a blocking writer waits for more
+ * 								frames to fill a batch, default 0
+ * cs455.relay.highWaterBytes	queued bytes at which selector threads stop
+ * 								reading the connection relaying into the
+ * 								queue, default 16MB
+ * @author sparkison
+ *
+ */
+
+final class OutboundQueue {
+
+	static final int MAX_BATCH_BYTES = Integer.getInteger("cs455.batch.bytes", 64 * 1024);
+	static final long MAX_LINGER_NANOS = Long.getLong("cs455.batch.lingerMicros", 0) * 1000;
+
+	// Once this many bytes are queued, senders wait for the writer to catch up
+	private static final long HIGH_WATER_MARK = 4 * 1024 * 1024;
+	private static final long LOW_WATER_MARK = HIGH_WATER_MARK / 2;
+	/*
+	 * Once this many are queued, selector threads stop reading the connection
+	 * relaying into the queue. Higher than the senders' mark so new packets
+	 * are held back well before relays are: with both at the same mark every
+	 * node round a saturated overlay stops reading its predecessor and
+	 * nothing drains
+	 */
+	private static final long RELAY_HIGH_WATER_MARK = Math.max(HIGH_WATER_MARK, 
+			Long.getLong("cs455.relay.highWaterBytes", 4 * HIGH_WATER_MARK));
+
+	// Instance variables **************
+	private BufferPool pool = BufferPool.getInstance();
+	private Queue<ByteBuffer> frames = new ConcurrentLinkedQueue<ByteBuffer>();
+	// Taken off the queue by the writer but didn't fit its last batch, only the writer touches it
+	private volatile ByteBuffer carried;
+	private AtomicLong pendingBytes = new AtomicLong();
+	// Lock rather than a monitor so a waiting virtual thread releases its carrier
+	private ReentrantLock throttleLock = new ReentrantLock();
+	private Condition drained = throttleLock.newCondition();
+	private volatile boolean throttled = false;
+	// Run once, when the queue next drains to the low water mark, see whenDrained
+	private Queue<Runnable> drainListeners = new ConcurrentLinkedQueue<Runnable>();
+	private volatile boolean closed = false;
+
+	/**
+	 * Build a frame (length header and body) in a pooled buffer
+	 * @param data
+	 * @return ByteBuffer
+	 */
+	ByteBuffer frame(byte[] data){
+		ByteBuffer frame = pool.acquire(4 + data.length);
+		frame.putInt(data.length);
+		frame.put(data);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Turn a received frame back into one ready to send
+	 * Frames from FrameReader/NIOConnection still have room for the length
+	 * header in front of their position, so it's rewritten in place (the
+	 * body may have grown). Anything else is copied into a new frame
+	 * @param body
+	 * @return ByteBuffer
+	 */
+	ByteBuffer reframe(ByteBuffer body){
+		int start = body.position() - 4;
+		if(start < 0){
+			ByteBuffer frame = pool.acquire(4 + body.remaining());
+			frame.putInt(body.remaining());
+			frame.put(body);
+			frame.flip();
+			pool.release(body);
+			return frame;
+		}
+		body.putInt(start, body.remaining());
+		body.position(start);
+		return body;
+	}
+
+	/**
+	 * Queue a frame, or several back to back, the queue owns it from here on
+	 * @param frame
+	 * @throws IOException
+	 */
+	void add(ByteBuffer frame) throws IOException{
+		if(closed){
+			pool.release(frame);
+			throw new IOException("Connection closed");
+		}
+		pendingBytes.addAndGet(frame.remaining());
+		frames.add(frame);
+	}
+
+	boolean isEmpty(){
+		return carried == null && frames.isEmpty();
+	}
+
+	boolean isClosed(){
+		return closed;
+	}
+
+	/**
+	 * Copy whole frames into the batch until it's full or the queue is empty
+	 * Called by the writer only
+	 *
+	 * If the next frame is bigger than the whole batch it's handed back
+	 * instead, the writer sends it on its own and releases it to the pool
+	 *
+	 * Frames are only ever polled, close() can be emptying the queue at
+	 * the same time, so each frame is released by exactly one of them.
+	 * A frame that doesn't fit is carried over to the next call
+	 * @param batch
+	 * @return ByteBuffer oversized frame, or null
+	 */
+	ByteBuffer fill(ByteBuffer batch){
+		ByteBuffer frame = carried;
+		carried = null;
+		if(closed){
+			// close() leaves the carried frame to the writer, if it stopped first the frame goes to the GC
+			pool.release(frame);
+			return null;
+		}
+		if(frame == null)
+			frame = frames.poll();
+		ByteBuffer oversized = null;
+		long drainedBytes = 0;
+		while(frame != null){
+			int length = frame.remaining();
+			if(length > batch.remaining()){
+				if(batch.position() == 0){
+					oversized = frame;
+					drainedBytes += length;
+				}else{
+					carried = frame;
+				}
+				break;
+			}
+			batch.put(frame);
+			pool.release(frame);
+			drainedBytes += length;
+			frame = frames.poll();
+		}
+		if(drainedBytes > 0 && pendingBytes.addAndGet(-drainedBytes) <= LOW_WATER_MARK){
+			if(throttled)
+				signalSenders();
+			if(!drainListeners.isEmpty())
+				runDrainListeners();
+		}
+		return oversized;
+	}
+
+	/**
+	 * Make the caller wait while too much is queued
+	 * Selector threads can't wait, they could be the ones we're waiting
+	 * on. Instead, past the relay mark, the connection being read stops
+	 * being read until this queue drains, so relays into a slow neighbor
+	 * push back on whoever is feeding them rather than queueing without bound
+	 * @throws IOException
+	 */
+	void awaitCapacity() throws IOException{
+		long pending = pendingBytes.get();
+		if(pending < HIGH_WATER_MARK)
+			return;
+		Thread current = Thread.currentThread();
+		if(current instanceof NIOEventLoop){
+			if(pending >= RELAY_HIGH_WATER_MARK)
+				((NIOEventLoop) current).pauseReading(this);
+			return;
+		}
+		throttleLock.lock();
+		try{
+			throttled = true;
+			while(!closed && pendingBytes.get() > LOW_WATER_MARK){
+				try {
+					drained.await(10, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting to send");
+				}
+			}
+		}finally{
+			throttleLock.unlock();
+		}
+	}
+
+	/**
+	 * Run the listener once the queue has drained to the low water mark
+	 * (or closed), straight away if it already has
+	 * Runs on whichever thread drains the queue
+	 * @param listener
+	 */
+	void whenDrained(Runnable listener){
+		drainListeners.add(listener);
+		// May have drained before the listener went in
+		if(closed || pendingBytes.get() <= LOW_WATER_MARK)
+			runDrainListeners();
+	}
+
+	/**
+	 * Drop anything still queued and wake up waiting senders
+	 * Only what's still on the queue, whatever the writer has already
+	 * polled is the writer's to send or release
+	 */
+	void close(){
+		closed = true;
+		ByteBuffer frame;
+		long droppedBytes = 0;
+		while((frame = frames.poll()) != null){
+			droppedBytes += frame.remaining();
+			pool.release(frame);
+		}
+		pendingBytes.addAndGet(-droppedBytes);
+		signalSenders();
+		runDrainListeners();
+	}
+
+	// Each listener is polled off first, so it only ever runs once
+	private void runDrainListeners(){
+		Runnable listener;
+		while((listener = drainListeners.poll()) != null){
+			listener.run();
+		}
+	}
+
+	private void signalSenders(){
+		throttleLock.lock();
+		try{
+			throttled = false;
+			drained.signalAll();
+		}finally{
+			throttleLock.unlock();
+		}
+	}
+
+}// ************** END OutboundQueue class **************
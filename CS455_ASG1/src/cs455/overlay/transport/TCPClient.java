@@ -6,13 +6,14 @@
 
 package cs455.overlay.transport;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
+import cs455.overlay.util.BufferPool;
 import cs455.overlay.wireformats.Event;
 import cs455.overlay.wireformats.EventFactory;
 
@@ -21,19 +22,31 @@ public abstract class TCPClient implements Runnable{
 
 	// Instance variables **************
 	private EventFactory ef = EventFactory.getInstance();
-	private DataOutputStream dout;
-	private DataInputStream din;
+	private BufferPool pool = BufferPool.getInstance();
+	private FrameWriter dout;
+	private FrameReader din;
+	private ReentrantLock sendLock = new ReentrantLock();
 	private Socket clientSocket;
 	private Thread clientThread;
 	private String host;
-	private boolean iAmListening = false;
+	private volatile boolean iAmListening = false;
+	private TransportMode mode;
 	private int port;
 
 	// Constructor **************
 	public TCPClient(String host, int port){
+		this(host, port, TransportMode.BLOCKING);
+	}
+
+	/**
+	 * Mode only matters for VIRTUAL, where the receive
+	 * loop runs on a virtual thread
+	 */
+	public TCPClient(String host, int port, TransportMode mode){
 		// Set the host and port, call openConnection() to setup connection
 		this.host = host;
 		this.port = port;
+		this.mode = mode;
 	}
 
 	/**
@@ -46,8 +59,8 @@ public abstract class TCPClient implements Runnable{
 			// Initialize our data input/output streams, and socket
 			try{
 				clientSocket = new Socket(host, port);
-				dout = new DataOutputStream(clientSocket.getOutputStream());
-				din = new DataInputStream(clientSocket.getInputStream());
+				dout = new FrameWriter(clientSocket.getOutputStream());
+				din = new FrameReader(clientSocket.getInputStream());
 			}catch (IOException ex){
 				try{
 					closeAll();
@@ -59,7 +72,7 @@ public abstract class TCPClient implements Runnable{
 				throw ex; 
 			}
 			// Create the thread to handle receiving of data
-			clientThread = new Thread(this); 
+			clientThread = ConnectionThreads.newThread(mode, Thread.currentThread().getThreadGroup(), "Registry connection", this); 
 			// Used for the loop to keep listening
 			iAmListening = true;
 			// Start it up!!
@@ -74,13 +87,27 @@ public abstract class TCPClient implements Runnable{
 	 * @throws IOException
 	 */
 	final public void sendToServer(byte[] data) throws IOException{
+		sendToServer(data, data.length);
+	}
+
+	/**
+	 * Send the first length bytes of data as one message, for
+	 * messages marshalled into a reused buffer (see EventWriter)
+	 * @param data
+	 * @param length
+	 * @throws IOException
+	 */
+	final public void sendToServer(byte[] data, int length) throws IOException{
 		if (clientSocket == null || dout == null)
 			throw new SocketException("socket does not exist");
 
-		int dataLength = data.length;
-		dout.writeInt(dataLength);
-		dout.write(data, 0, dataLength);
-		dout.flush();
+		// Console and receive threads can both be reporting to the Registry
+		sendLock.lock();
+		try{
+			dout.writeFrame(data, length);
+		}finally{
+			sendLock.unlock();
+		}
 
 	}
 
@@ -136,17 +163,18 @@ public abstract class TCPClient implements Runnable{
 		connectionEstablished();
 
 		// The message from the server
-		byte[] data;
-		int dataLength;
+		ByteBuffer data;
 
 		try{
 			while (iAmListening){
 				// System.out.println("Data received from server");
-				dataLength = din.readInt();
-				data = new byte[dataLength];
-				din.readFully(data, 0, dataLength);
+				data = din.readFrame();
 				Event event = ef.getEvent(data);
-				onEvent(event);
+				// Event has its own copy of everything, frame can go back
+				pool.release(data);
+				// Null if the frame couldn't be decoded, already reported
+				if(event != null)
+					onEvent(event);
 			}
 		}catch (Exception exception){
 			if (iAmListening){
@@ -184,13 +212,9 @@ public abstract class TCPClient implements Runnable{
 
 	private void closeAll() throws IOException{
 		try{
-			// Close the socket
+			// Close the socket, takes its streams with it
 			if (clientSocket != null)
 				clientSocket.close();
-			if (dout != null)
-				dout.close();
-			if (din != null)
-				din.close();
 		} finally {
 			dout = null;
 			din = null;
@@ -0,0 +1,72 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A single connection accepted or dialed by a TCPServer
+ * Implemented by the thread-per-connection transport (TCPConnectionThread)
+ * and the selector based transport (NIOConnection) so the Registry
+ * and MessagingNode don't care which one is in use
+ * @author sparkison
+ *
+ */
+
+public interface TCPConnection {
+
+	/**
+	 * Sends data to this client
+	 * Used by the Registry
+	 * @param data
+	 * @throws IOException
+	 */
+	public void sendFromRegistryToClient(byte[] data) throws IOException;
+
+	/**
+	 * Sends data to this client
+	 * Used by the Client servers, safe to call from multiple threads
+	 * @param data
+	 * @throws IOException
+	 */
+	public void sendFromClientToClient(byte[] data) throws IOException;
+
+	/**
+	 * Sends a frame handed to TCPServer.onFrame as is, or after patching
+	 * it in place, without decoding or re-marshalling it
+	 * The connection owns the buffer from here on and releases it
+	 * back to the BufferPool once written
+	 * @param frame
+	 * @throws IOException
+	 */
+	public void sendFrameFromClientToClient(ByteBuffer frame) throws IOException;
+
+	/**
+	 * Sends one or more complete frames, length headers included,
+	 * from the buffer's position to its limit
+	 * Used by senders packing many packets into a pooled buffer, which
+	 * the connection owns from here on and releases once written
+	 * @param frames
+	 * @throws IOException
+	 */
+	public void sendFramesFromClientToClient(ByteBuffer frames) throws IOException;
+
+	/**
+	 * Close this connection
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+
+	public void setThreadID(int id);
+
+	public int getThreadID();
+
+	public InetAddress getInetAddress();
+
+}// ************** END TCPConnection interface **************
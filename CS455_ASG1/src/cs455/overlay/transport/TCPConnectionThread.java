@@ -6,22 +6,38 @@
 
 package cs455.overlay.transport;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class TCPConnectionThread extends Thread {
+import cs455.overlay.util.BufferPool;
+
+/**
+ * Thread-per-connection transport
+ * The read loop and writer run on platform threads, or on virtual
+ * threads when the server is in VIRTUAL mode. Locks are ReentrantLocks
+ * rather than synchronized so a blocked virtual thread doesn't pin its carrier
+ */
+
+public class TCPConnectionThread implements Runnable, TCPConnection {
 
 	// Instance variables **************
 	private TCPServer server;
+	private Thread readerThread;
 	private Socket clientSocket;
-	private DataInputStream din;
-	private DataOutputStream dout;
-	private Object inputLock = new Object();
-	private boolean iAmListening = false;
+	private FrameReader din;
+	private FrameWriter dout;
+	private ReentrantLock inputLock = new ReentrantLock();
+	// Client to client sends are queued and written by a single writer thread
+	private OutboundQueue outbound = new OutboundQueue();
+	private ReentrantLock writerLock = new ReentrantLock();
+	private volatile Thread writerThread;
+	private volatile boolean writerWaiting = false;
+	private volatile boolean iAmListening = false;
 	private int threadID;
 
 	/*
@@ -29,16 +45,15 @@ public class TCPConnectionThread extends Thread {
 	 */
 
 	// Constructor **************
-	public TCPConnectionThread(ThreadGroup group, Socket clientSocket, TCPServer server) throws IOException {
+	public TCPConnectionThread(Socket clientSocket, TCPServer server) throws IOException {
 		// Initialize variables
-		super(group, (Runnable) null);		
 		this.clientSocket = clientSocket;
 		this.server = server;
 
 		// Initialize data input/output streams
 		try {
-			dout = new DataOutputStream(clientSocket.getOutputStream());
-			din = new DataInputStream(clientSocket.getInputStream());
+			dout = new FrameWriter(clientSocket.getOutputStream());
+			din = new FrameReader(clientSocket.getInputStream());
 		}catch (IOException ex){
 			try{
 				closeAll();
@@ -51,14 +66,18 @@ public class TCPConnectionThread extends Thread {
 		}
 
 		iAmListening = true;
+		server.addConnection(this);
 		// Start the thread and wait for data from the socket
-		start(); 
+		readerThread = ConnectionThreads.newThread(server.getTransportMode(), server.getThreadGroup(),
+				"Connection " + clientSocket.getRemoteSocketAddress(), this);
+		readerThread.start(); 
 	}
 
 	/**
 	 * Sends data to this client
 	 * Used by the Registry
-	 * Doesn't need synchronized b/c only 1 Registry
+	 * Registry handles each node on its own thread, and the
+	 * frame writer's buffer is shared, so this locks too
 	 * @param data
 	 * @throws IOException
 	 * @return void
@@ -66,22 +85,19 @@ public class TCPConnectionThread extends Thread {
 	final public void sendFromRegistryToClient(byte[] data) throws IOException{
 		if (clientSocket == null || dout == null)
 			throw new SocketException("socket does not exist");
-		/*
-		 * Need to synchronize to avoid concurrency issues
-		 * Multiple Threads could be sending messages
-		 * to this client at any given time
-		 */
-		int dataLength = data.length;
-		dout.writeInt(dataLength);
-		dout.write(data, 0, dataLength);
-		dout.flush();
+		inputLock.lock();
+		try{
+			dout.writeFrame(data);
+		}finally{
+			inputLock.unlock();
+		}
 	}
 
 	/**
 	 * Sends data to this client
 	 * Used by the Client servers
-	 * Needs to be synchronized b/c can have multiple
-	 * ClientServers sending at the same time
+	 * Multiple threads can be sending at the same time, so this only
+	 * queues the frame; the writer thread coalesces and writes them
 	 * @param data
 	 * @throws IOException
 	 * @return void
@@ -89,17 +105,142 @@ public class TCPConnectionThread extends Thread {
 	final public void sendFromClientToClient(byte[] data) throws IOException{
 		if (clientSocket == null || dout == null)
 			throw new SocketException("socket does not exist");
-		/*
-		 * Need to synchronize to avoid concurrency issues
-		 * Multiple Threads could be sending messages
-		 * to this client at any given time
-		 */
-		synchronized(inputLock){
-			int dataLength = data.length;
-			dout.writeInt(dataLength);
-			dout.write(data, 0, dataLength);
-			dout.flush();
+		queue(outbound.frame(data));
+	}
+
+	/**
+	 * Forward a frame this process received, without re-marshalling it
+	 * Queued for the writer thread like any other client to client send
+	 * @param frame
+	 * @throws IOException
+	 * @return void
+	 */
+	final public void sendFrameFromClientToClient(ByteBuffer frame) throws IOException{
+		if (clientSocket == null || dout == null){
+			BufferPool.getInstance().release(frame);
+			throw new SocketException("socket does not exist");
+		}
+		queue(outbound.reframe(frame));
+	}
+
+	/**
+	 * Send frames already packed into a pooled buffer, see TCPConnection
+	 * Queued for the writer thread like any other client to client send
+	 * @param frames
+	 * @throws IOException
+	 * @return void
+	 */
+	final public void sendFramesFromClientToClient(ByteBuffer frames) throws IOException{
+		if (clientSocket == null || dout == null){
+			BufferPool.getInstance().release(frames);
+			throw new SocketException("socket does not exist");
+		}
+		queue(frames);
+	}
+
+	private void queue(ByteBuffer frame) throws IOException{
+		outbound.add(frame);
+		wakeWriter();
+		outbound.awaitCapacity();
+	}
+
+	/**
+	 * Start the writer the first time it's needed,
+	 * otherwise nudge it if it's waiting for frames
+	 */
+	private void wakeWriter(){
+		Thread writer = writerThread;
+		if(writer == null){
+			writerLock.lock();
+			try{
+				if(writerThread == null){
+					writer = ConnectionThreads.newThread(server.getTransportMode(), server.getThreadGroup(),
+							readerThread.getName() + " writer", new Runnable(){
+						public void run(){
+							writeQueued();
+						}
+					});
+					writer.setDaemon(true);
+					writerThread = writer;
+					writer.start();
+				}
+				return;
+			}finally{
+				writerLock.unlock();
+			}
+		}
+		if(writerWaiting)
+			LockSupport.unpark(writer);
+	}
+
+	/**
+	 * Writer thread loop
+	 * Copies as many queued frames as fit into one batch and writes them
+	 * in a single call. With cs455.batch.lingerMicros set, waits up to that
+	 * long for more frames before writing a batch that isn't full
+	 */
+	private void writeQueued(){
+		BufferPool pool = BufferPool.getInstance();
+		ByteBuffer batch = ByteBuffer.allocate(OutboundQueue.MAX_BATCH_BYTES);
+		try{
+			while(iAmListening && !outbound.isClosed()){
+				batch.clear();
+				ByteBuffer oversized = outbound.fill(batch);
+
+				if(oversized == null && batch.position() > 0 && OutboundQueue.MAX_LINGER_NANOS > 0){
+					long deadline = System.nanoTime() + OutboundQueue.MAX_LINGER_NANOS;
+					long remaining;
+					while(batch.hasRemaining() && (remaining = deadline - System.nanoTime()) > 0){
+						if(outbound.isEmpty())
+							waitForFrames(remaining);
+						int before = batch.position();
+						outbound.fill(batch);
+						// Next frame doesn't fit, batch is as full as it gets
+						if(batch.position() == before && !outbound.isEmpty())
+							break;
+					}
+				}
+
+				if(batch.position() == 0 && oversized == null){
+					waitForFrames(0);
+					continue;
+				}
+
+				FrameWriter out = dout;
+				if(out == null)
+					break;
+				inputLock.lock();
+				try{
+					if(batch.position() > 0)
+						out.writeFramed(batch.array(), 0, batch.position());
+					if(oversized != null)
+						out.writeFramed(oversized.array(), oversized.arrayOffset() + oversized.position(), oversized.remaining());
+					out.flush();
+				}finally{
+					inputLock.unlock();
+				}
+				pool.release(oversized);
+			}
+		}catch(IOException exception){
+			if(iAmListening){
+				System.out.println("Error sending data to client " + this + ": ");
+				exception.printStackTrace();
+			}
+		}finally{
+			outbound.close();
+		}
+	}
+
+	// Park the writer until a sender unparks it (or the timeout passes, if not 0)
+	private void waitForFrames(long nanos){
+		writerWaiting = true;
+		if(outbound.isEmpty() && !outbound.isClosed()){
+			if(nanos > 0)
+				LockSupport.parkNanos(this, nanos);
+			else
+				LockSupport.park(this);
 		}
+		writerWaiting = false;
 	}
 
 	/**
@@ -158,7 +299,7 @@ public class TCPConnectionThread extends Thread {
 	}
 
 	/**
-	 * Don't call directly. start() is called by constructor
+	 * Don't call directly. Reader thread is started by constructor
 	 */
 	final public void run(){
 		// Tell the server we connected
@@ -167,15 +308,12 @@ public class TCPConnectionThread extends Thread {
 		// Read the din stream and respond to messages
 		try{
 			// The message from the client
-			int dataLength;
-			byte[] data;
+			ByteBuffer data;
 
 			while (iAmListening){
 				// This block waits until it reads a message from the client
 				// and then sends it for handling by the server
-				dataLength = din.readInt();
-				data = new byte[dataLength];
-				din.readFully(data, 0, dataLength);
+				data = din.readFrame();
 				server.messageFromClient(data, this);
 			}
 
@@ -198,26 +336,19 @@ public class TCPConnectionThread extends Thread {
 	 * @throws IOException
 	 */
 	private void closeAll() throws IOException{
+		// Drop queued frames and let the writer thread exit
+		outbound.close();
+		if(writerThread != null)
+			LockSupport.unpark(writerThread);
 		try {
-			// Close the socket
+			// Close the socket, takes its streams with it
 			if (clientSocket != null)
 				clientSocket.close();
-			if (dout != null)
-				dout.close();
-			if (din != null)
-				din.close();
 		}finally{
 			dout = null;
 			din = null;
 			clientSocket = null;
-		}
-	}
-
-	protected void finalize(){
-		try {
-			closeAll();
-		}catch (IOException exc){
-			exc.printStackTrace();
+			server.removeConnection(this);
 		}
 	}
 
@@ -9,9 +9,18 @@ package cs455.overlay.transport;
 import java.io.IOException;
 import java.io.InterruptedIOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
+import cs455.overlay.util.BufferPool;
 import cs455.overlay.wireformats.Event;
 import cs455.overlay.wireformats.EventFactory;
 
@@ -20,17 +29,33 @@ public abstract class TCPServer implements Runnable{
 
 	// Instance variables **************
 	private EventFactory ef = EventFactory.getInstance();
+	private BufferPool pool = BufferPool.getInstance();
 	private ServerSocket serverSocket = null;
+	private ServerSocketChannel serverChannel = null;
+	private NIOEventLoopGroup eventLoops;
 	private Thread connectionListener;
 	private ThreadGroup clientThreadGroup;
-	private Object addClientLock = new Object();
+	// Every open connection, accepted or dialed, regardless of transport
+	private Set<TCPConnection> connections = Collections.newSetFromMap(new ConcurrentHashMap<TCPConnection, Boolean>());
+	/*
+	 * ReentrantLocks rather than synchronized, so VIRTUAL mode
+	 * threads blocking while holding them don't pin their carrier
+	 */
+	private ReentrantLock addClientLock = new ReentrantLock();
+	private ReentrantLock stateLock = new ReentrantLock();
 	private boolean iAmListening = true;
+	private TransportMode mode;
 	private int port;
 
 	// Constructor **************
 	public TCPServer(int port, String threadGroup){
+		this(port, threadGroup, TransportMode.BLOCKING);
+	}
+
+	public TCPServer(int port, String threadGroup, TransportMode mode){
 		// Set the port
 		this.port = port;
+		this.mode = mode;
 		// A ThreadGroup to hold the clients connected to this registry
 		this.clientThreadGroup = new ThreadGroup(threadGroup);
 	}
@@ -44,7 +69,15 @@ public abstract class TCPServer implements Runnable{
 	final public void listen() throws IOException{
 		if (!isListening()){
 			if (serverSocket == null){
-				serverSocket = new ServerSocket(getPort());
+				if(mode == TransportMode.NIO){
+					// Accepts still block on the listener thread, the selectors only do the reads/writes
+					serverChannel = ServerSocketChannel.open();
+					serverChannel.bind(new InetSocketAddress(getPort()));
+					serverSocket = serverChannel.socket();
+					getEventLoops();
+				}else{
+					serverSocket = new ServerSocket(getPort());
+				}
 				// Need to see if auto-assigning port or not...
 				if(getPort() == 0){
 					this.port = serverSocket.getLocalPort();
@@ -52,7 +85,7 @@ public abstract class TCPServer implements Runnable{
 			}
 			iAmListening = true;
 			// Spawn a thread for self, and start it
-			connectionListener = new Thread(this);
+			connectionListener = ConnectionThreads.newThread(mode, clientThreadGroup, clientThreadGroup.getName() + " listener", this);
 			connectionListener.start();
 		}
 	}
@@ -73,22 +106,48 @@ public abstract class TCPServer implements Runnable{
 		return (connectionListener != null);
 	}
 
+	/**
+	 * Open a connection to another server using this server's transport
+	 * Messages received on it are handled by this server's onEvent
+	 * @param host
+	 * @param port
+	 * @return TCPConnection
+	 * @throws IOException
+	 */
+	final public TCPConnection connect(String host, int port) throws IOException{
+		if(mode == TransportMode.NIO){
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+			try{
+				return getEventLoops().register(channel, this);
+			}catch(IOException e){
+				channel.close();
+				throw e;
+			}
+		}
+		Socket socket = new Socket(host, port);
+		addClientLock.lock();
+		try{
+			return new TCPConnectionThread(socket, this);
+		}finally{
+			addClientLock.unlock();
+		}
+	}
+
 	/**
 	 * Returns list of connected clients
-	 * List is Threads[] array of TCPConnectionThread objects
-	 * @return Thread[]
+	 * @return TCPConnection[]
 	 */
-	synchronized final public Thread[] getConnectedClients(){
-		Thread[] clientThreadList = new Thread[clientThreadGroup.activeCount()];
-		clientThreadGroup.enumerate(clientThreadList);
-		return clientThreadList;
+	final public TCPConnection[] getConnectedClients(){
+		return connections.toArray(new TCPConnection[0]);
 	}
 
 	/**
 	 * GETTERS **************
 	 */
 
-	final public int getNumberOfClients(){return clientThreadGroup.activeCount();}	
+	final public int getNumberOfClients(){return connections.size();}	
+
+	final public TransportMode getTransportMode(){return mode;}
 
 	final public ThreadGroup getThreadGroup(){return clientThreadGroup;}
 
@@ -107,12 +166,22 @@ public abstract class TCPServer implements Runnable{
 			// starts a new thread to handle data exchange.
 			while(iAmListening){
 				try{
-					// Wait here for new connection attempts, or a timeout
-					Socket clientSocket = serverSocket.accept();
-					// When a client is accepted, create a thread to handle
-					// the data exchange, then add it to thread group
-					synchronized(addClientLock){
-						new TCPConnectionThread(this.clientThreadGroup, clientSocket, this);
+					if(mode == TransportMode.NIO){
+						// Wait here for new connection attempts, then hand
+						// the channel off to one of the selector threads
+						SocketChannel clientChannel = serverChannel.accept();
+						getEventLoops().register(clientChannel, this);
+					}else{
+						// Wait here for new connection attempts, or a timeout
+						Socket clientSocket = serverSocket.accept();
+						// When a client is accepted, create a thread to handle
+						// the data exchange, then add it to thread group
+						addClientLock.lock();
+						try{
+							new TCPConnectionThread(clientSocket, this);
+						}finally{
+							addClientLock.unlock();
+						}
 					}
 				}
 				catch (InterruptedIOException exception){} // Called when timeout occurs, not used for now.
@@ -137,7 +206,16 @@ public abstract class TCPServer implements Runnable{
 	 * @throws IOException
 	 * @return void
 	 */
-	final synchronized public void close() throws IOException{
+	final public void close() throws IOException{
+		stateLock.lock();
+		try{
+			closeServer();
+		}finally{
+			stateLock.unlock();
+		}
+	}
+
+	private void closeServer() throws IOException{
 		if (serverSocket != null) {
 			stopListening();
 
@@ -147,17 +225,20 @@ public abstract class TCPServer implements Runnable{
 			finally{
 				// Shut it down!
 				// Close sockets to connected clients...
-				Thread[] clientThreadList = getConnectedClients();
+				TCPConnection[] clientList = getConnectedClients();
 
-				for(Thread client : clientThreadList){
+				for(TCPConnection client : clientList){
 					try{
-						((TCPConnectionThread)client).close();
+						client.close();
 					}catch(Exception exc) {// Ignore all exceptions when closing clients.
 						System.out.println("Error closing client connection: ");
 						exc.printStackTrace();
 					}
 				}
+				if(eventLoops != null)
+					eventLoops.shutdown();
 				serverSocket = null;
+				serverChannel = null;
 				registryHasClosed();
 			}
 		}
@@ -168,11 +249,11 @@ public abstract class TCPServer implements Runnable{
 	 * HOOK methods for debugging
 	 */
 
-	protected void clientConnected(TCPConnectionThread client) {}
+	protected void clientConnected(TCPConnection client) {}
 
-	synchronized protected void clientDisconnected(TCPConnectionThread client) {}
+	protected void clientDisconnected(TCPConnection client) {}
 
-	synchronized protected void clientException(TCPConnectionThread client, Throwable exception) {}
+	protected void clientException(TCPConnection client, Throwable exception) {}
 
 	protected void listeningException(Throwable exception) {}
 
@@ -185,16 +266,72 @@ public abstract class TCPServer implements Runnable{
 	/**
 	 * Method to inherit by sub-class
 	 * Used to handle messages
+	 * 
+	 * Called on the thread reading the connection, so messages from one
+	 * connection arrive in order but different connections are handled
+	 * in parallel. Implementations need to guard their own shared state
 	 * @param data
 	 * @param client
 	 */
-	protected abstract void onEvent(Event event, TCPConnectionThread client);
+	protected abstract void onEvent(Event event, TCPConnection client);
 
-	final synchronized void messageFromClient(byte[] data, TCPConnectionThread client){
-		Event event = ef.getEvent(data);
-		// passing TCPConnectionThread on to the Registry to 
-		// make things easier for response messages
-		onEvent(event, client);
+	/**
+	 * Optional hook to look at a frame before it's decoded
+	 * Return true to take the frame over, it's then neither decoded nor
+	 * released, the implementation hands it on (TCPConnection.sendFrameFromClientToClient)
+	 * or releases it itself. Return false to have it decoded and passed to onEvent
+	 * 
+	 * The frame runs from its position to its limit, same as
+	 * EventFactory.getEvent expects. Called on the reading thread, like onEvent
+	 * @param frame
+	 * @param client
+	 * @return boolean
+	 */
+	protected boolean onFrame(ByteBuffer frame, TCPConnection client){
+		return false;
+	}
+
+	final void messageFromClient(ByteBuffer data, TCPConnection client){
+		boolean handedOff = false;
+		try{
+			handedOff = onFrame(data, client);
+			if(!handedOff){
+				Event event = ef.getEvent(data);
+				// passing TCPConnectionThread on to the Registry to 
+				// make things easier for response messages
+				// Null if the frame couldn't be decoded, already reported
+				if(event != null)
+					onEvent(event, client);
+			}
+		}finally{
+			// Frame came from the pool, hand it back once handled
+			if(!handedOff)
+				pool.release(data);
+		}
+	}
+
+	/**
+	 * Connection bookkeeping, called by the transports
+	 */
+
+	final void addConnection(TCPConnection client){
+		connections.add(client);
+	}
+
+	final void removeConnection(TCPConnection client){
+		connections.remove(client);
+	}
+
+	// Selector threads are only started the first time they're needed
+	private NIOEventLoopGroup getEventLoops() throws IOException{
+		stateLock.lock();
+		try{
+			if(eventLoops == null)
+				eventLoops = new NIOEventLoopGroup(clientThreadGroup.getName());
+			return eventLoops;
+		}finally{
+			stateLock.unlock();
+		}
 	}
 
 }// ************** END TCPServer class **************
\ No newline at end of file
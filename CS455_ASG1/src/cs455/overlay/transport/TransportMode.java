@@ -0,0 +1,41 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.transport;
+
+/**
+ * Which transport a TCPServer uses for its connections
+ * BLOCKING is the original thread-per-connection transport,
+ * VIRTUAL is the same transport with its threads on virtual threads (Java 21+),
+ * NIO multiplexes every connection over a few selector threads
+ * @author sparkison
+ *
+ */
+
+public enum TransportMode {
+
+	BLOCKING,
+	VIRTUAL,
+	NIO;
+
+	/**
+	 * Get the mode from a command line argument
+	 * Falls back to BLOCKING if the argument isn't recognized
+	 * @param mode
+	 * @return TransportMode
+	 */
+	public static TransportMode parse(String mode){
+		if(mode != null){
+			for(TransportMode m : values()){
+				if(m.name().equalsIgnoreCase(mode.trim()))
+					return m;
+			}
+			System.out.println("Unrecognized transport \"" + mode + "\", using " + BLOCKING);
+		}
+		return BLOCKING;
+	}
+
+}// ************** END TransportMode enum **************
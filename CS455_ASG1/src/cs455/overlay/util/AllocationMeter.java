@@ -0,0 +1,78 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Tracks how many bytes the JVM's live threads have allocated
+ * since the last reset, used to report bytes allocated per packet
+ *
+ * Relies on the HotSpot ThreadMXBean extension, if it isn't
+ * available getBytesAllocated() returns -1
+ * Threads that die between reset and read drop out of the total
+ * @author sparkison
+ *
+ */
+
+public class AllocationMeter {
+
+	// Instance variables **************
+	private long baseline;
+
+	public AllocationMeter(){
+		reset();
+	}
+
+	/**
+	 * Start counting from now
+	 */
+	public void reset(){
+		baseline = totalAllocatedBytes();
+	}
+
+	/**
+	 * Bytes allocated since the last reset
+	 * @return long
+	 */
+	public long getBytesAllocated(){
+		long total = totalAllocatedBytes();
+		if(total < 0 || baseline < 0)
+			return -1;
+		return total - baseline;
+	}
+
+	/**
+	 * Bytes allocated per unit of work since the last reset
+	 * @param count
+	 * @return long
+	 */
+	public long getBytesAllocatedPer(long count){
+		long bytes = getBytesAllocated();
+		if(bytes < 0 || count <= 0)
+			return -1;
+		return bytes / count;
+	}
+
+	private static long totalAllocatedBytes(){
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		com.sun.management.ThreadMXBean hotspotBean = (com.sun.management.ThreadMXBean) bean;
+		if(!hotspotBean.isThreadAllocatedMemorySupported() || !hotspotBean.isThreadAllocatedMemoryEnabled())
+			return -1;
+
+		long total = 0;
+		for(long bytes : hotspotBean.getThreadAllocatedBytes(bean.getAllThreadIds())){
+			if(bytes > 0)
+				total += bytes;
+		}
+		return total;
+	}
+
+}// ************** END AllocationMeter class **************
@@ -0,0 +1,142 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pool of heap ByteBuffers for frames, shared by the transports
+ * and the EventFactory so a relay doesn't allocate a new array per packet
+ *
+ * Buffers come in power of two size classes from 64 bytes to 1MB,
+ * anything bigger is allocated and dropped as usual.
+ * Each class is a small array stack with its own lock, so
+ * acquire/release never allocate once the pool is warm
+ *
+ * Each class keeps at most 1024 buffers, and at most
+ * cs455.pool.bytesPerClass (default 4MB) worth of them, so one run
+ * of large payloads doesn't pin its buffers for good. The rest are
+ * left to the garbage collector
+ *
+ * A buffer must only be released once, a second release would hand
+ * the same array to two owners. Run with -ea to check every release
+ * @author sparkison
+ *
+ */
+
+public class BufferPool {
+
+	private static final int MIN_SHIFT = 6;
+	private static final int MAX_SHIFT = 20;
+	private static final int MAX_POOLED_PER_CLASS = 1024;
+	private static final int MAX_POOLED_BYTES_PER_CLASS = Integer.getInteger("cs455.pool.bytesPerClass", 4 * 1024 * 1024);
+
+	// Singleton instance
+	private static final BufferPool instance = new BufferPool();
+
+	// Instance variables **************
+	private ByteBuffer[][] free = new ByteBuffer[MAX_SHIFT - MIN_SHIFT + 1][];
+	private int[] freeCount = new int[MAX_SHIFT - MIN_SHIFT + 1];
+
+	// Exists only to defeat instantiation
+	protected BufferPool() {
+		for(int i = 0; i<free.length; ++i){
+			int classBytes = 1 << (i + MIN_SHIFT);
+			free[i] = new ByteBuffer[Math.max(1, Math.min(MAX_POOLED_PER_CLASS, MAX_POOLED_BYTES_PER_CLASS / classBytes))];
+		}
+	}
+
+	// Get instance of BufferPool
+	public static BufferPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Get a buffer with position 0 and limit of size
+	 * Capacity may be larger than asked for
+	 * @param size
+	 * @return ByteBuffer
+	 */
+	public ByteBuffer acquire(int size){
+		int sizeClass = sizeClass(size);
+		if(sizeClass < 0)
+			return ByteBuffer.allocate(size);
+
+		ByteBuffer buffer = null;
+		ByteBuffer[] stack = free[sizeClass];
+		synchronized(stack){
+			int count = freeCount[sizeClass];
+			if(count > 0){
+				buffer = stack[--count];
+				stack[count] = null;
+				freeCount[sizeClass] = count;
+			}
+		}
+		if(buffer == null)
+			buffer = ByteBuffer.allocate(1 << (sizeClass + MIN_SHIFT));
+
+		buffer.clear();
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Hand a buffer back once nothing references it anymore
+	 * Buffers that didn't come from the pool are ignored
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer){
+		if(buffer == null || !buffer.hasArray())
+			return;
+		int capacity = buffer.capacity();
+		int sizeClass = sizeClass(capacity);
+		// Only exact size class buffers go back in
+		if(sizeClass < 0 || (1 << (sizeClass + MIN_SHIFT)) != capacity)
+			return;
+
+		ByteBuffer[] stack = free[sizeClass];
+		synchronized(stack){
+			int count = freeCount[sizeClass];
+			// Released straight after the last release of the same array, cheap enough to always check
+			if(count > 0 && stack[count - 1].array() == buffer.array()){
+				System.out.println("Buffer released twice, ignoring: ");
+				new IllegalStateException("Buffer released twice").printStackTrace();
+				return;
+			}
+			assert !isFree(stack, count, buffer) : "Buffer released twice";
+			if(count < stack.length){
+				stack[count] = buffer;
+				freeCount[sizeClass] = count + 1;
+			}
+		}
+	}
+
+	// Whether the buffer's array is already on the stack, compares arrays so duplicate() views count too
+	private static boolean isFree(ByteBuffer[] stack, int count, ByteBuffer buffer){
+		for(int i = 0; i<count; ++i){
+			if(stack[i].array() == buffer.array())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Index of the smallest class that fits size, -1 if too big to pool
+	 * @param size
+	 * @return int
+	 */
+	private static int sizeClass(int size){
+		if(size > (1 << MAX_SHIFT))
+			return -1;
+		if(size <= (1 << MIN_SHIFT))
+			return 0;
+		// Round up to the next power of two
+		int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		return shift - MIN_SHIFT;
+	}
+
+}// ************** END BufferPool class **************
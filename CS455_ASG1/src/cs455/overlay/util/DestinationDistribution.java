@@ -0,0 +1,234 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Picks the sink for each packet a node sends
+ *
+ * The table is worked out once per task (Vose's alias method), after that a
+ * pick is a couple of random numbers and array loads, whatever the distribution
+ *
+ * Distributions, as given to start / start-rate:
+ * uniform			every other node equally (the default)
+ * zipf:S			node of rank k gets weight 1/k^S, ranked by node ID so every
+ * 					node agrees on which are hot
+ * hotspot:P		fraction P of packets go to the lowest node ID, the rest spread evenly
+ * permutation[:K]	each node only ever sends to the node K places after it
+ * 					in node ID order (defaults to halfway round the overlay)
+ * nearest			each node only sends to the next node ID, its nearest neighbor
+ * @author sparkison
+ *
+ */
+
+public class DestinationDistribution {
+
+	public static final int UNIFORM = 0;
+	public static final int ZIPF = 1;
+	public static final int HOTSPOT = 2;
+	public static final int PERMUTATION = 3;
+	public static final int NEAREST = 4;
+
+	private static final String[] NAMES = {"uniform", "zipf", "hotspot", "permutation", "nearest"};
+
+	// Instance variables **************
+	private int[] sinks;
+	// Alias table, null when every sink is equally likely
+	private double[] probability;
+	private int[] alias;
+
+	// Constructor **************
+	/**
+	 * @param sinks
+	 * @param weights relative weight of each sink, null for all the same
+	 */
+	private DestinationDistribution(int[] sinks, double[] weights){
+		this.sinks = sinks;
+		if(weights != null)
+			buildAliasTable(weights);
+	}
+
+	/**
+	 * Work out the table for one node
+	 * @param kind one of the constants above
+	 * @param parameter S for zipf, P for hotspot, K for permutation (0 for the default)
+	 * @param myID the node sending
+	 * @param nodeList every node in the overlay, including myID
+	 * @return DestinationDistribution, with no sinks if the node is on its own
+	 */
+	public static DestinationDistribution build(int kind, double parameter, int myID, int[] nodeList){
+		// Node ID order, the same on every node
+		int[] nodes = nodeList.clone();
+		Arrays.sort(nodes);
+		int me = Arrays.binarySearch(nodes, myID);
+		int[] others = new int[nodes.length];
+		int count = 0;
+		for(int node : nodes){
+			if(node != myID)
+				others[count++] = node;
+		}
+		others = Arrays.copyOf(others, count);
+		if(others.length == 0 || me < 0)
+			return new DestinationDistribution(others, null);
+
+		switch(kind){
+
+		case ZIPF:
+			double[] zipf = new double[others.length];
+			for(int i = 0; i<others.length; ++i){
+				// Rank in the whole overlay, so each node has the same rank everywhere
+				int rank = Arrays.binarySearch(nodes, others[i]) + 1;
+				zipf[i] = 1.0 / Math.pow(rank, parameter);
+			}
+			return new DestinationDistribution(others, zipf);
+
+		case HOTSPOT:
+			// The hot node itself spreads its packets evenly, it can't send to itself
+			if(nodes[0] == myID || others.length == 1)
+				return new DestinationDistribution(others, null);
+			double[] hotspot = new double[others.length];
+			hotspot[0] = parameter;
+			for(int i = 1; i<others.length; ++i){
+				hotspot[i] = (1.0 - parameter) / (others.length - 1);
+			}
+			return new DestinationDistribution(others, hotspot);
+
+		case PERMUTATION:
+			int shift = parameter >= 1 ? (int) parameter : nodes.length / 2;
+			if(shift % nodes.length == 0)
+				shift = 1;
+			return new DestinationDistribution(new int[]{nodes[(me + shift) % nodes.length]}, null);
+
+		case NEAREST:
+			return new DestinationDistribution(new int[]{nodes[(me + 1) % nodes.length]}, null);
+
+		default:
+			return new DestinationDistribution(others, null);
+		}
+	}
+
+	/**
+	 * Next packet's sink
+	 * @param rand the sender's own random
+	 * @return int node ID
+	 */
+	public int next(SplittableRandom rand){
+		int i = rand.nextInt(sinks.length);
+		if(probability == null || rand.nextDouble() < probability[i])
+			return sinks[i];
+		return sinks[alias[i]];
+	}
+
+	/**
+	 * @return whether there's anywhere to send to
+	 */
+	public boolean isEmpty(){
+		return sinks.length == 0;
+	}
+
+	/**
+	 * Parse the distribution part of a start command
+	 * @param spec e.g. uniform, zipf:1.2, hotspot:0.5, permutation:3, nearest
+	 * @return int kind
+	 * @throws IllegalArgumentException if it's not one of them
+	 */
+	public static int parseKind(String spec){
+		String name = spec.split(":")[0].trim().toLowerCase();
+		for(int i = 0; i<NAMES.length; ++i){
+			if(NAMES[i].equals(name))
+				return i;
+		}
+		throw new IllegalArgumentException("Unknown distribution \"" + name + "\"");
+	}
+
+	/**
+	 * Parse the parameter of a distribution, checking it makes sense for the kind
+	 * @param spec
+	 * @return double parameter, 0 if it has none
+	 * @throws IllegalArgumentException
+	 */
+	public static double parseParameter(String spec){
+		int kind = parseKind(spec);
+		String[] parts = spec.split(":");
+		if(parts.length < 2){
+			if(kind == ZIPF || kind == HOTSPOT)
+				throw new IllegalArgumentException(NAMES[kind] + " needs a parameter, e.g. " + (kind == ZIPF ? "zipf:1.1" : "hotspot:0.5"));
+			return 0;
+		}
+		double parameter = Double.parseDouble(parts[1].trim());
+		if(kind == ZIPF && parameter < 0)
+			throw new IllegalArgumentException("Zipf exponent can't be negative");
+		if(kind == HOTSPOT && (parameter < 0 || parameter > 1))
+			throw new IllegalArgumentException("Hotspot fraction needs to be between 0 and 1");
+		if(kind == PERMUTATION && (parameter < 1 || parameter != Math.floor(parameter)))
+			throw new IllegalArgumentException("Permutation shift needs to be a whole number of at least 1");
+		return parameter;
+	}
+
+	/**
+	 * @param kind
+	 * @param parameter
+	 * @return String the way it'd be typed in a command
+	 */
+	public static String describe(int kind, double parameter){
+		String name = kind >= 0 && kind < NAMES.length ? NAMES[kind] : "uniform";
+		if(kind == ZIPF || kind == HOTSPOT || (kind == PERMUTATION && parameter >= 1))
+			return name + ":" + (parameter == Math.floor(parameter) ? "" + (long) parameter : "" + parameter);
+		return name;
+	}
+
+	/**
+	 * Vose's alias method
+	 * Each slot keeps the chance of its own sink, and which sink to
+	 * use otherwise, so the weights come out exactly with one pick
+	 * @param weights
+	 */
+	private void buildAliasTable(double[] weights){
+		int n = weights.length;
+		double total = 0;
+		for(double weight : weights){
+			total += weight;
+		}
+		probability = new double[n];
+		alias = new int[n];
+		double[] scaled = new double[n];
+		List<Integer> small = new ArrayList<Integer>();
+		List<Integer> large = new ArrayList<Integer>();
+		for(int i = 0; i<n; ++i){
+			scaled[i] = weights[i] * n / total;
+			if(scaled[i] < 1.0)
+				small.add(i);
+			else
+				large.add(i);
+		}
+		while(!small.isEmpty() && !large.isEmpty()){
+			int less = small.remove(small.size() - 1);
+			int more = large.remove(large.size() - 1);
+			probability[less] = scaled[less];
+			alias[less] = more;
+			scaled[more] = scaled[more] + scaled[less] - 1.0;
+			if(scaled[more] < 1.0)
+				small.add(more);
+			else
+				large.add(more);
+		}
+		// Whatever's left is 1 give or take rounding
+		for(int i : large){
+			probability[i] = 1.0;
+			alias[i] = i;
+		}
+		for(int i : small){
+			probability[i] = 1.0;
+			alias[i] = i;
+		}
+	}
+
+}// ************** END DestinationDistribution class **************
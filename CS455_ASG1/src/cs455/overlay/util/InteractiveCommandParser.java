@@ -8,6 +8,7 @@ package cs455.overlay.util;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 
 import cs455.overlay.node.MessagingNode;
 import cs455.overlay.node.Registry;
@@ -17,6 +18,9 @@ public class InteractiveCommandParser{
 	// Instance variables **************
 	Registry registeryNode;
 	MessagingNode messageNode;
+	// Distribution of the start command being parsed, only handed to the Registry with the task
+	private int distribution;
+	private double distributionParameter;
 
 	// Constructor for Registry **************
 	public InteractiveCommandParser(Registry registeryNode){
@@ -88,17 +92,55 @@ public class InteractiveCommandParser{
 			}else{
 				registeryNode.sendNodeManifest();
 			}
+		}else if(message.startsWith("payload-size")){
+			try{
+				int payloadBytes = Integer.parseInt(message.split(" ")[1]);
+				if(payloadBytes < 0 || payloadBytes > Registry.MAX_PAYLOAD_BYTES){
+					System.out.println("Payload size needs to be between 0 and " + Registry.MAX_PAYLOAD_BYTES + " bytes");
+				}else{
+					registeryNode.setPayloadBytes(payloadBytes);
+				}
+			}catch(ArrayIndexOutOfBoundsException | NumberFormatException e){
+				System.out.println("Incorrect format for payload-size command, please use \"payload-size [bytes]\"");
+			}
+		}else if(message.startsWith("start-rate")){
+			/*
+			 * start-rate [packets-per-second] [seconds] [max-packets-per-second] [step] [distribution]
+			 * Rate is per node, with a max rate the rounds repeat, raising the rate by step
+			 */
+			String[] args = takeDistribution(message.split(" "));
+			if(args == null)
+				return;
+			try{
+				int rate = Integer.parseInt(args[1]);
+				int seconds = Integer.parseInt(args[2]);
+				int maxRate = args.length > 3 ? Integer.parseInt(args[3]) : rate;
+				int step = args.length > 4 ? Integer.parseInt(args[4]) : rate;
+				if(rate < 1 || seconds < 1 || step < 1){
+					System.out.println("Rate, seconds and step need to be at least 1");
+				}else{
+					registeryNode.setDistribution(distribution, distributionParameter);
+					registeryNode.requestRateSweep(rate, seconds, maxRate, step);
+				}
+			}catch(ArrayIndexOutOfBoundsException | NumberFormatException e){
+				System.out.println("Incorrect format for start-rate command, please use \"start-rate [packets-per-second] [seconds] [max-packets-per-second] [step] [distribution]\"");
+			}
+
 		}else if(message.startsWith("start")){
 			int numMessages;
+			String[] args = takeDistribution(message.split(" "));
+			if(args == null)
+				return;
 			try{
-				numMessages = Integer.parseInt(message.split(" ")[1]);
+				numMessages = Integer.parseInt(args[1]);
 				if(numMessages < 1){
 					System.out.println("Need a minimum of 1 packet to start, you entered " + numMessages);
 				}else{
+					registeryNode.setDistribution(distribution, distributionParameter);
 					registeryNode.requestTaskInitiate(numMessages);
 				}
-			}catch(ArrayIndexOutOfBoundsException e){
-				System.out.println("Incorrect format for start command, please use \"start [number-of-messages]\"");
+			}catch(ArrayIndexOutOfBoundsException | NumberFormatException e){
+				System.out.println("Incorrect format for start command, please use \"start [number-of-messages] [distribution]\"");
 			}
 
 		}else{
@@ -106,6 +148,33 @@ public class InteractiveCommandParser{
 		}
 	}
 
+	/**
+	 * Pull the optional distribution (uniform, zipf:S, hotspot:P, permutation[:K]
+	 * or nearest) off the end of a start command, uniform if there isn't one
+	 * It's only checked here, the command hands it to the Registry once the
+	 * rest of its arguments are valid too
+	 * @param args the command split on spaces
+	 * @return the rest of the arguments, null if the distribution was invalid
+	 */
+	private String[] takeDistribution(String[] args){
+		String last = args[args.length - 1];
+		// Distributions are named, anything else (a count, or a negative one) is left to the command
+		if(args.length < 2 || !Character.isLetter(last.charAt(0))){
+			distribution = DestinationDistribution.UNIFORM;
+			distributionParameter = 0;
+			return args;
+		}
+		try{
+			distribution = DestinationDistribution.parseKind(last);
+			distributionParameter = DestinationDistribution.parseParameter(last);
+		}catch(IllegalArgumentException e){
+			// NumberFormatException is one of these too
+			System.out.println("Invalid distribution: " + e.getMessage());
+			return null;
+		}
+		return Arrays.copyOf(args, args.length - 1);
+	}
+
 	/**
 	 * Used to parse commands from Client
 	 * @param message
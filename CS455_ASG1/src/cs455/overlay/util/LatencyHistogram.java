@@ -0,0 +1,190 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds, safe to record into from any thread
+ *
+ * Buckets are log-linear: exact below 32us, above that each power of two
+ * is split into 32 buckets, so any value is off by at most ~3% whether it's
+ * 50us or 5s, with a fixed 1152 buckets (anything over 2^40us lands in the last)
+ *
+ * Goes over the wire sparsely, only the buckets with something in them
+ * @author sparkison
+ *
+ */
+
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_BITS = 40;
+	private static final int BUCKETS = SUB_BUCKETS + (MAX_BITS - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	// Most writeTo can take, every bucket in use
+	public static final int MAX_MARSHALLED_BYTES = 12 + 12 * BUCKETS;
+
+	// Instance variables **************
+	private AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private AtomicLong max = new AtomicLong();
+
+	/**
+	 * Wall clock time in microseconds since the epoch
+	 * Used to stamp packets, so latency is only as good as
+	 * the clocks of the two nodes are in sync
+	 * @return long
+	 */
+	public static long epochMicros(){
+		Instant now = Instant.now();
+		return now.getEpochSecond() * 1000000L + now.getNano() / 1000;
+	}
+
+	/**
+	 * Add one value, negative values (clock skew) count as 0
+	 * @param micros
+	 */
+	public void record(long micros){
+		if(micros < 0)
+			micros = 0;
+		counts.incrementAndGet(bucket(micros));
+		long current;
+		while(micros > (current = max.get()) && !max.compareAndSet(current, micros)){}
+	}
+
+	/**
+	 * Add everything recorded in other to this one
+	 * @param other
+	 */
+	public void add(LatencyHistogram other){
+		for(int i = 0; i<BUCKETS; ++i){
+			long count = other.counts.get(i);
+			if(count != 0)
+				counts.addAndGet(i, count);
+		}
+		long current;
+		long otherMax = other.getMax();
+		while(otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)){}
+	}
+
+	public void reset(){
+		for(int i = 0; i<BUCKETS; ++i){
+			counts.set(i, 0);
+		}
+		max.set(0);
+	}
+
+	public long getCount(){
+		long total = 0;
+		for(int i = 0; i<BUCKETS; ++i){
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	public long getMax(){
+		return max.get();
+	}
+
+	/**
+	 * Smallest value that percentile percent of the values are at or below
+	 * Reported as the top of its bucket (capped at the max), 0 if empty
+	 * @param percentile 0 to 100
+	 * @return long
+	 */
+	public long getValueAtPercentile(double percentile){
+		long total = getCount();
+		if(total == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for(int i = 0; i<BUCKETS; ++i){
+			seen += counts.get(i);
+			if(seen >= target)
+				return Math.min(highestValueIn(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Marshal the non-empty buckets
+	 * Format: max, number of buckets, then (bucket, count) pairs
+	 * One pass, so a value recorded meanwhile can't make the count disagree with the pairs
+	 * @param buffer needs MAX_MARSHALLED_BYTES remaining
+	 */
+	public void writeTo(ByteBuffer buffer){
+		buffer.putLong(getMax());
+		int usedAt = buffer.position();
+		buffer.putInt(0);
+		int used = 0;
+		for(int i = 0; i<BUCKETS; ++i){
+			long count = counts.get(i);
+			if(count != 0){
+				buffer.putInt(i);
+				buffer.putLong(count);
+				++used;
+			}
+		}
+		buffer.putInt(usedAt, used);
+	}
+
+	/**
+	 * Unmarshal a histogram written by writeTo
+	 * @param buffer
+	 * @return LatencyHistogram
+	 * @throws IOException
+	 */
+	public static LatencyHistogram readFrom(ByteBuffer buffer) throws IOException{
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.max.set(buffer.getLong());
+		int used = buffer.getInt();
+		if(used < 0 || used > BUCKETS)
+			throw new IOException("Invalid histogram bucket count: " + used);
+		for(int i = 0; i<used; ++i){
+			int bucket = buffer.getInt();
+			if(bucket < 0 || bucket >= BUCKETS)
+				throw new IOException("Invalid histogram bucket: " + bucket);
+			histogram.counts.set(bucket, buffer.getLong());
+		}
+		return histogram;
+	}
+
+	/**
+	 * Which bucket a value goes in
+	 * @param value
+	 * @return int
+	 */
+	private static int bucket(long value){
+		if(value < SUB_BUCKETS)
+			return (int) value;
+		int exponent = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		if(exponent >= MAX_BITS - SUB_BUCKET_BITS)
+			return BUCKETS - 1;
+		int subBucket = (int) (value >>> exponent) - SUB_BUCKETS;
+		return SUB_BUCKETS + exponent * SUB_BUCKETS + subBucket;
+	}
+
+	/**
+	 * Largest value that goes in a bucket
+	 * @param bucket
+	 * @return long
+	 */
+	private static long highestValueIn(int bucket){
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		long lowest = (long) (SUB_BUCKETS + subBucket) << exponent;
+		return lowest + (1L << exponent) - 1;
+	}
+
+}// ************** END LatencyHistogram class **************
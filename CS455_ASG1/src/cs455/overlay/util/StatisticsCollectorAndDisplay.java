@@ -1,6 +1,9 @@
 package cs455.overlay.util;
 
 import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import cs455.overlay.wireformats.Event;
 import cs455.overlay.wireformats.OverlayNodeReportsTrafficSummary;
@@ -9,6 +12,8 @@ public class StatisticsCollectorAndDisplay {
 
 	// Instance variables **************
 	List<Event> nodesSummary;
+	// Overlay wide latency of the last table built
+	LatencyHistogram latency = new LatencyHistogram();
 	
 	public void sendNodeData(List<Event> nodesSummary){
 		this.nodesSummary = nodesSummary;
@@ -51,6 +56,136 @@ public class StatisticsCollectorAndDisplay {
 		// Print the table!
 		System.out.println(statsTable);
 		
+		buildBytesTable();
+		buildLatencyTable();
+		
+	}
+	
+	/**
+	 * Packet data moved, only shown once packets carry data (payload-size)
+	 * Corrupt packets are ones whose data didn't match its checksum at the sink
+	 */
+	private void buildBytesTable(){
+		
+		long totalBytesSent = 0, totalBytesReceived = 0, totalBytesRelayed = 0, totalCorrupt = 0;
+		String border = String.format("+----------+-------------------+-------------------+-------------------+-----------------+%n");
+		String bytesTable = "\n";
+		bytesTable += String.format("    DATA   | BYTES SENT        | BYTES RECEIVED    | BYTES RELAYED     | CORRUPT PACKETS |%n");
+		bytesTable += border;
+		
+		for(Event event : nodesSummary){
+			
+			OverlayNodeReportsTrafficSummary nodeSummary = (OverlayNodeReportsTrafficSummary) event;
+			
+			totalBytesSent += nodeSummary.getNumBytesSent();
+			totalBytesReceived += nodeSummary.getNumBytesReceived();
+			totalBytesRelayed += nodeSummary.getNumBytesRelayed();
+			totalCorrupt += nodeSummary.getNumPacketsCorrupt();
+			
+			bytesTable += String.format("| %-8s | %-17d | %-17d | %-17d | %-15d |%n", "NODE " + nodeSummary.getNodeID(), 
+					nodeSummary.getNumBytesSent(), nodeSummary.getNumBytesReceived(), 
+					nodeSummary.getNumBytesRelayed(), nodeSummary.getNumPacketsCorrupt());
+			bytesTable += border;
+			
+		}
+		bytesTable += String.format("| %-8s | %-17d | %-17d | %-17d | %-15d |%n", "SUM", 
+				totalBytesSent, totalBytesReceived, totalBytesRelayed, totalCorrupt);
+		bytesTable += border;
+		
+		if(totalBytesSent == 0 && totalCorrupt == 0)
+			return;
+		System.out.println(bytesTable);
+		if(totalCorrupt > 0)
+			System.out.println(totalCorrupt + " packets arrived with corrupt data!");
+		
+	}
+	
+	/**
+	 * One way latency of delivered packets, in microseconds
+	 * Per node (as the sink), overlay wide, then overlay wide by how many
+	 * times the packets were relayed
+	 */
+	private void buildLatencyTable(){
+		
+		LatencyHistogram overall = new LatencyHistogram();
+		SortedMap<Integer, LatencyHistogram> overallByHops = new TreeMap<Integer, LatencyHistogram>();
+		
+		String border = String.format("+----------+-------------------+------------+------------+------------+------------+------------+%n");
+		String latencyTable = "\n";
+		latencyTable += String.format("  LATENCY  | PACKETS TIMED     | P50 (us)   | P90 (us)   | P99 (us)   | P99.9 (us) | MAX (us)   |%n");
+		latencyTable += border;
+		
+		for(Event event : nodesSummary){
+			
+			OverlayNodeReportsTrafficSummary nodeSummary = (OverlayNodeReportsTrafficSummary) event;
+			
+			for(Map.Entry<Integer, LatencyHistogram> entry : nodeSummary.getLatencyByHops().entrySet()){
+				LatencyHistogram byHops = overallByHops.get(entry.getKey());
+				if(byHops == null){
+					byHops = new LatencyHistogram();
+					overallByHops.put(entry.getKey(), byHops);
+				}
+				byHops.add(entry.getValue());
+				overall.add(entry.getValue());
+			}
+			
+			latencyTable += formatLatency("NODE " + nodeSummary.getNodeID(), nodeSummary.getLatency());
+			latencyTable += border;
+			
+		}
+		latencyTable += formatLatency("ALL", overall);
+		latencyTable += border;
+		latency = overall;
+		
+		if(overall.getCount() == 0){
+			System.out.println("No packets were timed, latency not reported");
+			return;
+		}
+		
+		for(Map.Entry<Integer, LatencyHistogram> entry : overallByHops.entrySet()){
+			latencyTable += formatLatency(entry.getKey() + " HOPS", entry.getValue());
+		}
+		latencyTable += border;
+		
+		System.out.println(latencyTable);
+		
+	}
+	
+	/**
+	 * @return overlay wide latency from the last summaries displayed
+	 */
+	public LatencyHistogram getLatency(){
+		return latency;
+	}
+	
+	/**
+	 * Latency at each offered load of a sweep, where the
+	 * tail takes off is the most the overlay can keep up with
+	 * @param latencyByRate overlay wide latency keyed by packets/sec per node
+	 */
+	public void printSweep(SortedMap<Integer, LatencyHistogram> latencyByRate){
+		
+		String border = String.format("+------------+-------------------+------------+------------+------------+------------+%n");
+		String sweepTable = "\n";
+		sweepTable += String.format(" RATE (pps) | PACKETS TIMED     | P50 (us)   | P99 (us)   | P99.9 (us) | MAX (us)   |%n");
+		sweepTable += border;
+		for(Map.Entry<Integer, LatencyHistogram> entry : latencyByRate.entrySet()){
+			LatencyHistogram atRate = entry.getValue();
+			sweepTable += String.format("| %-10d | %-17d | %-10d | %-10d | %-10d | %-10d |%n", entry.getKey(), atRate.getCount(), 
+					atRate.getValueAtPercentile(50), atRate.getValueAtPercentile(99), 
+					atRate.getValueAtPercentile(99.9), atRate.getMax());
+		}
+		sweepTable += border;
+		
+		System.out.println(sweepTable);
+		
+	}
+	
+	private String formatLatency(String label, LatencyHistogram latency){
+		return String.format("| %-8s | %-17d | %-10d | %-10d | %-10d | %-10d | %-10d |%n", label, latency.getCount(), 
+				latency.getValueAtPercentile(50), latency.getValueAtPercentile(90), 
+				latency.getValueAtPercentile(99), latency.getValueAtPercentile(99.9), 
+				latency.getMax());
 	}
 	
 }
@@ -0,0 +1,199 @@
+/**
+ * @author Shaun Parkison (shaunpa)
+ * Colorado State University
+ * CS455 - Dist. Systems
+ */
+
+package cs455.overlay.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs the hop trace of delivered packets without making the
+ * receive threads wait on stdout
+ *
+ * Receive threads copy the trace into a slot of a fixed ring buffer and
+ * move on, a single daemon thread formats whatever has been queued and
+ * prints it in one go. If the ring is full the trace is dropped
+ * (and counted) rather than slowing delivery down
+ *
+ * Mode comes from the cs455.trace system property:
+ * off			no traces
+ * sample:N		roughly 1 in N delivered packets, picked at random
+ * full			every packet, as long as the printer keeps up
+ * Defaults to sample:1000
+ * @author sparkison
+ *
+ */
+
+public class TraceLogger {
+
+	private static final int CAPACITY = 4096;
+	// Most records printed per write to stdout
+	private static final int MAX_BATCH = 256;
+	private static final long IDLE_PARK_NANOS = 1000000;
+
+	// Instance variables **************
+	private int sampleRate;
+	private String mode;
+	private LongAdder dropped = new LongAdder();
+	private volatile Thread printer;
+
+	/*
+	 * Bounded multi-producer ring (Vyukov style), a slot's sequence says whose
+	 * turn it is: equal to a producer's ticket when free, ticket+1 once written
+	 * Record fields are kept in parallel primitive arrays, so logging allocates
+	 * nothing unless a trace is longer than the slot has room for
+	 */
+	private AtomicLong tail = new AtomicLong();
+	private AtomicLongArray sequence = new AtomicLongArray(CAPACITY);
+	private long head = 0;
+	private int[] nodeIDs = new int[CAPACITY];
+	private int[] sourceIDs = new int[CAPACITY];
+	private int[] hopLengths = new int[CAPACITY];
+	private int[] hopCounts = new int[CAPACITY];
+	private int[][] hops = new int[CAPACITY][8];
+
+	// Constructor **************
+	/**
+	 * @param mode off, sample:N or full
+	 */
+	public TraceLogger(String mode){
+		this.mode = mode == null ? "sample:1000" : mode.trim().toLowerCase();
+		if(this.mode.equals("off")){
+			sampleRate = 0;
+		}else if(this.mode.equals("full")){
+			sampleRate = 1;
+		}else if(this.mode.startsWith("sample:")){
+			try{
+				sampleRate = Math.max(1, Integer.parseInt(this.mode.substring("sample:".length())));
+			}catch(NumberFormatException e){
+				System.out.println("Invalid trace sample rate \"" + mode + "\", using sample:1000");
+				sampleRate = 1000;
+			}
+		}else{
+			System.out.println("Unrecognized trace mode \"" + mode + "\", using sample:1000");
+			sampleRate = 1000;
+		}
+		for(int i = 0; i<CAPACITY; ++i){
+			sequence.set(i, i);
+		}
+	}
+
+	/**
+	 * Whether the next delivered packet should be traced
+	 * Callers ask first, so unsampled packets needn't be decoded at all
+	 * @return boolean
+	 */
+	public boolean sample(){
+		if(sampleRate <= 1)
+			return sampleRate == 1;
+		return ThreadLocalRandom.current().nextInt(sampleRate) == 0;
+	}
+
+	/**
+	 * Queue a delivered packet's trace for printing
+	 * @param nodeID the sink
+	 * @param sourceID
+	 * @param hopLength number of hops the packet was relayed
+	 * @param trace node IDs the packet passed through
+	 */
+	public void logDelivery(int nodeID, int sourceID, int hopLength, int[] trace){
+		long ticket = tail.get();
+		int slot;
+		while(true){
+			slot = (int) (ticket & (CAPACITY - 1));
+			long diff = sequence.get(slot) - ticket;
+			if(diff == 0){
+				if(tail.compareAndSet(ticket, ticket + 1))
+					break;
+				ticket = tail.get();
+			}else if(diff < 0){
+				// Printer is a whole ring behind
+				dropped.increment();
+				return;
+			}else{
+				ticket = tail.get();
+			}
+		}
+
+		nodeIDs[slot] = nodeID;
+		sourceIDs[slot] = sourceID;
+		hopLengths[slot] = hopLength;
+		if(hops[slot].length < trace.length)
+			hops[slot] = new int[trace.length];
+		System.arraycopy(trace, 0, hops[slot], 0, trace.length);
+		hopCounts[slot] = trace.length;
+		// Publish
+		sequence.lazySet(slot, ticket + 1);
+
+		startPrinter();
+	}
+
+	public String getMode(){
+		return mode;
+	}
+
+	// Printer thread only starts once there's something to print
+	private void startPrinter(){
+		if(printer != null)
+			return;
+		synchronized(this){
+			if(printer == null){
+				Thread thread = new Thread(new Runnable(){
+					public void run(){
+						printTraces();
+					}
+				}, "Trace logger");
+				thread.setDaemon(true);
+				thread.start();
+				printer = thread;
+			}
+		}
+	}
+
+	/**
+	 * Printer thread loop
+	 * Formats up to MAX_BATCH queued traces and prints them with a single call
+	 */
+	private void printTraces(){
+		StringBuilder batch = new StringBuilder(64 * MAX_BATCH);
+		while(true){
+			batch.setLength(0);
+			int printed = 0;
+			while(printed < MAX_BATCH){
+				int slot = (int) (head & (CAPACITY - 1));
+				if(sequence.get(slot) != head + 1)
+					break;
+
+				batch.append("Received payload for node (").append(nodeIDs[slot]).append(")!!\n");
+				batch.append("Trace: num hops = ").append(hopLengths[slot]).append(", trace route = (SRC: ")
+					.append(sourceIDs[slot]).append(")");
+				int[] trace = hops[slot];
+				for(int i = 0; i<hopCounts[slot]; ++i){
+					batch.append("->").append(trace[i]);
+				}
+				batch.append("\n\n");
+
+				// Hand the slot back to the producers
+				sequence.lazySet(slot, head + CAPACITY);
+				++head;
+				++printed;
+			}
+
+			long lost = dropped.sumThenReset();
+			if(lost > 0)
+				batch.append("(").append(lost).append(" traces dropped, printing can't keep up)\n\n");
+
+			if(batch.length() > 0)
+				System.out.print(batch);
+			else
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+		}
+	}
+
+}// ************** END TraceLogger class **************
@@ -0,0 +1,167 @@
+package cs455.overlay.wireformats;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+public class DataRecord {
+
+	/*
+	 * One data packet inside an OverlayNodeSendsDataBatch, read in place
+	 * Same fields as an OverlayNodeSendsData without its type:
+	 * destinationID, sourceID, payLoad, send time, data length, data checksum,
+	 * hop count, the data bytes, then one int per hop
+	 *
+	 * A flyweight, the batch's iterator moves the same record along the
+	 * batch, so it's only good until the next call to next()
+	 */
+
+	// Field offsets from the start of a record
+	private static final int DESTINATION_OFFSET = 0;
+	private static final int SOURCE_OFFSET = 4;
+	private static final int PAYLOAD_OFFSET = 8;
+	private static final int SEND_TIME_OFFSET = 12;
+	private static final int DATA_LENGTH_OFFSET = 20;
+	private static final int DATA_CHECKSUM_OFFSET = 24;
+	private static final int HOP_COUNT_OFFSET = 28;
+	private static final int DATA_OFFSET = 32;
+
+	// Bytes of a record with no data or hops yet, write adds the data
+	public static final int NEW_RECORD_BYTES = DATA_OFFSET;
+
+	private ByteBuffer buffer;
+	private int offset;
+
+	DataRecord(ByteBuffer buffer){
+		this.buffer = buffer;
+	}
+
+	void moveTo(int offset){
+		this.offset = offset;
+	}
+
+	/**
+	 * Length of the record at offset, checked against the buffer
+	 * @param buffer
+	 * @param offset
+	 * @param limit end of the records
+	 * @return int, -1 if it's malformed or runs past limit
+	 */
+	static int lengthAt(ByteBuffer buffer, int offset, int limit){
+		if(offset + DATA_OFFSET > limit)
+			return -1;
+		int dataLength = buffer.getInt(offset + DATA_LENGTH_OFFSET);
+		int hopCount = buffer.getInt(offset + HOP_COUNT_OFFSET);
+		if(dataLength < 0 || hopCount < 0 || dataLength > limit - offset || hopCount > (limit - offset) / 4)
+			return -1;
+		long length = (long) DATA_OFFSET + dataLength + 4L * hopCount;
+		return length > limit - offset ? -1 : (int) length;
+	}
+
+	/**
+	 * Marshal a new record, with no hops yet, at the buffer's position
+	 * @param records needs NEW_RECORD_BYTES plus dataLength remaining
+	 * @param destinationID
+	 * @param sourceID
+	 * @param payLoad
+	 * @param sendTime epoch microseconds, or 0 for none
+	 * @param data array holding the data bytes
+	 * @param dataOffset
+	 * @param dataLength
+	 * @param dataChecksum from OverlayNodeSendsData.checksum() over the same bytes
+	 */
+	public static void write(ByteBuffer records, int destinationID, int sourceID, int payLoad, long sendTime,
+			byte[] data, int dataOffset, int dataLength, int dataChecksum){
+		records.putInt(destinationID);
+		records.putInt(sourceID);
+		records.putInt(payLoad);
+		records.putLong(sendTime);
+		records.putInt(dataLength);
+		records.putInt(dataChecksum);
+		records.putInt(0);
+		records.put(data, dataOffset, dataLength);
+	}
+
+	/**
+	 * Copy this record to the buffer's position with one more hop on the end
+	 * Same as OverlayNodeSendsData.relay, for a record being re-packed
+	 * into the batch for its next hop
+	 * @param records needs getLength() + 4 remaining
+	 * @param hop
+	 */
+	public void relayTo(ByteBuffer records, int hop){
+		int start = records.position();
+		int length = getLength();
+		records.put(buffer.array(), buffer.arrayOffset() + offset, length);
+		records.putInt(hop);
+		records.putInt(start + HOP_COUNT_OFFSET, getHopCount() + 1);
+	}
+
+	/**
+	 * Check the data against its checksum, in place
+	 * @param crc reused by the caller
+	 * @return boolean whether they match
+	 */
+	public boolean verifyData(CRC32 crc){
+		return OverlayNodeSendsData.checksum(crc, buffer.array(), buffer.arrayOffset() + offset + DATA_OFFSET, getDataLength())
+				== buffer.getInt(offset + DATA_CHECKSUM_OFFSET);
+	}
+
+	/**
+	 * @return bytes the record takes up
+	 */
+	public int getLength() {
+		return DATA_OFFSET + getDataLength() + 4 * getHopCount();
+	}
+
+	public int getDestinationID() {
+		return buffer.getInt(offset + DESTINATION_OFFSET);
+	}
+
+	public int getSourceID() {
+		return buffer.getInt(offset + SOURCE_OFFSET);
+	}
+
+	public int getPayLoad() {
+		return buffer.getInt(offset + PAYLOAD_OFFSET);
+	}
+
+	/**
+	 * @return the sendTime, epoch microseconds, 0 if not stamped
+	 */
+	public long getSendTime() {
+		return buffer.getLong(offset + SEND_TIME_OFFSET);
+	}
+
+	public int getDataLength() {
+		return buffer.getInt(offset + DATA_LENGTH_OFFSET);
+	}
+
+	/**
+	 * @return hops relayed through
+	 */
+	public int getHopCount() {
+		return buffer.getInt(offset + HOP_COUNT_OFFSET);
+	}
+
+	/**
+	 * @param i
+	 * @return the i'th node the record passed through
+	 */
+	public int getHop(int i) {
+		return buffer.getInt(offset + DATA_OFFSET + getDataLength() + 4 * i);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "DataRecord [destinationID=" + getDestinationID()
+				+ ", sourceID=" + getSourceID()
+				+ ", payLoad=" + getPayLoad()
+				+ ", sendTime=" + getSendTime()
+				+ ", dataLength=" + getDataLength()
+				+ ", hopCount=" + getHopCount() + "]";
+	}
+
+}
@@ -0,0 +1,19 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unmarshals one Protocol message type, registered with EventFactory.register
+ * @author sparkison
+ *
+ */
+
+public interface EventDecoder {
+	/**
+	 * @param frame just this message, the type at position 0
+	 * @return Event
+	 * @throws IOException if the frame is malformed
+	 */
+	public Event decode(ByteBuffer frame) throws IOException;
+}
@@ -6,32 +6,96 @@
 
 package cs455.overlay.wireformats;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
 
 public class EventFactory {
-	// Singleton instance
-	private static EventFactory instance = null;
+	// Singleton instance, made up front since the decoders registered with it are shared by every thread
+	private static final EventFactory instance = new EventFactory();
+
+	// Decoders indexed by Protocol type, null where there's no such message
+	private volatile EventDecoder[] decoders = new EventDecoder[0];
+	private final Object registerLock = new Object();
 
 	// Exists only to defeat instantiation
 	protected EventFactory() {
-
+		register(Protocol.OVERLAY_NODE_SENDS_REGISTRATION, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new OverlayNodeSendsRegistration(frame); }
+		});
+		register(Protocol.REGISTRY_REPORTS_REGISTRATION_STATUS, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new RegistryReportsRegistrationStatus(frame); }
+		});
+		register(Protocol.OVERLAY_NODE_SENDS_DEREGISTRATION, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new OverlayNodeSendsDeregistration(frame); }
+		});
+		register(Protocol.REGISTRY_REPORTS_DEREGISTRATION_STATUS, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new RegistryReportsDeregistrationStatus(frame); }
+		});
+		register(Protocol.REGISTRY_SENDS_NODE_MANIFEST, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new RegistrySendsNodeManifest(frame); }
+		});
+		register(Protocol.NODE_REPORTS_OVERLAY_SETUP_STATUS, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new NodeReportsOverlaySetupStatus(frame); }
+		});
+		register(Protocol.REGISTRY_REQUESTS_TASK_INITIATE, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new RegistryRequestsTaskInitiate(frame); }
+		});
+		register(Protocol.OVERLAY_NODE_SENDS_DATA, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new OverlayNodeSendsData(frame); }
+		});
+		register(Protocol.OVERLAY_NODE_REPORTS_TASK_FINISHED, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new OverlayNodeReportsTaskFinished(frame); }
+		});
+		register(Protocol.REGISTRY_REQUESTS_TRAFFIC_SUMMARY, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new RegistryRequestsTrafficSummary(frame); }
+		});
+		register(Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new OverlayNodeReportsTrafficSummary(frame); }
+		});
+		register(Protocol.REGISTRY_REQUESTS_TRAFFIC_COUNTS, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new RegistryRequestsTrafficCounts(frame); }
+		});
+		register(Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_COUNTS, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new OverlayNodeReportsTrafficCounts(frame); }
+		});
+		register(Protocol.OVERLAY_NODE_SENDS_DATA_BATCH, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new OverlayNodeSendsDataBatch(frame); }
+		});
+		register(Protocol.REGISTRY_SENDS_MANIFEST_DELTA, new EventDecoder(){
+			public Event decode(ByteBuffer frame) throws IOException { return new RegistrySendsManifestDelta(frame); }
+		});
 	}
 
 	// Get instance of EventFactory
 	public static EventFactory getInstance() {
-		if (instance == null) {
-			instance = new EventFactory();
-		}
 		return instance;
 	}
 
+	/**
+	 * Add (or replace) the decoder for a message type
+	 * New messages only need a Protocol constant and a call here,
+	 * getEvent picks them up without any other changes
+	 * @param type
+	 * @param decoder
+	 */
+	public void register(int type, EventDecoder decoder) {
+		if (type < 0)
+			throw new IllegalArgumentException("Invalid event type: " + type);
+		synchronized (registerLock) {
+			// Copy on write, getEvent reads the array without locking
+			EventDecoder[] updated = Arrays.copyOf(decoders, Math.max(decoders.length, type + 1));
+			updated[type] = decoder;
+			decoders = updated;
+		}
+	}
+
 	/**
 	 * Precondition(s):
 	 * 1.	Type is the message type based on the Protocol interface
-	 * 2.	Message is String, sent with correct number of arguments
-	 * 3.	Arguments are separated by ';'
+	 * 2.	Passed byte[] data for constructing the event
 	 * 
 	 * Postcondition(s):
 	 * 1.	Returns appropriate Node type based on 'type' argument
@@ -39,241 +103,54 @@ public class EventFactory {
 	 * 
 	 * @return Event
 	 */
-	public Event buildEvent(int type, String message) {
-		
-		// Get the message components
-		String[] eventMessage = getMessage(message);
-
-		switch (type) {
-
-		case Protocol.NODE_REPORTS_OVERLAY_SETUP_STATUS:
-			if (eventMessage.length == 3) {
-				return new NodeReportsOverlaySetupStatus(type, 
-						Integer.parseInt(eventMessage[0]), Integer.parseInt(eventMessage[1]), 
-						eventMessage[2]);
-			}else{
-				System.out.println("Incorrect message length sent");
-			}
-			break;
-
-		case Protocol.OVERLAY_NODE_REPORTS_TASK_FINISHED:
-			if (eventMessage.length == 3) {
-				return new OverlayNodeReportsTaskFinished(type, eventMessage[0], 
-						Integer.parseInt(eventMessage[1]), Integer.parseInt(eventMessage[2]));
-			}else{
-				System.out.println("Incorrect message length sent");
-			}
-			break;
-
-		case Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY:
-			if (eventMessage.length == 6) {
-				return new OverlayNodeReportsTrafficSummary(type, Integer.parseInt(eventMessage[0]), 
-						Integer.parseInt(eventMessage[1]), Integer.parseInt(eventMessage[2]), 
-						Long.parseLong(eventMessage[3]), Integer.parseInt(eventMessage[4]), 
-						Long.parseLong(eventMessage[5]));
-			}else{
-				System.out.println("Incorrect message length sent");
-			}
-			break;
-
-		case Protocol.OVERLAY_NODE_SENDS_DATA:
-			/**
-			 * 
-			 * NOTE!!
-			 * Using String to hold hops, supposed to be int[]
-			 * Not sure how to byte pack an int[] so using String for now...
-			 * 
-			 */
-			if (eventMessage.length == 5) {
-				return new OverlayNodeSendsData(type, Integer.parseInt(eventMessage[0]), 
-						Integer.parseInt(eventMessage[1]), Integer.parseInt(eventMessage[2]), 
-						Integer.parseInt(eventMessage[3]), eventMessage[4]);
-			}else{
-				System.out.println("Incorrect message length sent");
-			}
-			break;
-
-		case Protocol.OVERLAY_NODE_SENDS_DEREGISTRATION:
-			if (eventMessage.length == 4) {
-				return new OverlayNodeSendsDeregistration(type, 
-						Integer.parseInt(eventMessage[0]), eventMessage[1], 
-						Integer.parseInt(eventMessage[2]), Integer.parseInt(eventMessage[3]));
-			}else{
-				System.out.println("Incorrect message length sent");
-			}
-			break;
-
-		case Protocol.OVERLAY_NODE_SENDS_REGISTRATION:
-			if (eventMessage.length == 3) {
-				return new OverlayNodeSendsRegistration(type,
-						Integer.parseInt(eventMessage[0]), eventMessage[1],
-						Integer.parseInt(eventMessage[2]));
-			}else{
-				System.out.println("Incorrect message length sent");
-			}
-			break;
-
-		case Protocol.REGISTRY_REPORTS_DEREGISTRATION_STATUS:
-			/**
-			 * 
-			 * Assuming message to be either 1 for success, or -1 for failure
-			 * Not specified in the assignment specs.
-			 * 
-			 */
-			if (eventMessage.length == 1) {
-				return new RegistryReportsDeregistrationStatus(type, Integer.parseInt(eventMessage[0]));
-			}else{
-				System.out.println("Incorrect message length sent");
-			}
-			break;
-
-		case Protocol.REGISTRY_REPORTS_REGISTRATION_STATUS:
-			if (eventMessage.length == 3) {
-				return new RegistryReportsRegistrationStatus(type, 
-						Integer.parseInt(eventMessage[0]), Integer.parseInt(eventMessage[1]), 
-						eventMessage[2]);
-			}else{
-				System.out.println("Incorrect message length sent");
-			}
-			break;
-
-		case Protocol.REGISTRY_REQUESTS_TASK_INITIATE:
-			if (eventMessage.length == 1) {
-				return new RegistryRequestsTaskInitiate(type, Integer.parseInt(eventMessage[0]));
-			}else{
-				System.out.println("Incorrect message length sent");
-			}
-			break;
-
-		case Protocol.REGISTRY_REQUESTS_TRAFFIC_SUMMARY:
-			return new RegistryRequestsTrafficSummary(type);
-
-		case Protocol.REGISTRY_SENDS_NODE_MANIFEST:
-			if (eventMessage.length == 4) {
-				return new RegistrySendsNodeManifest(type, Integer.parseInt(eventMessage[0]), 
-						eventMessage[1], eventMessage[2], Integer.parseInt(eventMessage[3]));
-			}else{
-				System.out.println("Incorrect message length sent");
-			}
-			break;
-
-		default:
-			System.out.println("Unrecognized event type: " + type + ", unable to build Event.");
-			
-		}
-
-		return null;
-	}// END buildEvent
+	public Event getEvent(byte[] components) {
+		return getEvent(ByteBuffer.wrap(components));
+	}
 
+	/**
+	 * Precondition(s):
+	 * 1.	Buffer holds one OVERLAY_NODE_SENDS_DATA_BATCH frame, from its position to its limit
+	 * 
+	 * Postcondition(s):
+	 * 1.	Returns the batch's records without decoding them, as one
+	 * 		DataRecord flyweight moved from record to record
+	 * 2.	Records are read straight out of the buffer, so it can't be
+	 * 		reused or released until iterating is done
+	 * 
+	 * @return Iterator
+	 * @throws IOException if a record doesn't fit in the frame
+	 */
+	public Iterator<DataRecord> getBatchRecords(ByteBuffer frame) throws IOException {
+		return OverlayNodeSendsDataBatch.view(frame).iterator();
+	}
 
 	/**
 	 * Precondition(s):
-	 * 1.	Type is the message type based on the Protocol interface
-	 * 2.	Passed byte[] data for constructing the event
+	 * 1.	Buffer holds one frame, from its position to its limit
 	 * 
 	 * Postcondition(s):
-	 * 1.	Returns appropriate Node type based on 'type' argument
-	 * 2.	Returned Node has getType() and getBytes() methods defined
+	 * 1.	Returns appropriate Node type based on the type in the frame
+	 * 2.	Event holds no reference to the buffer, so the caller is
+	 * 		free to reuse it once this returns
 	 * 
 	 * @return Event
 	 */
-	public Event getEvent(byte[] components) {
+	public Event getEvent(ByteBuffer components) {
 
+		// Type is read once, straight from the frame
 		int type = getType(components);
-		
-		switch (type) {
-
-		case Protocol.NODE_REPORTS_OVERLAY_SETUP_STATUS:
-			try {
-				return new NodeReportsOverlaySetupStatus(components);
-			} catch (IOException e) {
-				System.out.println("Error creating NodeReportsOverlaySetupStatus");
-				e.printStackTrace();
-			}
-
-		case Protocol.OVERLAY_NODE_REPORTS_TASK_FINISHED:
-			try {
-				return new OverlayNodeReportsTaskFinished(components);
-			} catch (IOException e) {
-				System.out.println("Error creating OverlayNodeReportsTaskFinished");
-				e.printStackTrace();
-			}
-
-		case Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY:
-			try {
-				return new OverlayNodeReportsTrafficSummary(components);
-			} catch (IOException e) {
-				System.out.println("Error creating OverlayNodeReportsTrafficSummary");
-				e.printStackTrace();
-			}
-
-		case Protocol.OVERLAY_NODE_SENDS_DATA:
-			try {
-				return new OverlayNodeSendsData(components);
-			} catch (IOException e) {
-				System.out.println("Error creating OverlayNodeSendsData");
-				e.printStackTrace();
-			}
-
-		case Protocol.OVERLAY_NODE_SENDS_DEREGISTRATION:
-			try {
-				return new OverlayNodeSendsDeregistration(components);
-			} catch (IOException e) {
-				System.out.println("Error creating OverlayNodeSendsDeregistration");
-				e.printStackTrace();
-			}
-
-		case Protocol.OVERLAY_NODE_SENDS_REGISTRATION:
-			try {
-				return new OverlayNodeSendsRegistration(components);
-			} catch (IOException e) {
-				System.out.println("Error creating OverlayNodeSendsRegistration");
-				e.printStackTrace();
-			}
-
-		case Protocol.REGISTRY_REPORTS_DEREGISTRATION_STATUS:
-			try {
-				return new RegistryReportsDeregistrationStatus(components);
-			} catch (IOException e) {
-				System.out.println("Error creating RegistryReportsDeregistrationStatus");
-				e.printStackTrace();
-			}
-
-		case Protocol.REGISTRY_REPORTS_REGISTRATION_STATUS:
-			try {
-				return new RegistryReportsRegistrationStatus(components);
-			} catch (IOException e) {
-				System.out.println("Error creating RegistryReportsRegistrationStatus");
-				e.printStackTrace();
-			}
-
-		case Protocol.REGISTRY_REQUESTS_TASK_INITIATE:
-			try {
-				return new RegistryRequestsTaskInitiate(components);
-			} catch (IOException e) {
-				System.out.println("Error creating RegistryRequestsTaskInitiate");
-				e.printStackTrace();
-			}
-
-		case Protocol.REGISTRY_REQUESTS_TRAFFIC_SUMMARY:
-			try {
-				return new RegistryRequestsTrafficSummary(components);
-			} catch (IOException e) {
-				System.out.println("Error creating RegistryRequestsTrafficSummary");
-				e.printStackTrace();
-			}
-
-		case Protocol.REGISTRY_SENDS_NODE_MANIFEST:
-			try {
-				return new RegistrySendsNodeManifest(components);
-			} catch (IOException e) {
-				System.out.println("Error creating RegistrySendsNodeManifest");
-				e.printStackTrace();
-			}
-
-		default:
+		EventDecoder[] decoders = this.decoders;
+		if (type < 0 || type >= decoders.length || decoders[type] == null) {
 			System.out.println("Unrecognized event type: " + type + ", unable to get Event.");
-			
+			return null;
+		}
+
+		try {
+			// A view of just this message, no copy
+			return decoders[type].decode(components.slice());
+		} catch (IOException | BufferUnderflowException e) {
+			System.out.println("Error creating Event of type " + type);
+			e.printStackTrace();
 		}
 		return null;
 	}
@@ -285,34 +162,41 @@ public class EventFactory {
 	
 
 	/**
-	 * Get the type based on byte[] passed
+	 * Get the type based on the frame passed
+	 * Peeks, doesn't move the buffer's position
 	 * @param data
 	 * @return int
 	 */
-	private int getType(byte[] data){
-		ByteArrayInputStream baInputStream = new ByteArrayInputStream(data);
-		DataInputStream din = new DataInputStream(baInputStream);
-		int type = -1;
-		try {
-			type = din.readInt();
-			din.close();
-			baInputStream.close();
-		} catch (IOException e) {
-			System.out.println("EventFactory - error getting data type: ");
-			e.printStackTrace();
+	public int getType(ByteBuffer data){
+		if(data.remaining() < 4){
+			System.out.println("EventFactory - error getting data type: frame too short");
+			return -1;
 		}
-		return type;
+		return data.getInt(data.position());
 	}// END getType **************
-	
+
 	/**
-	 * Gets the string from the getEvent method, parameters delimited by ';'
-	 * 
+	 * Read an int length followed by that many bytes as a String
+	 * Used by the Event unmarshalling constructors
+	 * @param buffer
 	 * @return String
+	 * @throws IOException
 	 */
-	private String[] getMessage(String message) {
-		String delimit = ";";
-		String[] temp = message.split(delimit);
-		return temp;
-	}// END getMessage
+	static String readString(ByteBuffer buffer) throws IOException{
+		int length = buffer.getInt();
+		if(length < 0 || length > buffer.remaining())
+			throw new IOException("Invalid string length: " + length);
+		String value;
+		if(buffer.hasArray()){
+			// Decode right out of the backing array, no intermediate copy
+			value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+			buffer.position(buffer.position() + length);
+		}else{
+			byte[] bytes = new byte[length];
+			buffer.get(bytes);
+			value = new String(bytes);
+		}
+		return value;
+	}// END readString **************
 
 }// ************** END EventFactory class **************
\ No newline at end of file
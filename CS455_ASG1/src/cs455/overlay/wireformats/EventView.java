@@ -0,0 +1,117 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public abstract class EventView<T extends Event> implements Event {
+
+	/*
+	 * Flyweight base for the Events' View classes
+	 * A View reads its fields straight out of a frame, at fixed offsets,
+	 * only when they're asked for, so nothing is unpacked that the handler
+	 * doesn't look at, and nothing is allocated per frame
+	 *
+	 * The same View can be wrapped round frame after frame (one per thread),
+	 * it's only good while the frame is, materialize() it into the Event
+	 * to keep hold of the message after that
+	 *
+	 * Views don't check the frame up front like the Events' constructors
+	 * do, a getter reading past the end throws IndexOutOfBoundsException
+	 */
+
+	private ByteBuffer frame;
+	// Where the message (its type) starts in the frame
+	private int start;
+
+	/**
+	 * Point the view at a message
+	 * @param frame the message from its position to its limit, not moved
+	 */
+	public void wrap(ByteBuffer frame){
+		this.frame = frame;
+		this.start = frame.position();
+	}
+
+	/**
+	 * Decode the whole message into its Event, for keeping past the frame
+	 * @return T
+	 * @throws IOException if the message is malformed
+	 */
+	public T materialize() throws IOException {
+		ByteBuffer message = frame.duplicate();
+		message.position(start);
+		return decode(message.slice());
+	}
+
+	/**
+	 * @param message the message, type at position 0
+	 * @return T
+	 * @throws IOException
+	 */
+	protected abstract T decode(ByteBuffer message) throws IOException;
+
+	@Override
+	public int getType() {
+		return frame.getInt(start);
+	}
+
+	// Copy of the message as it was received
+	@Override
+	public byte[] getBytes() {
+		byte[] bytes = new byte[frame.limit() - start];
+		ByteBuffer message = frame.duplicate();
+		message.position(start);
+		message.get(bytes);
+		return bytes;
+	}
+
+	/********************************************
+	 ******** Field access, from the type *******
+	 ********************************************/
+
+	protected int intAt(int offset){
+		return frame.getInt(start + offset);
+	}
+
+	protected long longAt(int offset){
+		return frame.getLong(start + offset);
+	}
+
+	protected double doubleAt(int offset){
+		return frame.getDouble(start + offset);
+	}
+
+	/**
+	 * Decode a length prefixed String, as written by EventWriter
+	 * @param offset of its length
+	 * @return String
+	 */
+	protected String stringAt(int offset){
+		int length = intAt(offset);
+		if(length < 0 || start + offset + 4 + length > frame.limit())
+			throw new IndexOutOfBoundsException("Invalid string length: " + length);
+		if(frame.hasArray())
+			return new String(frame.array(), frame.arrayOffset() + start + offset + 4, length);
+		byte[] bytes = new byte[length];
+		ByteBuffer string = frame.duplicate();
+		string.position(start + offset + 4);
+		string.get(bytes);
+		return new String(bytes);
+	}
+
+	/**
+	 * @param offset of a length prefixed String
+	 * @return the offset just after it, without decoding it
+	 */
+	protected int skipString(int offset){
+		return offset + 4 + intAt(offset);
+	}
+
+	/**
+	 * @return the frame, for helpers that work on the frame itself
+	 */
+	protected ByteBuffer frame(){
+		return frame;
+	}
+
+}
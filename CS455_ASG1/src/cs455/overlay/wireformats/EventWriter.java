@@ -0,0 +1,348 @@
+package cs455.overlay.wireformats;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import cs455.overlay.routing.RoutingEntry;
+import cs455.overlay.util.LatencyHistogram;
+
+public class EventWriter {
+
+	/*
+	 * Typed builders for every Protocol message, marshalled straight into
+	 * one buffer that's reused from message to message
+	 * No fields joined into a String to be split and parsed back, and no
+	 * streams or intermediate arrays per message
+	 *
+	 * Each builder starts a new message at the front of the buffer, so the
+	 * bytes are only good until the next one, keep one writer per thread
+	 * The Events' getBytes() marshal through here as well, so each message
+	 * has exactly one encoding
+	 *
+	 * Data packets on the hot path skip Events altogether, see
+	 * OverlayNodeSendsData.writeFrame and DataRecord.write
+	 */
+
+	private ByteBuffer buffer;
+
+	public EventWriter(){
+		this(256);
+	}
+
+	public EventWriter(int capacity){
+		buffer = ByteBuffer.allocate(capacity);
+	}
+
+	/********************************************
+	 ************* Message builders *************
+	 ********************************************/
+
+	public EventWriter overlayNodeSendsRegistration(String ipAddress, int portNum){
+		byte[] ipBytes = ipAddress.getBytes();
+		start(16 + ipBytes.length);
+		buffer.putInt(Protocol.OVERLAY_NODE_SENDS_REGISTRATION);
+		buffer.putInt(ipAddress.length());
+		putBytes(ipBytes);
+		buffer.putInt(portNum);
+		return this;
+	}
+
+	/**
+	 * @param status node ID on success, -1 otherwise
+	 * @param message
+	 */
+	public EventWriter registryReportsRegistrationStatus(int status, String message){
+		byte[] messageBytes = message.getBytes();
+		start(16 + messageBytes.length);
+		buffer.putInt(Protocol.REGISTRY_REPORTS_REGISTRATION_STATUS);
+		buffer.putInt(status);
+		buffer.putInt(message.length());
+		putBytes(messageBytes);
+		return this;
+	}
+
+	public EventWriter overlayNodeSendsDeregistration(String ipAddress, int portNo, int nodeID){
+		byte[] ipBytes = ipAddress.getBytes();
+		start(20 + ipBytes.length);
+		buffer.putInt(Protocol.OVERLAY_NODE_SENDS_DEREGISTRATION);
+		buffer.putInt(ipAddress.length());
+		putBytes(ipBytes);
+		buffer.putInt(portNo);
+		buffer.putInt(nodeID);
+		return this;
+	}
+
+	/**
+	 * @param status 1 for success, -1 for failure
+	 */
+	public EventWriter registryReportsDeregistrationStatus(int status){
+		start(8);
+		buffer.putInt(Protocol.REGISTRY_REPORTS_DEREGISTRATION_STATUS);
+		buffer.putInt(status);
+		return this;
+	}
+
+	/**
+	 * @param epoch the overlay's
+	 * @param NR
+	 * @param allNodes every node ID, in order
+	 * @param routingEntries the node's fingers, see RegistrySendsNodeManifest for the layout
+	 */
+	public EventWriter registrySendsNodeManifest(int epoch, int NR, int[] allNodes, List<RoutingEntry> routingEntries){
+		start(20 + 4 * allNodes.length + entriesBytes(routingEntries));
+		buffer.putInt(Protocol.REGISTRY_SENDS_NODE_MANIFEST);
+		buffer.putInt(epoch);
+		buffer.putInt(NR);
+		putInts(allNodes);
+		putEntries(routingEntries);
+		return this;
+	}
+
+	/**
+	 * @param epoch the overlay's, after the change
+	 * @param removedNodes nodes that left the overlay
+	 * @param addedNodes nodes that joined it
+	 * @param removedFingers node IDs of the fingers to drop
+	 * @param addedFingers fingers to add, see RegistrySendsManifestDelta for the layout
+	 */
+	public EventWriter registrySendsManifestDelta(int epoch, int[] removedNodes, int[] addedNodes,
+			int[] removedFingers, List<RoutingEntry> addedFingers){
+		start(24 + 4 * (removedNodes.length + addedNodes.length + removedFingers.length) + entriesBytes(addedFingers));
+		buffer.putInt(Protocol.REGISTRY_SENDS_MANIFEST_DELTA);
+		buffer.putInt(epoch);
+		putInts(removedNodes);
+		putInts(addedNodes);
+		putInts(removedFingers);
+		putEntries(addedFingers);
+		return this;
+	}
+
+	/**
+	 * @param status node ID on success, -1 otherwise
+	 * @param information
+	 */
+	public EventWriter nodeReportsOverlaySetupStatus(int status, String information){
+		byte[] informationBytes = information.getBytes();
+		start(16 + informationBytes.length);
+		buffer.putInt(Protocol.NODE_REPORTS_OVERLAY_SETUP_STATUS);
+		buffer.putInt(status);
+		buffer.putInt(information.length());
+		putBytes(informationBytes);
+		return this;
+	}
+
+	/**
+	 * @param numPackets per node
+	 * @param packetsPerSecond per node, 0 for as fast as possible
+	 * @param distribution one of the DestinationDistribution kinds
+	 * @param distributionParameter
+	 * @param payloadBytes data bytes carried by each packet
+	 */
+	public EventWriter registryRequestsTaskInitiate(int numPackets, int packetsPerSecond, int distribution,
+			double distributionParameter, int payloadBytes){
+		start(28);
+		buffer.putInt(Protocol.REGISTRY_REQUESTS_TASK_INITIATE);
+		buffer.putInt(numPackets);
+		buffer.putInt(packetsPerSecond);
+		buffer.putInt(distribution);
+		buffer.putDouble(distributionParameter);
+		buffer.putInt(payloadBytes);
+		return this;
+	}
+
+	/**
+	 * One data packet, see OverlayNodeSendsData for the layout
+	 * @param destinationID
+	 * @param sourceID
+	 * @param payLoad
+	 * @param sendTime epoch microseconds, 0 for none
+	 * @param data
+	 * @param dataChecksum from OverlayNodeSendsData.checksum() over data
+	 * @param hops nodes relayed through so far
+	 * @param hopCount how many of hops to write
+	 */
+	public EventWriter overlayNodeSendsData(int destinationID, int sourceID, int payLoad, long sendTime,
+			byte[] data, int dataChecksum, int[] hops, int hopCount){
+		start(36 + data.length + 4 * hopCount);
+		buffer.putInt(Protocol.OVERLAY_NODE_SENDS_DATA);
+		buffer.putInt(destinationID);
+		buffer.putInt(sourceID);
+		buffer.putInt(payLoad);
+		buffer.putLong(sendTime);
+		buffer.putInt(data.length);
+		buffer.putInt(dataChecksum);
+		buffer.putInt(hopCount);
+		buffer.put(data);
+		for(int i = 0; i<hopCount; ++i){
+			buffer.putInt(hops[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * @param recordCount
+	 * @param records the records back to back, from position to limit, not moved
+	 */
+	public EventWriter overlayNodeSendsDataBatch(int recordCount, ByteBuffer records){
+		start(8 + records.remaining());
+		buffer.putInt(Protocol.OVERLAY_NODE_SENDS_DATA_BATCH);
+		buffer.putInt(recordCount);
+		buffer.put(records.duplicate());
+		return this;
+	}
+
+	public EventWriter overlayNodeReportsTaskFinished(String ipAddress, int portNum, int nodeID){
+		byte[] ipBytes = ipAddress.getBytes();
+		start(16 + ipBytes.length);
+		buffer.putInt(Protocol.OVERLAY_NODE_REPORTS_TASK_FINISHED);
+		putBytes(ipBytes);
+		buffer.putInt(portNum);
+		buffer.putInt(nodeID);
+		return this;
+	}
+
+	public EventWriter registryRequestsTrafficSummary(){
+		start(4);
+		buffer.putInt(Protocol.REGISTRY_REQUESTS_TRAFFIC_SUMMARY);
+		return this;
+	}
+
+	/**
+	 * @param nodeID
+	 * @param numPacketsSent
+	 * @param numPacketsRelayed
+	 * @param sumPacketDataSent
+	 * @param numPacketsReceived
+	 * @param sumPacketDataReceived
+	 * @param numBytesSent
+	 * @param numBytesRelayed
+	 * @param numBytesReceived
+	 * @param numPacketsCorrupt
+	 * @param latencyByHops latency histogram per hop count, may be empty
+	 */
+	public EventWriter overlayNodeReportsTrafficSummary(int nodeID, long numPacketsSent, long numPacketsRelayed,
+			long sumPacketDataSent, long numPacketsReceived, long sumPacketDataReceived, long numBytesSent,
+			long numBytesRelayed, long numBytesReceived, long numPacketsCorrupt,
+			SortedMap<Integer, LatencyHistogram> latencyByHops){
+		start(84 + latencyByHops.size() * (4 + LatencyHistogram.MAX_MARSHALLED_BYTES));
+		buffer.putInt(Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY);
+		buffer.putInt(nodeID);
+		buffer.putLong(numPacketsSent);
+		buffer.putLong(numPacketsRelayed);
+		buffer.putLong(sumPacketDataSent);
+		buffer.putLong(numPacketsReceived);
+		buffer.putLong(sumPacketDataReceived);
+		buffer.putLong(numBytesSent);
+		buffer.putLong(numBytesRelayed);
+		buffer.putLong(numBytesReceived);
+		buffer.putLong(numPacketsCorrupt);
+		buffer.putInt(latencyByHops.size());
+		for(Map.Entry<Integer, LatencyHistogram> entry : latencyByHops.entrySet()){
+			buffer.putInt(entry.getKey());
+			entry.getValue().writeTo(buffer);
+		}
+		return this;
+	}
+
+	/**
+	 * @param round the poll being answered
+	 */
+	public EventWriter registryRequestsTrafficCounts(int round){
+		start(8);
+		buffer.putInt(Protocol.REGISTRY_REQUESTS_TRAFFIC_COUNTS);
+		buffer.putInt(round);
+		return this;
+	}
+
+	public EventWriter overlayNodeReportsTrafficCounts(int nodeID, int round, long numPacketsSent,
+			long numPacketsRelayed, long numPacketsReceived){
+		start(36);
+		buffer.putInt(Protocol.OVERLAY_NODE_REPORTS_TRAFFIC_COUNTS);
+		buffer.putInt(nodeID);
+		buffer.putInt(round);
+		buffer.putLong(numPacketsSent);
+		buffer.putLong(numPacketsRelayed);
+		buffer.putLong(numPacketsReceived);
+		return this;
+	}
+
+	/********************************************
+	 ***************** Output *******************
+	 ********************************************/
+
+	/**
+	 * @return the buffer backing the last message, from index 0 to getLength()
+	 */
+	public byte[] array(){
+		return buffer.array();
+	}
+
+	/**
+	 * @return bytes in the last message
+	 */
+	public int getLength(){
+		return buffer.position();
+	}
+
+	/**
+	 * Copy of the last message, for keeping past the next one, or
+	 * for sending one message to many nodes
+	 * @return byte[]
+	 */
+	public byte[] toByteArray(){
+		byte[] bytes = new byte[buffer.position()];
+		System.arraycopy(buffer.array(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	/********************************************
+	 ***************** HELPERS ******************
+	 ********************************************/
+
+	/**
+	 * Start a new message at the front, growing the buffer if
+	 * it can't hold maxLength bytes
+	 * @param maxLength
+	 */
+	private void start(int maxLength){
+		if(maxLength > buffer.capacity())
+			buffer = ByteBuffer.allocate(Math.max(maxLength, buffer.capacity() * 2));
+		buffer.clear();
+	}
+
+	// Count prefixed
+	private void putInts(int[] ints){
+		buffer.putInt(ints.length);
+		buffer.asIntBuffer().put(ints);
+		buffer.position(buffer.position() + 4 * ints.length);
+	}
+
+	private static int entriesBytes(List<RoutingEntry> entries){
+		int bytes = 0;
+		for(RoutingEntry entry : entries){
+			bytes += RegistrySendsNodeManifest.entryBytes(entry);
+		}
+		return bytes;
+	}
+
+	// Count prefixed, the way RegistrySendsNodeManifest.readEntries reads them back
+	private void putEntries(List<RoutingEntry> entries){
+		buffer.putInt(entries.size());
+		for(RoutingEntry entry : entries){
+			byte[] address = entry.getAddress();
+			buffer.putInt(entry.getNodeID());
+			buffer.put((byte) address.length);
+			buffer.put(address);
+			buffer.putShort((short) entry.getPortNum());
+		}
+	}
+
+	// Length prefixed, the way EventFactory.readString reads it back
+	private void putBytes(byte[] bytes){
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+}
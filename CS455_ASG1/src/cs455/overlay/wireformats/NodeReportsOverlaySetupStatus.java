@@ -1,12 +1,7 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class NodeReportsOverlaySetupStatus implements Event{
 
@@ -25,53 +20,21 @@ public class NodeReportsOverlaySetupStatus implements Event{
 	// Marshalling (packing the bytes)
 	@Override
 	public byte[] getBytes() {
-		byte[] marshalledBytes = null;
-		ByteArrayOutputStream baOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(
-				baOutputStream));
-
-		try {
-			dout.writeInt(type);
-			dout.writeInt(status);
-			dout.writeInt(infoLength);
-
-			byte[] informationBytes = information.getBytes();
-			int elementLength = informationBytes.length;
-			dout.writeInt(elementLength);
-			dout.write(informationBytes);
-			
-			dout.flush();
-			marshalledBytes = baOutputStream.toByteArray();
-			baOutputStream.close();
-			dout.close();
-
-		} catch (IOException e) {
-			System.out.println("Error marshalling the bytes for NodeReportsOverlaySetupStatus.");
-			e.printStackTrace();
-		}
-
-		return marshalledBytes;
-
+		return new EventWriter().nodeReportsOverlaySetupStatus(status, information).toByteArray();
 	}
 
 	// Unmarshalling (unpack the bytes)
 	public NodeReportsOverlaySetupStatus(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream baInputStream = new ByteArrayInputStream(
-				marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(
-				baInputStream));
-
-		type = din.readInt();
-		status = din.readInt();
-		infoLength = din.readInt();
-
-		int identifierLength = din.readInt();
-		byte[] identifierBytes = new byte[identifierLength];
-		din.readFully(identifierBytes);
-		information = new String(identifierBytes);
-		
-		baInputStream.close();
-		din.close();
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public NodeReportsOverlaySetupStatus(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
+		status = buffer.getInt();
+		infoLength = buffer.getInt();
+
+		information = EventFactory.readString(buffer);
 	}
 
 	@Override
@@ -160,4 +123,29 @@ public class NodeReportsOverlaySetupStatus implements Event{
 		return true;
 	}
 
+	/**
+	 * Flyweight over a NodeReportsOverlaySetupStatus frame, fields are read
+	 * on demand, see EventView
+	 */
+	public static class View extends EventView<NodeReportsOverlaySetupStatus> {
+
+		@Override
+		protected NodeReportsOverlaySetupStatus decode(ByteBuffer message) throws IOException {
+			return new NodeReportsOverlaySetupStatus(message);
+		}
+
+		public int getStatus() {
+			return intAt(4);
+		}
+
+		public int getInfoLength() {
+			return intAt(8);
+		}
+
+		public String getInformation() {
+			return stringAt(12);
+		}
+
+	}
+
 }
@@ -1,12 +1,7 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class OverlayNodeReportsTaskFinished implements Event{
 	
@@ -25,55 +20,22 @@ public class OverlayNodeReportsTaskFinished implements Event{
 	// Marshalling (packing the bytes)
 	@Override
 	public byte[] getBytes() {
-		byte[] marshalledBytes = null;
-		ByteArrayOutputStream baOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(
-				baOutputStream));
-
-		try {
-			dout.writeInt(type);
-			
-			byte[] ipAddressBytes = ipAddress.getBytes();
-			int elementLength = ipAddressBytes.length;
-			dout.writeInt(elementLength);
-			dout.write(ipAddressBytes);
-			
-			dout.writeInt(portNum);
-			dout.writeInt(nodeID);
-
-			dout.flush();
-			marshalledBytes = baOutputStream.toByteArray();
-			baOutputStream.close();
-			dout.close();
-
-		} catch (IOException e) {
-			System.out.println("Error marshalling the bytes for OverlayNodeReportsTaskFinished.");
-			e.printStackTrace();
-		}
-
-		return marshalledBytes;
-
+		return new EventWriter().overlayNodeReportsTaskFinished(ipAddress, portNum, nodeID).toByteArray();
 	}
 
 	// Unmarshalling (unpack the bytes)
 	public OverlayNodeReportsTaskFinished(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream baInputStream = new ByteArrayInputStream(
-				marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(
-				baInputStream));
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
 
-		type = din.readInt();
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public OverlayNodeReportsTaskFinished(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
 		
-		int identifierLength = din.readInt();
-		byte[] identifierBytes = new byte[identifierLength];
-		din.readFully(identifierBytes);
-		ipAddress = new String(identifierBytes);
-
-		portNum = din.readInt();
-		nodeID = din.readInt();
+		ipAddress = EventFactory.readString(buffer);
 
-		baInputStream.close();
-		din.close();
+		portNum = buffer.getInt();
+		nodeID = buffer.getInt();
 	}
 
 	@Override
@@ -161,4 +123,29 @@ public class OverlayNodeReportsTaskFinished implements Event{
 		return true;
 	}
 
+	/**
+	 * Flyweight over a OverlayNodeReportsTaskFinished frame, fields are read
+	 * on demand, the address is only decoded if asked for, see EventView
+	 */
+	public static class View extends EventView<OverlayNodeReportsTaskFinished> {
+
+		@Override
+		protected OverlayNodeReportsTaskFinished decode(ByteBuffer message) throws IOException {
+			return new OverlayNodeReportsTaskFinished(message);
+		}
+
+		public String getIpAddress() {
+			return stringAt(4);
+		}
+
+		public int getPortNum() {
+			return intAt(skipString(4));
+		}
+
+		public int getNodeID() {
+			return intAt(skipString(4) + 4);
+		}
+
+	}
+
 }
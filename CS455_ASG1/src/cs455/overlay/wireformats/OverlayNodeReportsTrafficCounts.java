@@ -0,0 +1,130 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class OverlayNodeReportsTrafficCounts implements Event{
+
+	private int type;
+	private int nodeID;
+	private int round;
+	private long numPacketsSent;
+	private long numPacketsRelayed;
+	private long numPacketsReceived;
+
+	public OverlayNodeReportsTrafficCounts(int type, int nodeID, int round, long numPacketsSent, 
+			long numPacketsRelayed, long numPacketsReceived){
+		this.type = type;
+		this.nodeID = nodeID;
+		this.round = round;
+		this.numPacketsSent = numPacketsSent;
+		this.numPacketsRelayed = numPacketsRelayed;
+		this.numPacketsReceived = numPacketsReceived;
+	}
+
+	// Marshalling (packing the bytes)
+	@Override
+	public byte[] getBytes() {
+		return new EventWriter().overlayNodeReportsTrafficCounts(nodeID, round, numPacketsSent, numPacketsRelayed, numPacketsReceived).toByteArray();
+	}
+
+	// Unmarshalling (unpack the bytes)
+	public OverlayNodeReportsTrafficCounts(byte[] marshalledBytes) throws IOException {
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public OverlayNodeReportsTrafficCounts(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
+		nodeID = buffer.getInt();
+		round = buffer.getInt();
+		numPacketsSent = buffer.getLong();
+		numPacketsRelayed = buffer.getLong();
+		numPacketsReceived = buffer.getLong();
+	}
+
+	@Override
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return the nodeID
+	 */
+	public int getNodeID() {
+		return nodeID;
+	}
+
+	/**
+	 * @return the round
+	 */
+	public int getRound() {
+		return round;
+	}
+
+	/**
+	 * @return the numPacketsSent
+	 */
+	public long getNumPacketsSent() {
+		return numPacketsSent;
+	}
+
+	/**
+	 * @return the numPacketsRelayed
+	 */
+	public long getNumPacketsRelayed() {
+		return numPacketsRelayed;
+	}
+
+	/**
+	 * @return the numPacketsReceived
+	 */
+	public long getNumPacketsReceived() {
+		return numPacketsReceived;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "OverlayNodeReportsTrafficCounts [type=" + type + ", nodeID="
+				+ nodeID + ", round=" + round + ", numPacketsSent="
+				+ numPacketsSent + ", numPacketsRelayed=" + numPacketsRelayed
+				+ ", numPacketsReceived=" + numPacketsReceived + "]";
+	}
+
+	/**
+	 * Flyweight over a OverlayNodeReportsTrafficCounts frame, fields are read
+	 * on demand, see EventView
+	 */
+	public static class View extends EventView<OverlayNodeReportsTrafficCounts> {
+
+		@Override
+		protected OverlayNodeReportsTrafficCounts decode(ByteBuffer message) throws IOException {
+			return new OverlayNodeReportsTrafficCounts(message);
+		}
+
+		public int getNodeID() {
+			return intAt(4);
+		}
+
+		public int getRound() {
+			return intAt(8);
+		}
+
+		public long getNumPacketsSent() {
+			return longAt(12);
+		}
+
+		public long getNumPacketsRelayed() {
+			return longAt(20);
+		}
+
+		public long getNumPacketsReceived() {
+			return longAt(28);
+		}
+
+	}
+
+}
@@ -1,25 +1,44 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import cs455.overlay.util.LatencyHistogram;
 
 public class OverlayNodeReportsTrafficSummary implements Event{
 
 	private int type;
 	private int nodeID;
-	private int numPacketsSent;
-	private int numPacketsRelayed;
+	// Counts are 64 bit, long runs go past Integer.MAX_VALUE packets
+	private long numPacketsSent;
+	private long numPacketsRelayed;
 	private long sumPacketDataSent;
-	private int numPacketsReceived;
+	private long numPacketsReceived;
 	private long sumPacketDataReceived;
+	// Bytes of packet data (not headers) and packets whose data failed its checksum
+	private long numBytesSent;
+	private long numBytesRelayed;
+	private long numBytesReceived;
+	private long numPacketsCorrupt;
+	/*
+	 * One way latency of the packets this node received, keyed by how many
+	 * times they were relayed. Goes on the wire after the counts as a histogram
+	 * count then (hops, histogram) pairs, empty if the node has none to report
+	 */
+	private SortedMap<Integer, LatencyHistogram> latencyByHops = new TreeMap<Integer, LatencyHistogram>();
 
-	public OverlayNodeReportsTrafficSummary(int type, int nodeID, int numPacketsSent, int numPacketsRelayed, 
-			long sumPacketDataSent, int numPacketsReceived, long sumPacketDataReceived){
+	public OverlayNodeReportsTrafficSummary(int type, int nodeID, long numPacketsSent, long numPacketsRelayed, 
+			long sumPacketDataSent, long numPacketsReceived, long sumPacketDataReceived){
+		this(type, nodeID, numPacketsSent, numPacketsRelayed, sumPacketDataSent, numPacketsReceived, 
+				sumPacketDataReceived, 0, 0, 0, 0);
+	}
+
+	public OverlayNodeReportsTrafficSummary(int type, int nodeID, long numPacketsSent, long numPacketsRelayed, 
+			long sumPacketDataSent, long numPacketsReceived, long sumPacketDataReceived, 
+			long numBytesSent, long numBytesRelayed, long numBytesReceived, long numPacketsCorrupt){
 		this.type = type;
 		this.nodeID = nodeID;
 		this.numPacketsSent = numPacketsSent;
@@ -27,57 +46,45 @@ public class OverlayNodeReportsTrafficSummary implements Event{
 		this.sumPacketDataSent = sumPacketDataSent;
 		this.numPacketsReceived = numPacketsReceived;
 		this.sumPacketDataReceived = sumPacketDataReceived;
+		this.numBytesSent = numBytesSent;
+		this.numBytesRelayed = numBytesRelayed;
+		this.numBytesReceived = numBytesReceived;
+		this.numPacketsCorrupt = numPacketsCorrupt;
 	}
 
 	// Marshalling (packing the bytes)
 	@Override
 	public byte[] getBytes() {
-		byte[] marshalledBytes = null;
-		ByteArrayOutputStream baOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(
-				baOutputStream));
-
-		try {
-			dout.writeInt(type);
-			dout.writeInt(nodeID);
-			dout.writeInt(numPacketsSent);
-			dout.writeInt(numPacketsRelayed);
-			dout.writeLong(sumPacketDataSent);
-			dout.writeInt(numPacketsReceived);
-			dout.writeLong(sumPacketDataReceived);
-
-			dout.flush();
-			marshalledBytes = baOutputStream.toByteArray();
-			baOutputStream.close();
-			dout.close();
-
-		} catch (IOException e) {
-			System.out.println("Error marshalling the bytes for OverlayNodeReportsTrafficSummary.");
-			e.printStackTrace();
-		}
-
-		return marshalledBytes;
-
+		return new EventWriter().overlayNodeReportsTrafficSummary(nodeID, numPacketsSent, numPacketsRelayed, 
+				sumPacketDataSent, numPacketsReceived, sumPacketDataReceived, numBytesSent, numBytesRelayed, 
+				numBytesReceived, numPacketsCorrupt, latencyByHops).toByteArray();
 	}
 
 	// Unmarshalling (unpack the bytes)
 	public OverlayNodeReportsTrafficSummary(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream baInputStream = new ByteArrayInputStream(
-				marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(
-				baInputStream));
-
-		type = din.readInt();
-		nodeID = din.readInt();
-		numPacketsSent = din.readInt();
-		numPacketsRelayed = din.readInt();
-		sumPacketDataSent = din.readLong();
-		numPacketsReceived = din.readInt();
-		sumPacketDataReceived = din.readLong();
-		
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
 
-		baInputStream.close();
-		din.close();
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public OverlayNodeReportsTrafficSummary(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
+		nodeID = buffer.getInt();
+		numPacketsSent = buffer.getLong();
+		numPacketsRelayed = buffer.getLong();
+		sumPacketDataSent = buffer.getLong();
+		numPacketsReceived = buffer.getLong();
+		sumPacketDataReceived = buffer.getLong();
+		numBytesSent = buffer.getLong();
+		numBytesRelayed = buffer.getLong();
+		numBytesReceived = buffer.getLong();
+		numPacketsCorrupt = buffer.getLong();
+		int histograms = buffer.getInt();
+		if(histograms < 0)
+			throw new IOException("Invalid latency histogram count: " + histograms);
+		for(int i = 0; i<histograms; ++i){
+			int hops = buffer.getInt();
+			latencyByHops.put(hops, LatencyHistogram.readFrom(buffer));
+		}
 	}
 
 	@Override
@@ -95,14 +102,14 @@ public class OverlayNodeReportsTrafficSummary implements Event{
 	/**
 	 * @return the numPacketsSent
 	 */
-	public int getNumPacketsSent() {
+	public long getNumPacketsSent() {
 		return numPacketsSent;
 	}
 
 	/**
 	 * @return the numPacketsRelayed
 	 */
-	public int getNumPacketsRelayed() {
+	public long getNumPacketsRelayed() {
 		return numPacketsRelayed;
 	}
 
@@ -116,7 +123,7 @@ public class OverlayNodeReportsTrafficSummary implements Event{
 	/**
 	 * @return the numPacketsReceived
 	 */
-	public int getNumPacketsReceived() {
+	public long getNumPacketsReceived() {
 		return numPacketsReceived;
 	}
 
@@ -127,6 +134,61 @@ public class OverlayNodeReportsTrafficSummary implements Event{
 		return sumPacketDataReceived;
 	}
 
+	/**
+	 * @return the numBytesSent
+	 */
+	public long getNumBytesSent() {
+		return numBytesSent;
+	}
+
+	/**
+	 * @return the numBytesRelayed
+	 */
+	public long getNumBytesRelayed() {
+		return numBytesRelayed;
+	}
+
+	/**
+	 * @return the numBytesReceived
+	 */
+	public long getNumBytesReceived() {
+		return numBytesReceived;
+	}
+
+	/**
+	 * @return the numPacketsCorrupt
+	 */
+	public long getNumPacketsCorrupt() {
+		return numPacketsCorrupt;
+	}
+
+	/**
+	 * @return latency histograms of received packets, keyed by hops relayed
+	 */
+	public SortedMap<Integer, LatencyHistogram> getLatencyByHops() {
+		return latencyByHops;
+	}
+
+	/**
+	 * All received packets' latency, whatever their hop count
+	 * @return LatencyHistogram
+	 */
+	public LatencyHistogram getLatency() {
+		LatencyHistogram latency = new LatencyHistogram();
+		for(LatencyHistogram histogram : latencyByHops.values()){
+			latency.add(histogram);
+		}
+		return latency;
+	}
+
+	/**
+	 * @param hops times the packets were relayed
+	 * @param latency
+	 */
+	public void setLatency(int hops, LatencyHistogram latency) {
+		latencyByHops.put(hops, latency);
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -137,7 +199,11 @@ public class OverlayNodeReportsTrafficSummary implements Event{
 				+ ", numPacketsRelayed=" + numPacketsRelayed
 				+ ", sumPacketDataSent=" + sumPacketDataSent
 				+ ", numPacketsReceived=" + numPacketsReceived
-				+ ", sumPacketDataReceived=" + sumPacketDataReceived + "]";
+				+ ", sumPacketDataReceived=" + sumPacketDataReceived
+				+ ", numBytesSent=" + numBytesSent
+				+ ", numBytesRelayed=" + numBytesRelayed
+				+ ", numBytesReceived=" + numBytesReceived
+				+ ", numPacketsCorrupt=" + numPacketsCorrupt + "]";
 	}
 
 	/* (non-Javadoc)
@@ -148,14 +214,18 @@ public class OverlayNodeReportsTrafficSummary implements Event{
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + nodeID;
-		result = prime * result + numPacketsReceived;
-		result = prime * result + numPacketsRelayed;
-		result = prime * result + numPacketsSent;
+		result = prime * result + (int) (numPacketsReceived ^ (numPacketsReceived >>> 32));
+		result = prime * result + (int) (numPacketsRelayed ^ (numPacketsRelayed >>> 32));
+		result = prime * result + (int) (numPacketsSent ^ (numPacketsSent >>> 32));
 		result = prime
 				* result
 				+ (int) (sumPacketDataReceived ^ (sumPacketDataReceived >>> 32));
 		result = prime * result
 				+ (int) (sumPacketDataSent ^ (sumPacketDataSent >>> 32));
+		result = prime * result + (int) (numBytesSent ^ (numBytesSent >>> 32));
+		result = prime * result + (int) (numBytesRelayed ^ (numBytesRelayed >>> 32));
+		result = prime * result + (int) (numBytesReceived ^ (numBytesReceived >>> 32));
+		result = prime * result + (int) (numPacketsCorrupt ^ (numPacketsCorrupt >>> 32));
 		result = prime * result + type;
 		return result;
 	}
@@ -193,10 +263,75 @@ public class OverlayNodeReportsTrafficSummary implements Event{
 		if (sumPacketDataSent != other.sumPacketDataSent) {
 			return false;
 		}
+		if (numBytesSent != other.numBytesSent) {
+			return false;
+		}
+		if (numBytesRelayed != other.numBytesRelayed) {
+			return false;
+		}
+		if (numBytesReceived != other.numBytesReceived) {
+			return false;
+		}
+		if (numPacketsCorrupt != other.numPacketsCorrupt) {
+			return false;
+		}
 		if (type != other.type) {
 			return false;
 		}
 		return true;
 	}
 
+	/**
+	 * Flyweight over a OverlayNodeReportsTrafficSummary frame, fields are read
+	 * on demand, the latency histograms are only read by materialize(), see EventView
+	 */
+	public static class View extends EventView<OverlayNodeReportsTrafficSummary> {
+
+		@Override
+		protected OverlayNodeReportsTrafficSummary decode(ByteBuffer message) throws IOException {
+			return new OverlayNodeReportsTrafficSummary(message);
+		}
+
+		public int getNodeID() {
+			return intAt(4);
+		}
+
+		public long getNumPacketsSent() {
+			return longAt(8);
+		}
+
+		public long getNumPacketsRelayed() {
+			return longAt(16);
+		}
+
+		public long getSumPacketDataSent() {
+			return longAt(24);
+		}
+
+		public long getNumPacketsReceived() {
+			return longAt(32);
+		}
+
+		public long getSumPacketDataReceived() {
+			return longAt(40);
+		}
+
+		public long getNumBytesSent() {
+			return longAt(48);
+		}
+
+		public long getNumBytesRelayed() {
+			return longAt(56);
+		}
+
+		public long getNumBytesReceived() {
+			return longAt(64);
+		}
+
+		public long getNumPacketsCorrupt() {
+			return longAt(72);
+		}
+
+	}
+
 }
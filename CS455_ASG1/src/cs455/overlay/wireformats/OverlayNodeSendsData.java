@@ -1,86 +1,198 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import cs455.overlay.util.BufferPool;
 
 public class OverlayNodeSendsData implements Event{
 
+	/*
+	 * Wire format:
+	 * type, destinationID, sourceID, payLoad, send time, data length, data checksum,
+	 * hop count, the data bytes, then one int per hop
+	 * Send time is when the source sent it, in microseconds since the epoch,
+	 * 0 if the source didn't stamp it (see hasSendTime)
+	 * Data is opaque, checksummed (CRC32) by the source and checked by the sink
+	 * Hops are the node IDs the packet passed through, in order, after the data
+	 * so relaying only ever appends 4 bytes and bumps the count (see relay),
+	 * the data is never moved or copied out of the frame on the way
+	 */
+
 	private int type;
 	private int destinationID;
 	private int sourceID;
 	private int payLoad;
+	private long sendTime;
+	private byte[] data;
+	private int dataChecksum;
+	// Hops relayed through, vs hops in the trace (the sink adds itself to the trace)
 	private int hopTraceLength = 0;
-	private String hopTrace;
+	private int[] hops;
+	private int hopCount;
+
+	public OverlayNodeSendsData(int type, int destinationID, int sourceID, int payLoad, long sendTime, int[] hops){
+		this(type, destinationID, sourceID, payLoad, sendTime, new byte[0], hops);
+	}
 
-	public OverlayNodeSendsData(int type, int destinationID, int sourceID, int payLoad, int hopTraceLength, String hopTrace){
+	public OverlayNodeSendsData(int type, int destinationID, int sourceID, int payLoad, long sendTime, byte[] data, int[] hops){
 		this.type = type;
 		this.destinationID = destinationID;
 		this.sourceID = sourceID;
 		this.payLoad = payLoad;
-		this.hopTraceLength = hopTraceLength;
-		this.hopTrace = hopTrace;
+		this.sendTime = sendTime;
+		this.data = data;
+		this.dataChecksum = checksum(new CRC32(), data, 0, data.length);
+		this.hops = hops;
+		this.hopCount = hops.length;
+		this.hopTraceLength = hops.length;
 	}
 
 	// Marshalling (packing the bytes)
 	@Override
 	public byte[] getBytes() {
-		byte[] marshalledBytes = null;
-		ByteArrayOutputStream baOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(
-				baOutputStream));
+		return new EventWriter().overlayNodeSendsData(destinationID, sourceID, payLoad, sendTime, 
+				data, dataChecksum, hops, hopCount).toByteArray();
+	}
+
+	// Unmarshalling (unpack the bytes)
+	public OverlayNodeSendsData(byte[] marshalledBytes) throws IOException {
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
 
-		try {
-			dout.writeInt(type);
-			dout.writeInt(destinationID);
-			dout.writeInt(sourceID);
-			dout.writeInt(payLoad);
-			dout.writeInt(hopTraceLength);
-			
-			byte[] hopTraceBytes = hopTrace.getBytes();
-			int elementLength = hopTraceBytes.length;
-			dout.writeInt(elementLength);
-			dout.write(hopTraceBytes);
-			
-			dout.flush();
-			marshalledBytes = baOutputStream.toByteArray();
-			baOutputStream.close();
-			dout.close();
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public OverlayNodeSendsData(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
+		destinationID = buffer.getInt();
+		sourceID = buffer.getInt();
+		payLoad = buffer.getInt();
+		sendTime = buffer.getLong();
+		int dataLength = buffer.getInt();
+		dataChecksum = buffer.getInt();
+		hopCount = buffer.getInt();
+		if(dataLength < 0 || dataLength > buffer.remaining())
+			throw new IOException("Invalid data length: " + dataLength);
+		if(hopCount < 0 || hopCount > (buffer.remaining() - dataLength) / 4)
+			throw new IOException("Invalid hop count: " + hopCount);
 
-		} catch (IOException e) {
-			System.out.println("Error marshalling the bytes for OverlayNodeSendsData.");
-			e.printStackTrace();
+		data = new byte[dataLength];
+		buffer.get(data);
+
+		hops = new int[hopCount];
+		for(int i = 0; i<hopCount; ++i){
+			hops[i] = buffer.getInt();
 		}
+		hopTraceLength = hopCount;
+	}
+
+	/********************************************
+	 ******* Frame helpers, no Event needed ****
+	 ********************************************/
 
-		return marshalledBytes;
+	// Field offsets from the start of a marshalled OverlayNodeSendsData
+	private static final int DESTINATION_OFFSET = 4;
+	private static final int SOURCE_OFFSET = 8;
+	private static final int PAYLOAD_OFFSET = 12;
+	private static final int SEND_TIME_OFFSET = 16;
+	private static final int DATA_LENGTH_OFFSET = 24;
+	private static final int DATA_CHECKSUM_OFFSET = 28;
+	private static final int HOP_COUNT_OFFSET = 32;
+	private static final int DATA_OFFSET = 36;
 
+	// Length header and body of a packet with no data or hops yet, writeFrame adds the data
+	public static final int NEW_FRAME_BYTES = 4 + DATA_OFFSET;
+
+	/**
+	 * Marshal a new packet, with no hops yet, as a whole frame (length header
+	 * included) at the buffer's position. Same body as getBytes(), without
+	 * building the Event, so senders can pack frames straight into their buffers
+	 * for TCPConnection.sendFramesFromClientToClient
+	 * @param frames needs NEW_FRAME_BYTES plus dataLength remaining
+	 * @param destinationID
+	 * @param sourceID
+	 * @param payLoad
+	 * @param sendTime epoch microseconds, or 0 for none
+	 * @param data array holding the data bytes
+	 * @param dataOffset
+	 * @param dataLength
+	 * @param dataChecksum from checksum() over the same bytes
+	 */
+	public static void writeFrame(ByteBuffer frames, int destinationID, int sourceID, int payLoad, long sendTime, 
+			byte[] data, int dataOffset, int dataLength, int dataChecksum){
+		frames.putInt(DATA_OFFSET + dataLength);
+		frames.putInt(Protocol.OVERLAY_NODE_SENDS_DATA);
+		frames.putInt(destinationID);
+		frames.putInt(sourceID);
+		frames.putInt(payLoad);
+		frames.putLong(sendTime);
+		frames.putInt(dataLength);
+		frames.putInt(dataChecksum);
+		frames.putInt(0);
+		frames.put(data, dataOffset, dataLength);
 	}
 
-	// Unmarshalling (unpack the bytes)
-	public OverlayNodeSendsData(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream baInputStream = new ByteArrayInputStream(
-				marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(
-				baInputStream));
-
-		type = din.readInt();
-		destinationID = din.readInt();
-		sourceID = din.readInt();
-		payLoad = din.readInt();
-		hopTraceLength = din.readInt();
-		
-		int identifierLength = din.readInt();
-		byte[] identifierBytes = new byte[identifierLength];
-		din.readFully(identifierBytes);
-		hopTrace = new String(identifierBytes);
-
-		baInputStream.close();
-		din.close();
+	/**
+	 * Checksum of data bytes, as carried in the packet
+	 * @param crc reused by the caller, so checking doesn't allocate
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return int
+	 */
+	public static int checksum(CRC32 crc, byte[] data, int offset, int length){
+		if(length == 0)
+			return 0;
+		crc.reset();
+		crc.update(data, offset, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Check a frame's data against its checksum, in place
+	 * Frame runs from its position to its limit, position doesn't move
+	 * @param frame
+	 * @param crc reused by the caller
+	 * @return boolean whether they match
+	 */
+	public static boolean verifyData(ByteBuffer frame, CRC32 crc){
+		int start = frame.position();
+		int length = frame.getInt(start + DATA_LENGTH_OFFSET);
+		if(length < 0 || start + DATA_OFFSET + length > frame.limit())
+			return false;
+		return checksum(crc, frame.array(), frame.arrayOffset() + start + DATA_OFFSET, length) 
+				== frame.getInt(start + DATA_CHECKSUM_OFFSET);
+	}
+
+	/**
+	 * Same as updateHopLength() and updateHopTrace(hop), but done in place on the frame
+	 * The hop is written after the last one and the count is bumped. If the
+	 * frame's buffer has no room left it's copied into a bigger pooled one,
+	 * and the old one released
+	 * @param frame
+	 * @param hop
+	 * @return ByteBuffer the frame, possibly a new buffer
+	 */
+	public static ByteBuffer relay(ByteBuffer frame, int hop){
+		int start = frame.position();
+		int hopCount = frame.getInt(start + HOP_COUNT_OFFSET);
+		int end = start + DATA_OFFSET + frame.getInt(start + DATA_LENGTH_OFFSET) + 4 * hopCount;
+
+		if(end + 4 > frame.capacity()){
+			BufferPool pool = BufferPool.getInstance();
+			ByteBuffer bigger = pool.acquire(end + 4);
+			frame.position(0);
+			frame.limit(end);
+			bigger.put(frame);
+			pool.release(frame);
+			frame = bigger;
+			frame.position(start);
+		}
+		frame.limit(end + 4);
+		frame.putInt(end, hop);
+		frame.putInt(start + HOP_COUNT_OFFSET, hopCount + 1);
+		return frame;
 	}
 
 	@Override
@@ -109,6 +221,34 @@ public class OverlayNodeSendsData implements Event{
 		return payLoad;
 	}
 
+	/**
+	 * @return the sendTime, epoch microseconds
+	 */
+	public long getSendTime() {
+		return sendTime;
+	}
+
+	/**
+	 * @return whether the source stamped the send time
+	 */
+	public boolean hasSendTime() {
+		return sendTime != 0;
+	}
+
+	/**
+	 * @return the data bytes
+	 */
+	public byte[] getData() {
+		return data;
+	}
+
+	/**
+	 * @return whether the data matches the checksum it was sent with
+	 */
+	public boolean isDataIntact() {
+		return checksum(new CRC32(), data, 0, data.length) == dataChecksum;
+	}
+
 	/**
 	 * @return the hopTraceLength
 	 */
@@ -117,17 +257,30 @@ public class OverlayNodeSendsData implements Event{
 	}
 
 	/**
+	 * @return the hops, in the order the packet passed through them
+	 */
+	public int[] getHops() {
+		return Arrays.copyOf(hops, hopCount);
+	}
+
+	/**
+	 * Hop trace for display, rendered on demand
+	 * e.g. (SRC: 4)->12->30
 	 * @return the hopTrace
 	 */
 	public String getHopTrace() {
-		return hopTrace;
+		StringBuilder trace = new StringBuilder();
+		trace.append("(SRC: ").append(sourceID).append(")");
+		for(int i = 0; i<hopCount; ++i){
+			trace.append("->").append(hops[i]);
+		}
+		return trace.toString();
 	}
 	
 	public void updateHopTrace(int hop){
-		if(hopTrace.equals(" "))
-			hopTrace = "" + hop;
-		else
-			hopTrace += ("->" + hop);
+		if(hopCount == hops.length)
+			hops = Arrays.copyOf(hops, Math.max(4, hopCount * 2));
+		hops[hopCount++] = hop;
 	}
 	
 	public void updateHopLength(){
@@ -147,11 +300,14 @@ public class OverlayNodeSendsData implements Event{
 				+ sourceID
 				+ ", payLoad="
 				+ payLoad
+				+ ", sendTime="
+				+ sendTime
+				+ ", dataLength="
+				+ data.length
 				+ ", hopTraceLength="
 				+ hopTraceLength
-				+ ", "
-				+ (hopTrace != null ? "hopTrace=" + hopTrace
-						: "") + "]";
+				+ ", hopTrace="
+				+ getHopTrace() + "]";
 	}
 
 	/* (non-Javadoc)
@@ -163,6 +319,7 @@ public class OverlayNodeSendsData implements Event{
 		int result = 1;
 		result = prime * result + destinationID;
 		result = prime * result + payLoad;
+		result = prime * result + (int) (sendTime ^ (sendTime >>> 32));
 		result = prime * result + sourceID;
 		result = prime * result + type;
 		return result;
@@ -189,6 +346,9 @@ public class OverlayNodeSendsData implements Event{
 		if (payLoad != other.payLoad) {
 			return false;
 		}
+		if (sendTime != other.sendTime) {
+			return false;
+		}
 		if (sourceID != other.sourceID) {
 			return false;
 		}
@@ -198,4 +358,69 @@ public class OverlayNodeSendsData implements Event{
 		return true;
 	}
 
+	/**
+	 * Flyweight over an OverlayNodeSendsData frame, fields are read on
+	 * demand, so a relay only ever reads the destination and data length,
+	 * and a sink never copies out the data or the hop trace, see EventView
+	 */
+	public static class View extends EventView<OverlayNodeSendsData> {
+
+		@Override
+		protected OverlayNodeSendsData decode(ByteBuffer message) throws IOException {
+			return new OverlayNodeSendsData(message);
+		}
+
+		public int getDestinationID() {
+			return intAt(DESTINATION_OFFSET);
+		}
+
+		public int getSourceID() {
+			return intAt(SOURCE_OFFSET);
+		}
+
+		public int getPayLoad() {
+			return intAt(PAYLOAD_OFFSET);
+		}
+
+		/**
+		 * @return the sendTime, epoch microseconds, 0 if not stamped
+		 */
+		public long getSendTime() {
+			return longAt(SEND_TIME_OFFSET);
+		}
+
+		public boolean hasSendTime() {
+			return getSendTime() != 0;
+		}
+
+		public int getDataLength() {
+			return intAt(DATA_LENGTH_OFFSET);
+		}
+
+		/**
+		 * @return hops relayed through
+		 */
+		public int getHopTraceLength() {
+			return intAt(HOP_COUNT_OFFSET);
+		}
+
+		/**
+		 * @param i
+		 * @return the i'th node the packet passed through
+		 */
+		public int getHop(int i) {
+			return intAt(DATA_OFFSET + getDataLength() + 4 * i);
+		}
+
+		/**
+		 * Check the data against its checksum, in place
+		 * @param crc reused by the caller
+		 * @return boolean whether they match
+		 */
+		public boolean isDataIntact(CRC32 crc) {
+			return verifyData(frame(), crc);
+		}
+
+	}
+
 }
@@ -0,0 +1,161 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+public class OverlayNodeSendsDataBatch implements Event, Iterable<DataRecord> {
+
+	/*
+	 * Wire format:
+	 * type, record count, then the records back to back (see DataRecord)
+	 * Packets going to the same next hop share one frame, so each
+	 * only costs its own fields rather than a length header and type too
+	 */
+
+	private int type;
+	private int recordCount;
+	// Just the records, from position to limit
+	private ByteBuffer records;
+
+	// Marshalling (packing the bytes)
+	@Override
+	public byte[] getBytes() {
+		return new EventWriter().overlayNodeSendsDataBatch(recordCount, records).toByteArray();
+	}
+
+	// Unmarshalling (unpack the bytes)
+	public OverlayNodeSendsDataBatch(byte[] marshalledBytes) throws IOException {
+		this(ByteBuffer.wrap(marshalledBytes), true);
+	}
+
+	// Unmarshalling from a frame buffer, reads from its current position, the records are copied out
+	public OverlayNodeSendsDataBatch(ByteBuffer buffer) throws IOException {
+		this(buffer, true);
+	}
+
+	private OverlayNodeSendsDataBatch(ByteBuffer buffer, boolean copy) throws IOException {
+		int start = buffer.position();
+		type = buffer.getInt(start);
+		recordCount = buffer.getInt(start + 4);
+		if(recordCount < 0)
+			throw new IOException("Invalid record count: " + recordCount);
+
+		// Check every record fits before anything reads one
+		int offset = start + 8;
+		for(int i = 0; i<recordCount; ++i){
+			int length = DataRecord.lengthAt(buffer, offset, buffer.limit());
+			if(length < 0)
+				throw new IOException("Invalid record " + i + " of " + recordCount);
+			offset += length;
+		}
+
+		ByteBuffer view = buffer.duplicate();
+		view.position(start + 8);
+		view.limit(offset);
+		if(copy){
+			records = ByteBuffer.allocate(view.remaining());
+			records.put(view);
+			records.flip();
+		}else{
+			records = view;
+		}
+	}
+
+	/**
+	 * Read a batch in place, for relaying without decoding
+	 * The records are read straight out of the frame, so it has to
+	 * outlive the batch, and anything iterated from it
+	 * @param frame
+	 * @return OverlayNodeSendsDataBatch
+	 * @throws IOException if a record doesn't fit in the frame
+	 */
+	public static OverlayNodeSendsDataBatch view(ByteBuffer frame) throws IOException {
+		return new OverlayNodeSendsDataBatch(frame, false);
+	}
+
+	/********************************************
+	 ******* Frame helpers, no Event needed ****
+	 ********************************************/
+
+	// Length header, type and record count
+	public static final int FRAME_HEADER_BYTES = 12;
+
+	/**
+	 * Start a batch frame at the buffer's position, records are written
+	 * after it with DataRecord.write or DataRecord.relayTo
+	 * @param frames
+	 * @return int where the frame starts, for finishFrame
+	 */
+	public static int startFrame(ByteBuffer frames){
+		int start = frames.position();
+		frames.putInt(0);
+		frames.putInt(Protocol.OVERLAY_NODE_SENDS_DATA_BATCH);
+		frames.putInt(0);
+		return start;
+	}
+
+	/**
+	 * Fill in the length header and record count once the records are written
+	 * @param frames
+	 * @param start from startFrame
+	 * @param recordCount
+	 */
+	public static void finishFrame(ByteBuffer frames, int start, int recordCount){
+		frames.putInt(start, frames.position() - start - 4);
+		frames.putInt(start + 8, recordCount);
+	}
+
+	@Override
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return the recordCount
+	 */
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * The records in order, as one DataRecord moved along the batch
+	 * @see DataRecord
+	 */
+	@Override
+	public Iterator<DataRecord> iterator() {
+		return new Iterator<DataRecord>(){
+			private DataRecord record = new DataRecord(records);
+			private int next = 0;
+			private int offset = records.position();
+
+			public boolean hasNext(){
+				return next < recordCount;
+			}
+
+			public DataRecord next(){
+				if(next >= recordCount)
+					throw new NoSuchElementException();
+				record.moveTo(offset);
+				offset += record.getLength();
+				++next;
+				return record;
+			}
+
+			public void remove(){
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "OverlayNodeSendsDataBatch [type=" + type + ", recordCount="
+				+ recordCount + ", bytes=" + records.remaining() + "]";
+	}
+
+}
@@ -1,12 +1,7 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class OverlayNodeSendsDeregistration implements Event{
 
@@ -27,57 +22,23 @@ public class OverlayNodeSendsDeregistration implements Event{
 	// Marshalling (packing the bytes)
 	@Override
 	public byte[] getBytes() {
-		byte[] marshalledBytes = null;
-		ByteArrayOutputStream baOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(
-				baOutputStream));
-
-		try {
-			dout.writeInt(type);
-			dout.writeInt(ipLength);
-
-			byte[] ipBytes = ipAddress.getBytes();
-			int elementLength = ipBytes.length;
-			dout.writeInt(elementLength);
-			dout.write(ipBytes);
-
-			dout.writeInt(portNo);
-			dout.writeInt(nodeID);
-
-			dout.flush();
-			marshalledBytes = baOutputStream.toByteArray();
-			baOutputStream.close();
-			dout.close();
-
-		} catch (IOException e) {
-			System.out.println("Error marshalling the bytes for OverlayNodeSendsDeregistration.");
-			e.printStackTrace();
-		}
-
-		return marshalledBytes;
-
+		return new EventWriter().overlayNodeSendsDeregistration(ipAddress, portNo, nodeID).toByteArray();
 	}
 
 	// Unmarshalling (unpack the bytes)
 	public OverlayNodeSendsDeregistration(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream baInputStream = new ByteArrayInputStream(
-				marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(
-				baInputStream));
-
-		type = din.readInt();
-		ipLength = din.readInt();
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
 
-		int identifierLength = din.readInt();
-		byte[] identifierBytes = new byte[identifierLength];
-		din.readFully(identifierBytes);
-		ipAddress = new String(identifierBytes);
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public OverlayNodeSendsDeregistration(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
+		ipLength = buffer.getInt();
 
-		portNo = din.readInt();
-		nodeID = din.readInt();
+		ipAddress = EventFactory.readString(buffer);
 
-		baInputStream.close();
-		din.close();
+		portNo = buffer.getInt();
+		nodeID = buffer.getInt();
 	}
 
 	@Override
@@ -177,4 +138,33 @@ public class OverlayNodeSendsDeregistration implements Event{
 		return true;
 	}
 
+	/**
+	 * Flyweight over a OverlayNodeSendsDeregistration frame, fields are read
+	 * on demand, see EventView
+	 */
+	public static class View extends EventView<OverlayNodeSendsDeregistration> {
+
+		@Override
+		protected OverlayNodeSendsDeregistration decode(ByteBuffer message) throws IOException {
+			return new OverlayNodeSendsDeregistration(message);
+		}
+
+		public int getIpLength() {
+			return intAt(4);
+		}
+
+		public String getIpAddress() {
+			return stringAt(8);
+		}
+
+		public int getPortNo() {
+			return intAt(skipString(8));
+		}
+
+		public int getNodeID() {
+			return intAt(skipString(8) + 4);
+		}
+
+	}
+
 }
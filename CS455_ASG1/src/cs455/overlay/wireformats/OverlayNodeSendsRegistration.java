@@ -1,12 +1,7 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class OverlayNodeSendsRegistration implements Event{
 
@@ -26,55 +21,22 @@ public class OverlayNodeSendsRegistration implements Event{
 	// Marshalling (packing the bytes)
 	@Override
 	public byte[] getBytes() {
-		byte[] marshalledBytes = null;
-		ByteArrayOutputStream baOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(
-				baOutputStream));
-
-		try {
-			dout.writeInt(type);
-			dout.writeInt(ipAddressLength);
-
-			byte[] ipAddressBytes = ipAddress.getBytes();
-			int elementLength = ipAddressBytes.length;
-			dout.writeInt(elementLength);
-			dout.write(ipAddressBytes);
-
-			dout.writeInt(portNum);
-
-			dout.flush();
-			marshalledBytes = baOutputStream.toByteArray();
-			baOutputStream.close();
-			dout.close();
-			
-		} catch (IOException e) {
-			System.out.println("Error marshalling the bytes for OverlayNodeSendsRegistration.");
-			e.printStackTrace();
-		}
-		
-		return marshalledBytes;
-
+		return new EventWriter().overlayNodeSendsRegistration(ipAddress, portNum).toByteArray();
 	}
 
 	// Unmarshalling (unpack the bytes)
 	public OverlayNodeSendsRegistration(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream baInputStream = new ByteArrayInputStream(
-				marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(
-				baInputStream));
-
-		type = din.readInt();
-		ipAddressLength = din.readInt();
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
 
-		int identifierLength = din.readInt();
-		byte[] identifierBytes = new byte[identifierLength];
-		din.readFully(identifierBytes);
-		ipAddress = new String(identifierBytes);
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public OverlayNodeSendsRegistration(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
+		ipAddressLength = buffer.getInt();
 
-		portNum = din.readInt();
+		ipAddress = EventFactory.readString(buffer);
 
-		baInputStream.close();
-		din.close();
+		portNum = buffer.getInt();
 	}
 
 	@Override
@@ -159,4 +121,29 @@ public class OverlayNodeSendsRegistration implements Event{
 		return true;
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Flyweight over a OverlayNodeSendsRegistration frame, fields are read
+	 * on demand, see EventView
+	 */
+	public static class View extends EventView<OverlayNodeSendsRegistration> {
+
+		@Override
+		protected OverlayNodeSendsRegistration decode(ByteBuffer message) throws IOException {
+			return new OverlayNodeSendsRegistration(message);
+		}
+
+		public int getipAddressLength() {
+			return intAt(4);
+		}
+
+		public String getipAddress() {
+			return stringAt(8);
+		}
+
+		public int getPortNum() {
+			return intAt(skipString(8));
+		}
+
+	}
+
+}
@@ -12,4 +12,8 @@ public interface Protocol {
 	final static int OVERLAY_NODE_REPORTS_TASK_FINISHED 	= 10;
 	final static int REGISTRY_REQUESTS_TRAFFIC_SUMMARY 		= 11;
 	final static int OVERLAY_NODE_REPORTS_TRAFFIC_SUMMARY 	= 12;
+	final static int REGISTRY_REQUESTS_TRAFFIC_COUNTS 		= 13;
+	final static int OVERLAY_NODE_REPORTS_TRAFFIC_COUNTS 	= 14;
+	final static int OVERLAY_NODE_SENDS_DATA_BATCH 			= 15;
+	final static int REGISTRY_SENDS_MANIFEST_DELTA 			= 16;
 }
\ No newline at end of file
@@ -1,12 +1,7 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class RegistryReportsDeregistrationStatus implements Event{
 
@@ -21,41 +16,18 @@ public class RegistryReportsDeregistrationStatus implements Event{
 	// Marshalling (packing the bytes)
 	@Override
 	public byte[] getBytes() {
-		byte[] marshalledBytes = null;
-		ByteArrayOutputStream baOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(
-				baOutputStream));
-
-		try {
-			dout.writeInt(type);
-			dout.writeInt(deregistrationStatus);
-
-			dout.flush();
-			marshalledBytes = baOutputStream.toByteArray();
-			baOutputStream.close();
-			dout.close();
-
-		} catch (IOException e) {
-			System.out.println("Error marshalling the bytes for RegistryReportsDeregistrationStatus.");
-			e.printStackTrace();
-		}
-
-		return marshalledBytes;
-
+		return new EventWriter().registryReportsDeregistrationStatus(deregistrationStatus).toByteArray();
 	}
 
 	// Unmarshalling (unpack the bytes)
 	public RegistryReportsDeregistrationStatus(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream baInputStream = new ByteArrayInputStream(
-				marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(
-				baInputStream));
-
-		type = din.readInt();
-		deregistrationStatus = din.readInt();
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
 
-		baInputStream.close();
-		din.close();
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public RegistryReportsDeregistrationStatus(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
+		deregistrationStatus = buffer.getInt();
 	}
 
 	@Override
@@ -79,4 +51,21 @@ public class RegistryReportsDeregistrationStatus implements Event{
 				+ ", deregistrationStatus=" + deregistrationStatus + "]";
 	}
 
+	/**
+	 * Flyweight over a RegistryReportsDeregistrationStatus frame, fields are read
+	 * on demand, see EventView
+	 */
+	public static class View extends EventView<RegistryReportsDeregistrationStatus> {
+
+		@Override
+		protected RegistryReportsDeregistrationStatus decode(ByteBuffer message) throws IOException {
+			return new RegistryReportsDeregistrationStatus(message);
+		}
+
+		public int getDeregistrationStatus() {
+			return intAt(4);
+		}
+
+	}
+
 }
@@ -1,12 +1,7 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class RegistryReportsRegistrationStatus implements Event{
 
@@ -26,54 +21,21 @@ public class RegistryReportsRegistrationStatus implements Event{
 	// Marshalling (packing the bytes)
 	@Override
 	public byte[] getBytes() {
-		byte[] marshalledBytes = null;
-		ByteArrayOutputStream baOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(
-				baOutputStream));
-
-		try {
-			dout.writeInt(type);
-			dout.writeInt(status);
-			dout.writeInt(msgLength);
-
-			byte[] messageBytes = message.getBytes();
-			int elementLength = messageBytes.length;
-			dout.writeInt(elementLength);
-			dout.write(messageBytes);
-
-			dout.flush();
-			marshalledBytes = baOutputStream.toByteArray();
-			baOutputStream.close();
-			dout.close();
-
-		} catch (IOException e) {
-			System.out.println("Error marshalling the bytes for RegistryReportsRegistrationStatus.");
-			e.printStackTrace();
-		}
-
-		return marshalledBytes;
-
+		return new EventWriter().registryReportsRegistrationStatus(status, message).toByteArray();
 	}
 
 	// Unmarshalling (unpack the bytes)
 	public RegistryReportsRegistrationStatus(byte[] marshalledBytes) throws IOException {
-				
-		ByteArrayInputStream baInputStream = new ByteArrayInputStream(
-				marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(
-				baInputStream));
-
-		type = din.readInt();
-		status = din.readInt();
-		msgLength = din.readInt();
-
-		int identifierLength = din.readInt();
-		byte[] identifierBytes = new byte[identifierLength];
-		din.readFully(identifierBytes);
-		message = new String(identifierBytes);
-
-		baInputStream.close();
-		din.close();
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public RegistryReportsRegistrationStatus(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
+		status = buffer.getInt();
+		msgLength = buffer.getInt();
+
+		message = EventFactory.readString(buffer);
 		
 	}
 
@@ -161,5 +123,29 @@ public class RegistryReportsRegistrationStatus implements Event{
 		return true;
 	}
 
+	/**
+	 * Flyweight over a RegistryReportsRegistrationStatus frame, fields are read
+	 * on demand, the message is only decoded if asked for, see EventView
+	 */
+	public static class View extends EventView<RegistryReportsRegistrationStatus> {
+
+		@Override
+		protected RegistryReportsRegistrationStatus decode(ByteBuffer message) throws IOException {
+			return new RegistryReportsRegistrationStatus(message);
+		}
+
+		public int getStatus() {
+			return intAt(4);
+		}
+
+		public int getMsgLength() {
+			return intAt(8);
+		}
+
+		public String getMessage() {
+			return stringAt(12);
+		}
+
+	}
 
 }
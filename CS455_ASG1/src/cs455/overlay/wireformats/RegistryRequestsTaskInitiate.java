@@ -1,61 +1,60 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import cs455.overlay.util.DestinationDistribution;
 
 public class RegistryRequestsTaskInitiate implements Event{
 
 	private int type;
 	private int numPackets;
+	// Packets per second each node should offer, 0 to send as fast as possible
+	private int packetsPerSecond;
+	// How sinks are picked, see DestinationDistribution
+	private int distribution;
+	private double distributionParameter;
+	// Bytes of data carried by each packet, on top of the int payload
+	private int payloadBytes;
 
 	public RegistryRequestsTaskInitiate(int type, int numPackets){
+		this(type, numPackets, 0);
+	}
+
+	public RegistryRequestsTaskInitiate(int type, int numPackets, int packetsPerSecond){
+		this(type, numPackets, packetsPerSecond, DestinationDistribution.UNIFORM, 0, 0);
+	}
+
+	public RegistryRequestsTaskInitiate(int type, int numPackets, int packetsPerSecond, 
+			int distribution, double distributionParameter, int payloadBytes){
 		this.type = type;
 		this.numPackets = numPackets;
+		this.packetsPerSecond = packetsPerSecond;
+		this.distribution = distribution;
+		this.distributionParameter = distributionParameter;
+		this.payloadBytes = payloadBytes;
 	}
 
 	// Marshalling (packing the bytes)
 	@Override
 	public byte[] getBytes() {
-		byte[] marshalledBytes = null;
-		ByteArrayOutputStream baOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(
-				baOutputStream));
-
-		try {
-			dout.writeInt(type);
-			dout.writeInt(numPackets);
-
-			dout.flush();
-			marshalledBytes = baOutputStream.toByteArray();
-			baOutputStream.close();
-			dout.close();
-
-		} catch (IOException e) {
-			System.out.println("Error marshalling the bytes for RegistryRequestsTaskInitiate.");
-			e.printStackTrace();
-		}
-
-		return marshalledBytes;
-
+		return new EventWriter().registryRequestsTaskInitiate(numPackets, packetsPerSecond, distribution, 
+				distributionParameter, payloadBytes).toByteArray();
 	}
 
 	// Unmarshalling (unpack the bytes)
 	public RegistryRequestsTaskInitiate(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream baInputStream = new ByteArrayInputStream(
-				marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(
-				baInputStream));
-
-		type = din.readInt();
-		numPackets = din.readInt();
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
 
-		baInputStream.close();
-		din.close();
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public RegistryRequestsTaskInitiate(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
+		numPackets = buffer.getInt();
+		packetsPerSecond = buffer.getInt();
+		distribution = buffer.getInt();
+		distributionParameter = buffer.getDouble();
+		payloadBytes = buffer.getInt();
 	}
 
 	@Override
@@ -70,13 +69,50 @@ public class RegistryRequestsTaskInitiate implements Event{
 		return numPackets;
 	}
 
+	/**
+	 * @return the packetsPerSecond, 0 if unpaced
+	 */
+	public int getPacketsPerSecond() {
+		return packetsPerSecond;
+	}
+
+	/**
+	 * @return whether the sends should be paced at packetsPerSecond
+	 */
+	public boolean isPaced() {
+		return packetsPerSecond > 0;
+	}
+
+	/**
+	 * @return the distribution, one of the DestinationDistribution constants
+	 */
+	public int getDistribution() {
+		return distribution;
+	}
+
+	/**
+	 * @return the distributionParameter
+	 */
+	public double getDistributionParameter() {
+		return distributionParameter;
+	}
+
+	/**
+	 * @return the payloadBytes
+	 */
+	public int getPayloadBytes() {
+		return payloadBytes;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
 	@Override
 	public String toString() {
 		return "RegistryRequestsTaskInitiate [type=" + type + ", numPackets="
-				+ numPackets + "]";
+				+ numPackets + ", packetsPerSecond=" + packetsPerSecond 
+				+ ", distribution=" + DestinationDistribution.describe(distribution, distributionParameter) 
+				+ ", payloadBytes=" + payloadBytes + "]";
 	}
 
 	/* (non-Javadoc)
@@ -87,6 +123,11 @@ public class RegistryRequestsTaskInitiate implements Event{
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + numPackets;
+		result = prime * result + packetsPerSecond;
+		result = prime * result + distribution;
+		result = prime * result + payloadBytes;
+		long temp = Double.doubleToLongBits(distributionParameter);
+		result = prime * result + (int) (temp ^ (temp >>> 32));
 		result = prime * result + type;
 		return result;
 	}
@@ -109,10 +150,59 @@ public class RegistryRequestsTaskInitiate implements Event{
 		if (numPackets != other.numPackets) {
 			return false;
 		}
+		if (packetsPerSecond != other.packetsPerSecond) {
+			return false;
+		}
+		if (distribution != other.distribution) {
+			return false;
+		}
+		if (payloadBytes != other.payloadBytes) {
+			return false;
+		}
+		if (Double.doubleToLongBits(distributionParameter) != Double.doubleToLongBits(other.distributionParameter)) {
+			return false;
+		}
 		if (type != other.type) {
 			return false;
 		}
 		return true;
 	}
 
+	/**
+	 * Flyweight over a RegistryRequestsTaskInitiate frame, fields are read
+	 * on demand, see EventView
+	 */
+	public static class View extends EventView<RegistryRequestsTaskInitiate> {
+
+		@Override
+		protected RegistryRequestsTaskInitiate decode(ByteBuffer message) throws IOException {
+			return new RegistryRequestsTaskInitiate(message);
+		}
+
+		public int getNumPackets() {
+			return intAt(4);
+		}
+
+		public int getPacketsPerSecond() {
+			return intAt(8);
+		}
+
+		public boolean isPaced() {
+			return getPacketsPerSecond() > 0;
+		}
+
+		public int getDistribution() {
+			return intAt(12);
+		}
+
+		public double getDistributionParameter() {
+			return doubleAt(16);
+		}
+
+		public int getPayloadBytes() {
+			return intAt(24);
+		}
+
+	}
+
 }
@@ -0,0 +1,71 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class RegistryRequestsTrafficCounts implements Event{
+
+	private int type;
+	// Which poll this is, echoed back so late answers to an earlier poll can be told apart
+	private int round;
+
+	public RegistryRequestsTrafficCounts(int type, int round){
+		this.type = type;
+		this.round = round;
+	}
+
+	// Marshalling (packing the bytes)
+	@Override
+	public byte[] getBytes() {
+		return new EventWriter().registryRequestsTrafficCounts(round).toByteArray();
+	}
+
+	// Unmarshalling (unpack the bytes)
+	public RegistryRequestsTrafficCounts(byte[] marshalledBytes) throws IOException {
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public RegistryRequestsTrafficCounts(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
+		round = buffer.getInt();
+	}
+
+	@Override
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return the round
+	 */
+	public int getRound() {
+		return round;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "RegistryRequestsTrafficCounts [type=" + type + ", round=" + round + "]";
+	}
+
+	/**
+	 * Flyweight over a RegistryRequestsTrafficCounts frame, fields are read
+	 * on demand, see EventView
+	 */
+	public static class View extends EventView<RegistryRequestsTrafficCounts> {
+
+		@Override
+		protected RegistryRequestsTrafficCounts decode(ByteBuffer message) throws IOException {
+			return new RegistryRequestsTrafficCounts(message);
+		}
+
+		public int getRound() {
+			return intAt(4);
+		}
+
+	}
+
+}
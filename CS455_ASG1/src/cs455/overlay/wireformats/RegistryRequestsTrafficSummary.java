@@ -1,12 +1,7 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class RegistryRequestsTrafficSummary implements Event{
 
@@ -19,39 +14,17 @@ public class RegistryRequestsTrafficSummary implements Event{
 	// Marshalling (packing the bytes)
 	@Override
 	public byte[] getBytes() {
-		byte[] marshalledBytes = null;
-		ByteArrayOutputStream baOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(
-				baOutputStream));
-
-		try {
-			dout.writeInt(type);
-
-			dout.flush();
-			marshalledBytes = baOutputStream.toByteArray();
-			baOutputStream.close();
-			dout.close();
-
-		} catch (IOException e) {
-			System.out.println("Error marshalling the bytes for RegistryRequestsTrafficSummary.");
-			e.printStackTrace();
-		}
-
-		return marshalledBytes;
-
+		return new EventWriter().registryRequestsTrafficSummary().toByteArray();
 	}
 
 	// Unmarshalling (unpack the bytes)
 	public RegistryRequestsTrafficSummary(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream baInputStream = new ByteArrayInputStream(
-				marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(
-				baInputStream));
-
-		type = din.readInt();
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
 
-		baInputStream.close();
-		din.close();
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public RegistryRequestsTrafficSummary(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
 	}
 
 	@Override
@@ -67,4 +40,17 @@ public class RegistryRequestsTrafficSummary implements Event{
 		return "RegistryRequestsTrafficSummary [type=" + type + "]";
 	}
 
+	/**
+	 * Flyweight over a RegistryRequestsTrafficSummary frame, fields are read
+	 * on demand, see EventView
+	 */
+	public static class View extends EventView<RegistryRequestsTrafficSummary> {
+
+		@Override
+		protected RegistryRequestsTrafficSummary decode(ByteBuffer message) throws IOException {
+			return new RegistryRequestsTrafficSummary(message);
+		}
+
+	}
+
 }
@@ -0,0 +1,168 @@
+package cs455.overlay.wireformats;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import cs455.overlay.routing.RoutingEntry;
+
+public class RegistrySendsManifestDelta implements Event{
+
+	/*
+	 * Wire format:
+	 * type, epoch, then four count prefixed lists: node IDs that
+	 * left the overlay, node IDs that joined it, node IDs of the fingers to
+	 * drop, and the fingers to add, encoded as in RegistrySendsNodeManifest
+	 *
+	 * Sent in place of a whole manifest when a node joins or leaves a
+	 * running overlay, to bring nodes from the epoch before (the base
+	 * epoch) to the epoch
+	 * Every node gets one (the node lists keep its copy of all node IDs
+	 * up to date), most with no finger changes
+	 */
+
+	private int type;
+	private int epoch;
+	private int[] removedNodes;
+	private int[] addedNodes;
+	private int[] removedFingers;
+	private List<RoutingEntry> addedFingers;
+
+	public RegistrySendsManifestDelta(int type, int epoch, int[] removedNodes, int[] addedNodes,
+			int[] removedFingers, List<RoutingEntry> addedFingers){
+		this.type = type;
+		this.epoch = epoch;
+		this.removedNodes = removedNodes;
+		this.addedNodes = addedNodes;
+		this.removedFingers = removedFingers;
+		this.addedFingers = addedFingers;
+	}
+
+	// Marshalling (packing the bytes)
+	@Override
+	public byte[] getBytes() {
+		return new EventWriter().registrySendsManifestDelta(epoch, removedNodes, addedNodes, removedFingers, addedFingers)
+				.toByteArray();
+	}
+
+	// Unmarshalling (unpack the bytes)
+	public RegistrySendsManifestDelta(byte[] marshalledBytes) throws IOException {
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
+
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public RegistrySendsManifestDelta(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
+		epoch = buffer.getInt();
+		removedNodes = readInts(buffer);
+		addedNodes = readInts(buffer);
+		removedFingers = readInts(buffer);
+		addedFingers = RegistrySendsNodeManifest.readEntries(buffer, buffer.getInt());
+	}
+
+	private static int[] readInts(ByteBuffer buffer) throws IOException {
+		int count = buffer.getInt();
+		if(count < 0 || count > buffer.remaining() / 4)
+			throw new IOException("Invalid node count: " + count);
+		int[] ints = new int[count];
+		buffer.asIntBuffer().get(ints);
+		buffer.position(buffer.position() + 4 * count);
+		return ints;
+	}
+
+	@Override
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * @return the overlay epoch after the change
+	 */
+	public int getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * @return the epoch the change applies to
+	 */
+	public int getBaseEpoch() {
+		return epoch - 1;
+	}
+
+	/**
+	 * @return the node IDs that left the overlay
+	 */
+	public int[] getRemovedNodes() {
+		return removedNodes;
+	}
+
+	/**
+	 * @return the node IDs that joined the overlay
+	 */
+	public int[] getAddedNodes() {
+		return addedNodes;
+	}
+
+	/**
+	 * @return the node IDs of the fingers to drop
+	 */
+	public int[] getRemovedFingers() {
+		return removedFingers;
+	}
+
+	/**
+	 * @return the fingers to add
+	 */
+	public List<RoutingEntry> getAddedFingers() {
+		return addedFingers;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "RegistrySendsManifestDelta [type="
+				+ type
+				+ ", epoch="
+				+ epoch
+				+ ", removedNodes="
+				+ Arrays.toString(removedNodes)
+				+ ", addedNodes="
+				+ Arrays.toString(addedNodes)
+				+ ", removedFingers="
+				+ Arrays.toString(removedFingers)
+				+ ", addedFingers="
+				+ addedFingers + "]";
+	}
+
+	/**
+	 * Flyweight over a RegistrySendsManifestDelta frame, see EventView
+	 */
+	public static class View extends EventView<RegistrySendsManifestDelta> {
+
+		@Override
+		protected RegistrySendsManifestDelta decode(ByteBuffer message) throws IOException {
+			return new RegistrySendsManifestDelta(message);
+		}
+
+		public int getEpoch() {
+			return intAt(4);
+		}
+
+		public int getBaseEpoch() {
+			return getEpoch() - 1;
+		}
+
+		public int getRemovedNodeCount() {
+			return intAt(8);
+		}
+
+		public int getAddedNodeCount() {
+			return intAt(12 + 4 * getRemovedNodeCount());
+		}
+
+	}
+
+}
@@ -1,12 +1,8 @@
 package cs455.overlay.wireformats;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -15,132 +11,98 @@ import cs455.overlay.routing.RoutingEntry;
 
 public class RegistrySendsNodeManifest implements Event{
 
+	/*
+	 * Wire format:
+	 * type, epoch, NR, number of nodes, every node ID (sorted), number of routing
+	 * entries, then each entry as node ID, address length (a byte, 4 or 16),
+	 * the raw address and the port (2 bytes, unsigned)
+	 *
+	 * The epoch numbers the overlay, each setup-overlay starts a new one,
+	 * and each RegistrySendsManifestDelta moves it on by one
+	 */
+
+	// Node ID, address length, IPv4 address and port
+	static final int MIN_ENTRY_BYTES = 11;
+
 	private int type;
+	private int epoch;
 	private int NR;
-	private String routingEntriesString;
-	private String allNodesString;
 	private int numNodes;
 
-	private List<RoutingEntry> routingEntries = new ArrayList<RoutingEntry>();
+	private List<RoutingEntry> routingEntries;
 	private int[] allNodes;
 
-	public RegistrySendsNodeManifest(int type, int NR, String allNodesString, String routingEntriesString, int numNodes){
+	public RegistrySendsNodeManifest(int type, int epoch, int NR, int[] allNodes, List<RoutingEntry> routingEntries){
 		this.type = type;
+		this.epoch = epoch;
 		this.NR = NR;
-		this.allNodesString = allNodesString;
-		this.numNodes = numNodes;
-		this.routingEntriesString = routingEntriesString;
-		
-		/*
-		 * Get the RoutingEntry list and Nodes list
-		 */
-		
-		//System.out.println(allNodesString);
-		//System.out.println(routingEntriesString);
-		
-		allNodes = getNodeEntries(allNodesString);
-
-		String[] temp = getRoutingEntries(routingEntriesString);
-		
-		/*
-		 * Doing something a little funky (dangerous!?) here
-		 * We've already checked to see the length mod 4 = 0
-		 * So getting elements four at a time, and incrementing by 4
-		 * Reason: know every four is an entry of the format
-		 * 1 = id, 2 = ip length, 3 = ip address, and 4 = port number
-		 */
-		for(int i = 0; i<temp.length; i+=4){
-			
-			int nodeID = Integer.parseInt(temp[i]);
-			int ipLength = Integer.parseInt(temp[i+1]);
-			String ipAddress = temp[i+2];
-			int portNum = Integer.parseInt(temp[i+3]);
-			routingEntries.add(new RoutingEntry(nodeID, ipLength, ipAddress, portNum));
-			
-		}
-		
+		this.allNodes = allNodes;
+		this.numNodes = allNodes.length;
+		this.routingEntries = routingEntries;
 	}
 
 	// Marshalling (packing the bytes)
 	@Override
 	public byte[] getBytes() {
-		byte[] marshalledBytes = null;
-		ByteArrayOutputStream baOutputStream = new ByteArrayOutputStream();
-		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(
-				baOutputStream));
-
-		try {
-			dout.writeInt(type);
-			dout.writeInt(NR);
-
-			byte[] routingEntriesStringBytes = routingEntriesString.getBytes();
-			int routingEntriesLength = routingEntriesStringBytes.length;
-			dout.writeInt(routingEntriesLength);
-			dout.write(routingEntriesStringBytes);
-
-			byte[] allNodesStringBytes = allNodesString.getBytes();
-			int allNodesLength = allNodesStringBytes.length;
-			dout.writeInt(allNodesLength);
-			dout.write(allNodesStringBytes);
-
-			dout.writeInt(numNodes);
-
-			dout.flush();
-			marshalledBytes = baOutputStream.toByteArray();
-			baOutputStream.close();
-			dout.close();
-
-		} catch (IOException e) {
-			System.out.println("Error marshalling the bytes for RegistrySendsNodeManifest.");
-			e.printStackTrace();
-		}
-
-		return marshalledBytes;
-
+		return new EventWriter().registrySendsNodeManifest(epoch, NR, allNodes, routingEntries).toByteArray();
 	}
 
 	// Unmarshalling (unpack the bytes)
 	public RegistrySendsNodeManifest(byte[] marshalledBytes) throws IOException {
-		ByteArrayInputStream baInputStream = new ByteArrayInputStream(
-				marshalledBytes);
-		DataInputStream din = new DataInputStream(new BufferedInputStream(
-				baInputStream));
-
-		type = din.readInt();
-		NR = din.readInt();
-
-		int routingEntriesLength = din.readInt();
-		byte[] routingEntriesBytes = new byte[routingEntriesLength];
-		din.readFully(routingEntriesBytes);
-		routingEntriesString = new String(routingEntriesBytes);
-
-		int allNodesLength = din.readInt();
-		byte[] allNodesBytes = new byte[allNodesLength];
-		din.readFully(allNodesBytes);
-		allNodesString = new String(allNodesBytes);
-
-		numNodes = din.readInt();
+		this(ByteBuffer.wrap(marshalledBytes));
+	}
 
-		baInputStream.close();
-		din.close();
+	// Unmarshalling straight from a frame buffer, reads from its current position
+	public RegistrySendsNodeManifest(ByteBuffer buffer) throws IOException {
+		type = buffer.getInt();
+		epoch = buffer.getInt();
+		NR = buffer.getInt();
+
+		numNodes = buffer.getInt();
+		if(numNodes < 0 || numNodes > buffer.remaining() / 4)
+			throw new IOException("Invalid node count: " + numNodes);
+		allNodes = new int[numNodes];
+		buffer.asIntBuffer().get(allNodes);
+		buffer.position(buffer.position() + 4 * numNodes);
+
+		int entryCount = buffer.getInt();
+		routingEntries = readEntries(buffer, entryCount);
+	}
 
-		/*
-		 * Get the RoutingEntry list and Nodes list
-		 */
-		
-		allNodes = getNodeEntries(allNodesString);
-
-		String[] temp = getRoutingEntries(routingEntriesString);
-		for(int i = 0; i<temp.length; i+=4){
-			
-			int nodeID = Integer.parseInt(temp[i]);
-			int ipLength = Integer.parseInt(temp[i+1]);
-			String ipAddress = temp[i+2];
-			int portNum = Integer.parseInt(temp[i+3]);
-			
-			routingEntries.add(new RoutingEntry(nodeID, ipLength, ipAddress, portNum));
+	/**
+	 * Decode routing entries, as written by EventWriter
+	 * RegistrySendsManifestDelta carries its added fingers the same way
+	 * @param buffer at the first entry
+	 * @param entryCount
+	 * @return List
+	 * @throws IOException
+	 */
+	static List<RoutingEntry> readEntries(ByteBuffer buffer, int entryCount) throws IOException {
+		if(entryCount < 0 || entryCount > buffer.remaining() / MIN_ENTRY_BYTES)
+			throw new IOException("Invalid routing entry count: " + entryCount);
+		List<RoutingEntry> entries = new ArrayList<RoutingEntry>(entryCount);
+		byte[] ipv4 = new byte[4];
+		byte[] ipv6 = new byte[16];
+		for(int i = 0; i<entryCount; ++i){
+			int nodeID = buffer.getInt();
+			int addressLength = buffer.get();
+			if(addressLength != 4 && addressLength != 16)
+				throw new IOException("Invalid address length: " + addressLength);
+			byte[] address = addressLength == 4 ? ipv4 : ipv6;
+			buffer.get(address);
+			int portNum = buffer.getShort() & 0xFFFF;
+			entries.add(new RoutingEntry(nodeID, InetAddress.getByAddress(address), portNum));
 		}
+		return entries;
+	}
 
+	/**
+	 * Bytes one entry takes up on the wire
+	 * @param entry
+	 * @return int
+	 */
+	static int entryBytes(RoutingEntry entry){
+		return 7 + entry.getAddress().length;
 	}
 
 	@Override
@@ -148,6 +110,13 @@ public class RegistrySendsNodeManifest implements Event{
 		return type;
 	}
 
+	/**
+	 * @return the overlay epoch
+	 */
+	public int getEpoch() {
+		return epoch;
+	}
+
 	/**
 	 * @return the nR
 	 */
@@ -176,38 +145,6 @@ public class RegistrySendsNodeManifest implements Event{
 		return allNodes;
 	}
 
-	/**
-	 * Return String[] from String Delimited by '|'
-	 * 
-	 * @return String[]
-	 */
-	private String[] getRoutingEntries(String message) {
-		String delimit = "\\|";
-		String[] temp = message.split(delimit);
-		
-		if((temp.length % 4) != 0 || temp.length == 0){
-			System.out.println("Routing entries were not formatted correctly. Ensure using four fields delimited by \"|\" ");
-			System.exit(0);
-		}
-		return temp;
-	}// END getParts
-
-	/**
-	 * Return int[] from String Delimited by '|'
-	 * 
-	 * @return int[]
-	 */
-	private int[] getNodeEntries(String message) {
-		String delimit = "\\|";
-		String[] temp = message.split(delimit);
-		
-		int[] nodes = new int[temp.length]; 
-		for(int i = 0; i<temp.length; ++i){
-			nodes[i] = Integer.parseInt(temp[i]);
-		}
-		return nodes;
-	}// END getMessage
-
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -215,6 +152,8 @@ public class RegistrySendsNodeManifest implements Event{
 	public String toString() {
 		return "RegistrySendsNodeManifest [type="
 				+ type
+				+ ", epoch="
+				+ epoch
 				+ ", NR="
 				+ NR
 				+ ", numNodes="
@@ -226,4 +165,41 @@ public class RegistrySendsNodeManifest implements Event{
 						: "") + "]";
 	}
 
+	/**
+	 * Flyweight over a RegistrySendsNodeManifest frame, fields are read
+	 * on demand, the routing entries are only decoded by materialize(), see EventView
+	 */
+	public static class View extends EventView<RegistrySendsNodeManifest> {
+
+		@Override
+		protected RegistrySendsNodeManifest decode(ByteBuffer message) throws IOException {
+			return new RegistrySendsNodeManifest(message);
+		}
+
+		public int getEpoch() {
+			return intAt(4);
+		}
+
+		public int getNR() {
+			return intAt(8);
+		}
+
+		public int getNumNodes() {
+			return intAt(12);
+		}
+
+		/**
+		 * @param i
+		 * @return the i'th node ID, in order
+		 */
+		public int getNode(int i) {
+			return intAt(16 + 4 * i);
+		}
+
+		public int getRoutingEntryCount() {
+			return intAt(16 + 4 * getNumNodes());
+		}
+
+	}
+
 }